@@ -33,6 +33,7 @@ import org.jwebsocket.listener.WebSocketServerTokenEvent;
 import org.jwebsocket.listener.WebSocketServerTokenListener;
 import org.jwebsocket.logging.Logging;
 import org.jwebsocket.plugins.TokenPlugInChain;
+import org.jwebsocket.tcp.SharedPacket;
 import org.jwebsocket.token.Token;
 import org.jwebsocket.token.TokenFactory;
 
@@ -384,7 +385,7 @@ public class TokenServer extends BaseServer {
                             + "' to '" + aTarget + "'...");
                 }
                 WebSocketPacket lPacket = tokenToPacket(aTarget, aToken);
-                return sendPacketData(aTarget, lPacket, false);
+                return sendPacketData(aTarget, lPacket, aIsAsync);
             } else {
                 if (mLog.isDebugEnabled()) {
                     mLog.debug("");
@@ -472,7 +473,7 @@ public class TokenServer extends BaseServer {
             // if there is no packet for this protocol format already, make one and
             // store it in the map
             if (lPacket == null) {
-                lPacket = tokenToPacket(lConnector, aToken);
+                lPacket = new SharedPacket(tokenToPacket(lConnector, aToken));
                 lPackets.put(lFormat, lPacket);
             }
             sendPacket(lConnector, lPacket);
@@ -508,7 +509,7 @@ public class TokenServer extends BaseServer {
             // if there is no packet for this protocol format already, make one and
             // store it in the map
             if (lPacket == null) {
-                lPacket = tokenToPacket(lConnector, aToken);
+                lPacket = new SharedPacket(tokenToPacket(lConnector, aToken));
                 lPackets.put(lFormat, lPacket);
             }
             sendPacket(lConnector, lPacket);
@@ -552,7 +553,7 @@ public class TokenServer extends BaseServer {
                         // if there is no packet for this protocol format already, make one and
                         // store it in the map
                         if (null == lPacket) {
-                            lPacket = tokenToPacket(lConnector, aToken);
+                            lPacket = new SharedPacket(tokenToPacket(lConnector, aToken));
                             lPackets.put(lFormat, lPacket);
                         }
                         lConnector.sendPacket(lPacket);
@@ -597,7 +598,7 @@ public class TokenServer extends BaseServer {
                 // if there is no packet for this protocol format already, make one and
                 // store it in the map
                 if (lPacket == null) {
-                    lPacket = tokenToPacket(lConnector, aToken);
+                    lPacket = new SharedPacket(tokenToPacket(lConnector, aToken));
                     lPackets.put(lFormat, lPacket);
                 }
                 sendPacket(lConnector, lPacket);
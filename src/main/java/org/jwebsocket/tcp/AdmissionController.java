@@ -0,0 +1,190 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Accept-side admission control
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.net.InetAddress;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jwebsocket.api.EngineConfiguration;
+
+/**
+ * Decides right after accept whether a new connection is served, before any
+ * connector is created for it. Connections are rejected if the maximum number
+ * of connections or of pending handshakes is reached, or if the global or the
+ * per address accept rate is exceeded. The rates are enforced by token
+ * buckets, the rejections are counted per reason.
+ *
+ * The settings are read from the engine configuration:
+ * <tt>accept_rate</tt>, <tt>accept_burst</tt>, <tt>accept_rate_per_ip</tt>,
+ * <tt>accept_burst_per_ip</tt> (connections per second, 0 for no limit) and
+ * <tt>max_pending_handshakes</tt> (0 for no limit).
+ */
+public class AdmissionController {
+
+    /**
+     * Reasons for rejecting a connection
+     */
+    public enum Reason {
+
+        /**
+         * The maximum number of connections has been reached
+         */
+        MAX_CONNECTIONS,
+        /**
+         * The maximum number of pending handshakes has been reached
+         */
+        PENDING_HANDSHAKES,
+        /**
+         * The global accept rate has been exceeded
+         */
+        RATE,
+        /**
+         * The accept rate of the source address has been exceeded
+         */
+        RATE_PER_IP
+    }
+    private static final String ACCEPT_RATE_CONFIG_KEY = "accept_rate";
+    private static final String ACCEPT_BURST_CONFIG_KEY = "accept_burst";
+    private static final String ACCEPT_RATE_PER_IP_CONFIG_KEY = "accept_rate_per_ip";
+    private static final String ACCEPT_BURST_PER_IP_CONFIG_KEY = "accept_burst_per_ip";
+    private static final String MAX_PENDING_HANDSHAKES_CONFIG_KEY = "max_pending_handshakes";
+    private static final int DEFAULT_MAX_PENDING_HANDSHAKES = 1000;
+    // the full (stateless) buckets are purged above this number of addresses
+    private static final int MAX_TRACKED_ADDRESSES = 65536;
+    private final TokenBucket mGlobalBucket;
+    private final int mRatePerAddress;
+    private final int mBurstPerAddress;
+    private final int mMaxPendingHandshakes;
+    private final ConcurrentHashMap<InetAddress, TokenBucket> mAddressBuckets =
+            new ConcurrentHashMap<InetAddress, TokenBucket>();
+    private final AtomicInteger mPendingHandshakes = new AtomicInteger();
+    private final AtomicLong mAdmittedCount = new AtomicLong();
+    private final Map<Reason, AtomicLong> mRejectedCounts = new EnumMap<Reason, AtomicLong>(Reason.class);
+
+    /**
+     *
+     * @param aConfiguration
+     */
+    public AdmissionController(EngineConfiguration aConfiguration) {
+        int lRate = EngineUtils.getIntSetting(aConfiguration, ACCEPT_RATE_CONFIG_KEY, 0);
+        mGlobalBucket = (lRate > 0) ? new TokenBucket(lRate,
+                EngineUtils.getIntSetting(aConfiguration, ACCEPT_BURST_CONFIG_KEY, lRate)) : null;
+        mRatePerAddress = EngineUtils.getIntSetting(aConfiguration, ACCEPT_RATE_PER_IP_CONFIG_KEY, 0);
+        mBurstPerAddress = EngineUtils.getIntSetting(aConfiguration,
+                ACCEPT_BURST_PER_IP_CONFIG_KEY, mRatePerAddress);
+        mMaxPendingHandshakes = EngineUtils.getIntSetting(aConfiguration,
+                MAX_PENDING_HANDSHAKES_CONFIG_KEY, DEFAULT_MAX_PENDING_HANDSHAKES);
+        for (Reason lReason : Reason.values()) {
+            mRejectedCounts.put(lReason, new AtomicLong());
+        }
+    }
+
+    /**
+     * Checks whether a new connection is admitted. An admitted connection
+     * counts as pending handshake until {@link #handshakeFinished()} is
+     * called.
+     *
+     * @param aAddress The source address
+     * @param aConnections The current number of connections
+     * @param aMaxConnections The maximum number of connections, 0 if it's
+     * checked by the caller
+     * @return <tt>null</tt> if the connection is admitted, the reason of the
+     * rejection otherwise
+     */
+    public Reason admit(InetAddress aAddress, int aConnections, int aMaxConnections) {
+        Reason lReason = null;
+        if (aMaxConnections > 0 && aConnections >= aMaxConnections) {
+            lReason = Reason.MAX_CONNECTIONS;
+        } else if (mMaxPendingHandshakes > 0
+                && mPendingHandshakes.get() >= mMaxPendingHandshakes) {
+            lReason = Reason.PENDING_HANDSHAKES;
+        } else if (mRatePerAddress > 0 && !getAddressBucket(aAddress).tryAcquire()) {
+            // checked first, so abusive addresses don't drain the global bucket
+            lReason = Reason.RATE_PER_IP;
+        } else if (null != mGlobalBucket && !mGlobalBucket.tryAcquire()) {
+            lReason = Reason.RATE;
+        }
+        if (null != lReason) {
+            mRejectedCounts.get(lReason).incrementAndGet();
+            return lReason;
+        }
+        mPendingHandshakes.incrementAndGet();
+        mAdmittedCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Must be called once for each admitted connection, when its handshake
+     * has been completed or the connection has been closed before.
+     */
+    public void handshakeFinished() {
+        mPendingHandshakes.decrementAndGet();
+    }
+
+    /**
+     *
+     * @return The number of admitted connections whose handshake is not
+     * finished yet
+     */
+    public int getPendingHandshakes() {
+        return mPendingHandshakes.get();
+    }
+
+    /**
+     *
+     * @return The number of admitted connections
+     */
+    public long getAdmittedCount() {
+        return mAdmittedCount.get();
+    }
+
+    /**
+     *
+     * @param aReason
+     * @return The number of connections rejected for the given reason
+     */
+    public long getRejectedCount(Reason aReason) {
+        return mRejectedCounts.get(aReason).get();
+    }
+
+    private TokenBucket getAddressBucket(InetAddress aAddress) {
+        TokenBucket lBucket = mAddressBuckets.get(aAddress);
+        if (null == lBucket) {
+            if (mAddressBuckets.size() >= MAX_TRACKED_ADDRESSES) {
+                purgeAddressBuckets();
+            }
+            lBucket = new TokenBucket(mRatePerAddress, mBurstPerAddress);
+            TokenBucket lExisting = mAddressBuckets.putIfAbsent(aAddress, lBucket);
+            if (null != lExisting) {
+                lBucket = lExisting;
+            }
+        }
+        return lBucket;
+    }
+
+    private void purgeAddressBuckets() {
+        Iterator<TokenBucket> lIt = mAddressBuckets.values().iterator();
+        while (lIt.hasNext()) {
+            if (lIt.next().isFull()) {
+                lIt.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Client processor pool
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jwebsocket.api.EngineConfiguration;
+
+/**
+ * Bounded pool of the threads reading the connections of the
+ * {@link TCPEngine}. Each connection occupies a thread for its whole lifetime,
+ * so the pool size limits the number of concurrently served connections. If
+ * all threads are busy, new connections wait in a bounded queue. Once the
+ * queue is full they are either closed or the accepting thread waits for a
+ * free thread, so the pending connections queue up in the listen backlog.
+ *
+ * The settings are read from the engine configuration:
+ * <tt>max_client_threads</tt> (the pool size, by default the maximum number
+ * of connections of the engine, or 1024 if that is not limited),
+ * <tt>client_queue_size</tt> (0 for no queueing) and <tt>client_rejection_policy</tt> (<tt>close</tt> or
+ * <tt>block</tt>). A saturation permanently close to 1 indicates that the
+ * number of connections requires the NIO engine.
+ */
+public class ClientProcessorPool {
+
+    /**
+     * Closes the connections that can't be served
+     */
+    public static final String POLICY_CLOSE = "close";
+    /**
+     * Blocks the accepting thread until the connection can be queued
+     */
+    public static final String POLICY_BLOCK = "block";
+    private static final String MAX_CLIENT_THREADS_CONFIG_KEY = "max_client_threads";
+    // used if the maximum number of connections is not limited
+    private static final int DEFAULT_MAX_CLIENT_THREADS = 1024;
+    private static final String CLIENT_QUEUE_SIZE_CONFIG_KEY = "client_queue_size";
+    private static final int DEFAULT_CLIENT_QUEUE_SIZE = 0;
+    private static final String CLIENT_REJECTION_POLICY_CONFIG_KEY = "client_rejection_policy";
+    // idle threads are terminated after this time, in seconds
+    private static final int KEEP_ALIVE_TIME = 60;
+    private final ThreadPoolExecutor mExecutor;
+    private final int mMaxThreads;
+    private final String mRejectionPolicy;
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mBlockedCount = new AtomicLong();
+    private final Histogram mQueueTimeHistogram = new Histogram("ms");
+
+    /**
+     *
+     * @param aConfiguration
+     */
+    public ClientProcessorPool(EngineConfiguration aConfiguration) {
+        int lMaxConnections = aConfiguration.getMaxConnections();
+        mMaxThreads = Math.max(1, EngineUtils.getIntSetting(aConfiguration,
+                MAX_CLIENT_THREADS_CONFIG_KEY,
+                (lMaxConnections > 0) ? lMaxConnections : DEFAULT_MAX_CLIENT_THREADS));
+        int lQueueSize = EngineUtils.getIntSetting(aConfiguration,
+                CLIENT_QUEUE_SIZE_CONFIG_KEY, DEFAULT_CLIENT_QUEUE_SIZE);
+        mRejectionPolicy = POLICY_BLOCK.equals(EngineUtils.getStringSetting(aConfiguration,
+                CLIENT_REJECTION_POLICY_CONFIG_KEY, POLICY_CLOSE)) ? POLICY_BLOCK : POLICY_CLOSE;
+        BlockingQueue<Runnable> lQueue = (lQueueSize > 0)
+                ? new ArrayBlockingQueue<Runnable>(lQueueSize)
+                : new SynchronousQueue<Runnable>();
+        mExecutor = new ThreadPoolExecutor(mMaxThreads, mMaxThreads,
+                KEEP_ALIVE_TIME, TimeUnit.SECONDS, lQueue,
+                new ProcessorThreadFactory(), new RejectionHandler());
+        // the threads are only kept while there are connections
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Executes the reader of a connection by a pool thread.
+     *
+     * @param aReader
+     * @throws RejectedExecutionException if the connection can't be served
+     */
+    public void execute(final Runnable aReader) {
+        final long lQueued = TimingWheel.now();
+        mExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                mQueueTimeHistogram.record(TimingWheel.now() - lQueued);
+                // the reader names the thread after its connector
+                Thread lThread = Thread.currentThread();
+                String lName = lThread.getName();
+                try {
+                    aReader.run();
+                } finally {
+                    lThread.setName(lName);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops accepting new connections, the running readers terminate once
+     * their connections are closed.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     *
+     * @return The maximum number of threads
+     */
+    public int getMaxThreads() {
+        return mMaxThreads;
+    }
+
+    /**
+     *
+     * @return The number of threads serving a connection
+     */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    /**
+     *
+     * @return The largest number of threads that have ever been in the pool
+     */
+    public int getLargestPoolSize() {
+        return mExecutor.getLargestPoolSize();
+    }
+
+    /**
+     *
+     * @return The number of connections waiting for a thread
+     */
+    public int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     *
+     * @return The number of connections that have been served and closed
+     */
+    public long getCompletedCount() {
+        return mExecutor.getCompletedTaskCount();
+    }
+
+    /**
+     *
+     * @return The number of connections closed because the pool was saturated
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     *
+     * @return The number of times the accepting thread had to wait for a free
+     * thread
+     */
+    public long getBlockedCount() {
+        return mBlockedCount.get();
+    }
+
+    /**
+     *
+     * @return The time connections waited for a thread
+     */
+    public Histogram getQueueTimeHistogram() {
+        return mQueueTimeHistogram;
+    }
+
+    /**
+     *
+     * @return The ratio of busy threads to the maximum number of threads,
+     * between 0 and 1
+     */
+    public double getSaturation() {
+        return (double) getActiveCount() / mMaxThreads;
+    }
+
+    @Override
+    public String toString() {
+        return "active=" + getActiveCount() + "/" + mMaxThreads
+                + ", largest=" + getLargestPoolSize()
+                + ", queued=" + getQueuedCount()
+                + ", completed=" + getCompletedCount()
+                + ", rejected=" + getRejectedCount()
+                + ", blocked=" + getBlockedCount()
+                + ", queue time: " + mQueueTimeHistogram;
+    }
+
+    private class RejectionHandler implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable aTask, ThreadPoolExecutor aExecutor) {
+            if (POLICY_BLOCK.equals(mRejectionPolicy) && !aExecutor.isShutdown()) {
+                mBlockedCount.incrementAndGet();
+                try {
+                    // a thread polls the queue as soon as its connection is closed
+                    aExecutor.getQueue().put(aTask);
+                    return;
+                } catch (InterruptedException lEx) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            mRejectedCount.incrementAndGet();
+            throw new RejectedExecutionException("All " + mMaxThreads
+                    + " client threads are busy.");
+        }
+    }
+
+    private static class ProcessorThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable aRunnable) {
+            Thread lThread = new Thread(aRunnable,
+                    "jWebSocket TCP-Engine ClientProcessor " + mCount.incrementAndGet());
+            lThread.setDaemon(true);
+            return lThread;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.Map;
 import javolution.util.FastMap;
 import org.apache.log4j.Logger;
+import org.jwebsocket.api.EngineConfiguration;
 import org.jwebsocket.config.JWebSocketCommonConstants;
 import org.jwebsocket.kit.RequestHeader;
 import org.jwebsocket.kit.WebSocketProtocolAbstraction;
@@ -32,6 +33,13 @@ import org.jwebsocket.kit.WebSocketProtocolAbstraction;
  */
 public class EngineUtils {
 
+    private static final String MAX_MESSAGE_SIZE_CONFIG_KEY = "max_message_size";
+    private static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    private static final String CORK_DELAY_CONFIG_KEY = "cork_delay";
+    private static final int DEFAULT_CORK_DELAY = 0;
+    private static final String CORK_SIZE_CONFIG_KEY = "cork_size";
+    private static final int DEFAULT_CORK_SIZE = 16 * 1024;
+
     /**
      * Validates draft header and constructs RequestHeader object.
      */
@@ -177,4 +185,75 @@ public class EngineUtils {
         
         aReqMap.put(RequestHeader.WS_COOKIES, lCookiesMap);
     }
+
+    /**
+     * Returns the value of an integer engine setting (the settings section of
+     * the engine configuration) or the given default if it is not present.
+     *
+     * @param aConfiguration
+     * @param aKey
+     * @param aDefault
+     * @return
+     */
+    public static int getIntSetting(EngineConfiguration aConfiguration,
+            String aKey, int aDefault) {
+        Map lSettings = aConfiguration.getSettings();
+        if (null == lSettings || null == lSettings.get(aKey)) {
+            return aDefault;
+        }
+        return Integer.parseInt(lSettings.get(aKey).toString().trim());
+    }
+
+    /**
+     * Returns the maximum size of a message reassembled from fragments (or
+     * decompressed), the <tt>max_message_size</tt> setting. It's never smaller
+     * than the maximum frame size.
+     *
+     * @param aConfiguration
+     * @return
+     */
+    public static int getMaxMessageSize(EngineConfiguration aConfiguration) {
+        return Math.max(aConfiguration.getMaxFramesize(), getIntSetting(aConfiguration,
+                MAX_MESSAGE_SIZE_CONFIG_KEY, DEFAULT_MAX_MESSAGE_SIZE));
+    }
+
+    /**
+     * Returns the time in milliseconds a writer waits for more packets before
+     * flushing, the <tt>cork_delay</tt> setting, 0 flushes each packet.
+     *
+     * @param aConfiguration
+     * @return
+     */
+    public static int getCorkDelay(EngineConfiguration aConfiguration) {
+        return getIntSetting(aConfiguration, CORK_DELAY_CONFIG_KEY, DEFAULT_CORK_DELAY);
+    }
+
+    /**
+     * Returns the number of bytes a writer writes before it flushes anyway,
+     * the <tt>cork_size</tt> setting.
+     *
+     * @param aConfiguration
+     * @return
+     */
+    public static int getCorkSize(EngineConfiguration aConfiguration) {
+        return getIntSetting(aConfiguration, CORK_SIZE_CONFIG_KEY, DEFAULT_CORK_SIZE);
+    }
+
+    /**
+     * Returns the value of a string engine setting or the given default if it
+     * is not present.
+     *
+     * @param aConfiguration
+     * @param aKey
+     * @param aDefault
+     * @return
+     */
+    public static String getStringSetting(EngineConfiguration aConfiguration,
+            String aKey, String aDefault) {
+        Map lSettings = aConfiguration.getSettings();
+        if (null == lSettings || null == lSettings.get(aKey)) {
+            return aDefault;
+        }
+        return lSettings.get(aKey).toString().trim();
+    }
 }
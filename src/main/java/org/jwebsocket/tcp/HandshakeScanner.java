@@ -0,0 +1,181 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Incremental handshake request scanner
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.jwebsocket.kit.WebSocketException;
+
+/**
+ * Collects a handshake request that may arrive in several reads. The data is
+ * scanned only once for the end of the headers (CRLFCRLF), a hixie-76 request
+ * is complete with the 8 key bytes following its headers, a flash policy file
+ * request with its terminating zero byte. Data following the request (e.g. a
+ * first frame sent right after the handshake) is kept as remainder.
+ *
+ * This class is not thread-safe.
+ */
+public class HandshakeScanner {
+
+    private static final int INITIAL_BUFFER_SIZE = 512;
+    private static final int HIXIE_KEY3_LENGTH = 8;
+    private static final byte[] HIXIE_KEY1 = "sec-websocket-key1:".getBytes();
+    private final int mMaxSize;
+    private byte[] mBuffer;
+    private int mSize = 0;
+    // scan position and number of matched CRLFCRLF bytes
+    private int mScanPos = 0;
+    private int mMatched = 0;
+    // length of the complete request, -1 as long as it's unknown
+    private int mRequestLength = -1;
+
+    /**
+     *
+     * @param aMaxSize The maximum size of the request, including the hixie-76
+     * key bytes
+     */
+    public HandshakeScanner(int aMaxSize) {
+        mMaxSize = aMaxSize;
+        mBuffer = new byte[Math.min(INITIAL_BUFFER_SIZE, aMaxSize)];
+    }
+
+    /**
+     * Appends data read from the socket.
+     *
+     * @param aData
+     * @return <tt>true</tt> if the request is complete
+     * @throws WebSocketException if the request exceeds the maximum size
+     */
+    public boolean append(ByteBuffer aData) throws WebSocketException {
+        int lLength = aData.remaining();
+        ensureCapacity(lLength);
+        aData.get(mBuffer, mSize, lLength);
+        mSize += lLength;
+        return scan();
+    }
+
+    /**
+     * Appends data read from the socket.
+     *
+     * @param aData
+     * @param aOffset
+     * @param aLength
+     * @return <tt>true</tt> if the request is complete
+     * @throws WebSocketException if the request exceeds the maximum size
+     */
+    public boolean append(byte[] aData, int aOffset, int aLength) throws WebSocketException {
+        ensureCapacity(aLength);
+        System.arraycopy(aData, aOffset, mBuffer, mSize, aLength);
+        mSize += aLength;
+        return scan();
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if the request is complete
+     */
+    public boolean isComplete() {
+        return mRequestLength >= 0 && mSize >= mRequestLength;
+    }
+
+    /**
+     *
+     * @return The number of buffered bytes
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     *
+     * @return The complete request
+     */
+    public byte[] getRequest() {
+        return Arrays.copyOf(mBuffer, mRequestLength);
+    }
+
+    /**
+     *
+     * @return The data following the request, <tt>null</tt> if there is none
+     */
+    public byte[] getRemainder() {
+        if (mSize <= mRequestLength) {
+            return null;
+        }
+        return Arrays.copyOfRange(mBuffer, mRequestLength, mSize);
+    }
+
+    private boolean scan() throws WebSocketException {
+        if (mRequestLength < 0) {
+            if (mSize > 0 && '<' == mBuffer[0]) {
+                // flash policy file request, terminated by a zero byte
+                for (; mScanPos < mSize; mScanPos++) {
+                    if (0 == mBuffer[mScanPos]) {
+                        mRequestLength = mScanPos + 1;
+                        break;
+                    }
+                }
+            } else {
+                for (; mScanPos < mSize; mScanPos++) {
+                    byte lByte = mBuffer[mScanPos];
+                    if (lByte == (((mMatched & 1) == 0) ? '\r' : '\n')) {
+                        mMatched++;
+                    } else {
+                        mMatched = ('\r' == lByte) ? 1 : 0;
+                    }
+                    if (4 == mMatched) {
+                        mScanPos++;
+                        mRequestLength = isHixie76(mScanPos)
+                                ? mScanPos + HIXIE_KEY3_LENGTH : mScanPos;
+                        break;
+                    }
+                }
+            }
+            if (mRequestLength > mMaxSize || (mRequestLength < 0 && mSize >= mMaxSize)) {
+                throw new WebSocketException("Handshake request exceeds the maximum size of "
+                        + mMaxSize + " bytes.");
+            }
+        }
+        return isComplete();
+    }
+
+    private boolean isHixie76(int aHeaderLength) {
+        int lLast = aHeaderLength - HIXIE_KEY1.length;
+        for (int lIdx = 0; lIdx <= lLast; lIdx++) {
+            int lPos = 0;
+            while (lPos < HIXIE_KEY1.length
+                    && Character.toLowerCase((char) mBuffer[lIdx + lPos]) == HIXIE_KEY1[lPos]) {
+                lPos++;
+            }
+            if (HIXIE_KEY1.length == lPos) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ensureCapacity(int aLength) {
+        int lRequired = mSize + aLength;
+        if (lRequired <= mBuffer.length) {
+            return;
+        }
+        int lCapacity = mBuffer.length;
+        while (lCapacity < lRequired) {
+            lCapacity <<= 1;
+        }
+        mBuffer = Arrays.copyOf(mBuffer, lCapacity);
+    }
+}
@@ -0,0 +1,139 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Histogram
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values for engine metrics. The values
+ * are counted in power of two buckets, so percentiles are approximated by the
+ * upper bound of their bucket.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+    private final String mUnit;
+    // bucket i counts the values in [2^(i-1), 2^i - 1], bucket 0 counts zeros
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     *
+     * @param aUnit The unit of the values, used by {@link #toString()}
+     */
+    public Histogram(String aUnit) {
+        mUnit = aUnit;
+    }
+
+    /**
+     * Records a value, negative values are recorded as zero.
+     *
+     * @param aValue
+     */
+    public void record(long aValue) {
+        long lValue = Math.max(0, aValue);
+        mBuckets.incrementAndGet(64 - Long.numberOfLeadingZeros(lValue));
+        mCount.incrementAndGet();
+        mSum.addAndGet(lValue);
+        long lMax;
+        while (lValue > (lMax = mMax.get())) {
+            if (mMax.compareAndSet(lMax, lValue)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     *
+     * @return The number of recorded values
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     *
+     * @return The sum of the recorded values
+     */
+    public long getSum() {
+        return mSum.get();
+    }
+
+    /**
+     *
+     * @return The largest recorded value
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     *
+     * @return The mean of the recorded values, 0 if there are none
+     */
+    public double getMean() {
+        long lCount = mCount.get();
+        return (lCount > 0) ? (double) mSum.get() / lCount : 0;
+    }
+
+    /**
+     * Returns the approximated percentile, the result is the upper bound of
+     * the bucket containing the percentile, but not greater than the maximum.
+     *
+     * @param aPercentile The percentile between 0 and 100
+     * @return
+     */
+    public long getPercentile(double aPercentile) {
+        long lCount = mCount.get();
+        if (0 == lCount) {
+            return 0;
+        }
+        long lRank = (long) Math.ceil(lCount * Math.min(100, Math.max(0, aPercentile)) / 100);
+        long lSeen = 0;
+        for (int lIdx = 0; lIdx < BUCKETS; lIdx++) {
+            lSeen += mBuckets.get(lIdx);
+            if (lSeen >= lRank && lSeen > 0) {
+                long lUpper = (0 == lIdx) ? 0 : (1L << lIdx) - 1;
+                return Math.min(lUpper, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Clears the recorded values, values recorded concurrently may be lost.
+     */
+    public void reset() {
+        for (int lIdx = 0; lIdx < BUCKETS; lIdx++) {
+            mBuckets.set(lIdx, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + ", mean=" + String.format("%.2f", getMean()) + mUnit
+                + ", p50=" + getPercentile(50) + mUnit
+                + ", p99=" + getPercentile(99) + mUnit
+                + ", max=" + getMax() + mUnit;
+    }
+}
@@ -0,0 +1,425 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - permessage-deflate extension
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.jwebsocket.api.EngineConfiguration;
+import org.jwebsocket.api.WebSocketPacket;
+import org.jwebsocket.kit.WebSocketException;
+import org.jwebsocket.kit.WebSocketFrameType;
+
+/**
+ * The permessage-deflate WebSocket extension (RFC 7692) of a single
+ * connection. The extension is negotiated during the handshake from the
+ * client's Sec-WebSocket-Extensions offers and the engine settings:
+ * <ul> <li><tt>permessage_deflate</tt>: enables the extension (default
+ * false)</li> <li><tt>deflate_context_takeover</tt>: keeps the compression
+ * context between messages (default false). Without context takeover the
+ * Deflater/Inflater instances are borrowed from a shared pool per message,
+ * instead of being kept by every connection, and broadcast payloads are
+ * compressed only once.</li> <li><tt>deflate_threshold</tt>: smaller payloads
+ * are sent uncompressed (default 128 bytes)</li> </ul>
+ *
+ * Instances are used by the connector's reader for decompression and by its
+ * senders for compression, the callers must send compressed frames in
+ * compression order (synchronizing on this object).
+ */
+public class PerMessageDeflate {
+
+    /**
+     * The extension token
+     */
+    public static final String EXTENSION_NAME = "permessage-deflate";
+    /**
+     * RSV1 bit of the first frame of a compressed message
+     */
+    public static final int RSV1 = 0x40;
+    private static final String ENABLED_CONFIG_KEY = "permessage_deflate";
+    private static final String CONTEXT_TAKEOVER_CONFIG_KEY = "deflate_context_takeover";
+    private static final String THRESHOLD_CONFIG_KEY = "deflate_threshold";
+    private static final int DEFAULT_THRESHOLD = 128;
+    private static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+    private static final int MAX_WINDOW_BITS = 15;
+    private static final byte[] TAIL = new byte[]{0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+    private static final int MAX_POOLED = 256;
+    private static final Queue<Deflater> mDeflaters = new ConcurrentLinkedQueue<Deflater>();
+    private static final Queue<Inflater> mInflaters = new ConcurrentLinkedQueue<Inflater>();
+    private static final AtomicInteger mPooledDeflaters = new AtomicInteger();
+    private static final AtomicInteger mPooledInflaters = new AtomicInteger();
+    private final boolean mServerNoContextTakeover;
+    private final boolean mClientNoContextTakeover;
+    private final boolean mServerMaxWindowBits;
+    private final int mThreshold;
+    private final int mMaxMessageSize;
+    // owned with context takeover only, guarded by this object
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    private volatile boolean mReleased = false;
+
+    private PerMessageDeflate(boolean aServerNoContextTakeover, boolean aClientNoContextTakeover,
+            boolean aServerMaxWindowBits, int aThreshold, int aMaxMessageSize) {
+        mServerNoContextTakeover = aServerNoContextTakeover;
+        mClientNoContextTakeover = aClientNoContextTakeover;
+        mServerMaxWindowBits = aServerMaxWindowBits;
+        mThreshold = aThreshold;
+        mMaxMessageSize = aMaxMessageSize;
+    }
+
+    /**
+     * Negotiates the extension for a RFC 6455 handshake request.
+     *
+     * @param aConfiguration The engine configuration
+     * @param aRequest The raw handshake request
+     * @param aVersion The WebSocket protocol version of the client
+     * @param aMaxMessageSize The maximum size of a decompressed message
+     * @return The accepted extension or <tt>null</tt> if it's disabled or not
+     * offered by the client with acceptable parameters
+     */
+    public static PerMessageDeflate negotiate(EngineConfiguration aConfiguration,
+            byte[] aRequest, int aVersion, int aMaxMessageSize) {
+        if (aVersion < 13 || !"true".equalsIgnoreCase(EngineUtils.getStringSetting(
+                aConfiguration, ENABLED_CONFIG_KEY, "false"))) {
+            return null;
+        }
+        String lOffers = getHeader(aRequest, EXTENSIONS_HEADER);
+        if (null == lOffers) {
+            return null;
+        }
+        boolean lContextTakeover = "true".equalsIgnoreCase(EngineUtils.getStringSetting(
+                aConfiguration, CONTEXT_TAKEOVER_CONFIG_KEY, "false"));
+        int lThreshold = EngineUtils.getIntSetting(aConfiguration,
+                THRESHOLD_CONFIG_KEY, DEFAULT_THRESHOLD);
+
+        // the first acceptable offer wins
+        for (String lOffer : lOffers.split(",")) {
+            String[] lParams = lOffer.split(";");
+            if (!EXTENSION_NAME.equalsIgnoreCase(lParams[0].trim())) {
+                continue;
+            }
+            boolean lServerNoContextTakeover = !lContextTakeover;
+            boolean lClientNoContextTakeover = !lContextTakeover;
+            boolean lServerMaxWindowBits = false;
+            boolean lAccepted = true;
+            for (int lIdx = 1; lIdx < lParams.length && lAccepted; lIdx++) {
+                String[] lKeyValue = lParams[lIdx].split("=", 2);
+                String lKey = lKeyValue[0].trim().toLowerCase();
+                String lValue = (lKeyValue.length > 1)
+                        ? lKeyValue[1].trim().replace("\"", "") : null;
+                if ("server_no_context_takeover".equals(lKey)) {
+                    lServerNoContextTakeover = true;
+                } else if ("client_no_context_takeover".equals(lKey)) {
+                    lClientNoContextTakeover = true;
+                } else if ("server_max_window_bits".equals(lKey)) {
+                    // the JDK's Deflater always uses a 32K window
+                    lAccepted = String.valueOf(MAX_WINDOW_BITS).equals(lValue);
+                    lServerMaxWindowBits = true;
+                } else if (!"client_max_window_bits".equals(lKey)) {
+                    // the client uses the default window if the response omits this parameter
+                    lAccepted = false;
+                }
+            }
+            if (lAccepted) {
+                return new PerMessageDeflate(lServerNoContextTakeover, lClientNoContextTakeover,
+                        lServerMaxWindowBits, lThreshold, aMaxMessageSize);
+            }
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @return The Sec-WebSocket-Extensions response header line (without
+     * CRLF)
+     */
+    public String getResponseHeader() {
+        StringBuilder lHeader = new StringBuilder(EXTENSIONS_HEADER).append(": ").append(EXTENSION_NAME);
+        if (mServerNoContextTakeover) {
+            lHeader.append("; server_no_context_takeover");
+        }
+        if (mClientNoContextTakeover) {
+            lHeader.append("; client_no_context_takeover");
+        }
+        if (mServerMaxWindowBits) {
+            lHeader.append("; server_max_window_bits=").append(MAX_WINDOW_BITS);
+        }
+        return lHeader.toString();
+    }
+
+    /**
+     * Adds the extension header to a generated handshake response.
+     *
+     * @param aResponse
+     * @return The response including the Sec-WebSocket-Extensions header
+     */
+    public byte[] addResponseHeader(byte[] aResponse) {
+        int lEnd = indexOfHeaderEnd(aResponse);
+        if (lEnd < 0) {
+            return aResponse;
+        }
+        byte[] lHeader;
+        try {
+            lHeader = (getResponseHeader() + "\r\n").getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException lEx) {
+            return aResponse;
+        }
+        // the header is inserted right before the empty line
+        int lPos = lEnd + 2;
+        byte[] lResult = new byte[aResponse.length + lHeader.length];
+        System.arraycopy(aResponse, 0, lResult, 0, lPos);
+        System.arraycopy(lHeader, 0, lResult, lPos, lHeader.length);
+        System.arraycopy(aResponse, lPos, lResult, lPos + lHeader.length, aResponse.length - lPos);
+        return lResult;
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if the compressed output does not depend on
+     * previous messages, so it can be shared between connections
+     */
+    public boolean isServerNoContextTakeover() {
+        return mServerNoContextTakeover;
+    }
+
+    /**
+     *
+     * @param aPacket
+     * @return <tt>true</tt> if the packet is a data message worth compressing
+     */
+    public boolean isCompressible(WebSocketPacket aPacket) {
+        WebSocketFrameType lFrameType = aPacket.getFrameType();
+        return (null == lFrameType
+                || WebSocketFrameType.TEXT == lFrameType
+                || WebSocketFrameType.BINARY == lFrameType)
+                && aPacket.getByteArray().length >= mThreshold;
+    }
+
+    /**
+     * Compresses the payload of a packet. Payloads of shared (broadcast)
+     * packets are compressed only once if there's no context takeover.
+     *
+     * @param aPacket
+     * @return The compressed payload, to be sent with the RSV1 bit set
+     */
+    public byte[] compress(WebSocketPacket aPacket) {
+        if (mServerNoContextTakeover && aPacket instanceof SharedPacket) {
+            return ((SharedPacket) aPacket).getDeflated(this);
+        }
+        return compress(aPacket.getByteArray());
+    }
+
+    /**
+     * Compresses a message payload.
+     *
+     * @param aPayload
+     * @return The compressed payload, to be sent with the RSV1 bit set
+     * @throws IllegalStateException if the extension has been released
+     */
+    public byte[] compress(byte[] aPayload) {
+        if (!mServerNoContextTakeover) {
+            // the context is ended by release, so it's used under its lock
+            synchronized (this) {
+                checkReleased();
+                if (null == mDeflater) {
+                    mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                }
+                return deflate(mDeflater, aPayload);
+            }
+        }
+        checkReleased();
+        Deflater lDeflater = mDeflaters.poll();
+        if (null == lDeflater) {
+            lDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        } else {
+            mPooledDeflaters.decrementAndGet();
+        }
+        try {
+            return deflate(lDeflater, aPayload);
+        } finally {
+            lDeflater.reset();
+            if (mPooledDeflaters.incrementAndGet() <= MAX_POOLED) {
+                mDeflaters.offer(lDeflater);
+            } else {
+                mPooledDeflaters.decrementAndGet();
+                lDeflater.end();
+            }
+        }
+    }
+
+    /**
+     * Decompresses a message received with the RSV1 bit set.
+     *
+     * @param aPayload
+     * @return The decompressed payload
+     * @throws WebSocketException if the data is invalid or exceeds the maximum
+     * message size, or if the extension has been released
+     */
+    public byte[] decompress(byte[] aPayload) throws WebSocketException {
+        if (!mClientNoContextTakeover) {
+            // the context is ended by release, so it's used under its lock
+            synchronized (this) {
+                if (mReleased) {
+                    throw new WebSocketException("Compression context has been released.");
+                }
+                if (null == mInflater) {
+                    mInflater = new Inflater(true);
+                }
+                return inflate(mInflater, aPayload);
+            }
+        }
+        if (mReleased) {
+            throw new WebSocketException("Compression context has been released.");
+        }
+        Inflater lInflater = mInflaters.poll();
+        if (null == lInflater) {
+            lInflater = new Inflater(true);
+        } else {
+            mPooledInflaters.decrementAndGet();
+        }
+        try {
+            return inflate(lInflater, aPayload);
+        } finally {
+            lInflater.reset();
+            if (mPooledInflaters.incrementAndGet() <= MAX_POOLED) {
+                mInflaters.offer(lInflater);
+            } else {
+                mPooledInflaters.decrementAndGet();
+                lInflater.end();
+            }
+        }
+    }
+
+    /**
+     * Frees the native resources of the compression contexts kept by the
+     * connection, the extension can't be used anymore afterwards.
+     */
+    public synchronized void release() {
+        mReleased = true;
+        if (null != mDeflater) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+        if (null != mInflater) {
+            mInflater.end();
+            mInflater = null;
+        }
+    }
+
+    private void checkReleased() {
+        if (mReleased) {
+            throw new IllegalStateException("Compression context has been released.");
+        }
+    }
+
+    private static byte[] deflate(Deflater aDeflater, byte[] aPayload) {
+        aDeflater.setInput(aPayload);
+        byte[] lOut = new byte[Math.max(64, aPayload.length / 2)];
+        int lLength = 0;
+        while (true) {
+            lLength += aDeflater.deflate(lOut, lLength, lOut.length - lLength, Deflater.SYNC_FLUSH);
+            if (lLength < lOut.length) {
+                break;
+            }
+            lOut = Arrays.copyOf(lOut, lOut.length * 2);
+        }
+        // the trailing empty stored block is implied by the extension
+        if (lLength >= TAIL.length && endsWithTail(lOut, lLength)) {
+            lLength -= TAIL.length;
+        }
+        return Arrays.copyOf(lOut, lLength);
+    }
+
+    private byte[] inflate(Inflater aInflater, byte[] aPayload) throws WebSocketException {
+        try {
+            byte[] lIn = Arrays.copyOf(aPayload, aPayload.length + TAIL.length);
+            System.arraycopy(TAIL, 0, lIn, aPayload.length, TAIL.length);
+            aInflater.setInput(lIn);
+            byte[] lOut = new byte[Math.min(mMaxMessageSize + 1, Math.max(256, aPayload.length * 4))];
+            int lLength = 0;
+            while (true) {
+                int lInflated = aInflater.inflate(lOut, lLength, lOut.length - lLength);
+                lLength += lInflated;
+                if (lLength > mMaxMessageSize) {
+                    throw new WebSocketException("Decompressed message exceeds the maximum message size of "
+                            + mMaxMessageSize + " bytes.");
+                }
+                if (lLength == lOut.length) {
+                    lOut = Arrays.copyOf(lOut, Math.min(mMaxMessageSize + 1, lOut.length * 2));
+                } else if (0 == lInflated && (aInflater.needsInput() || aInflater.finished()
+                        || aInflater.needsDictionary())) {
+                    break;
+                }
+            }
+            return Arrays.copyOf(lOut, lLength);
+        } catch (DataFormatException lEx) {
+            throw new WebSocketException("Invalid compressed message: " + lEx.getMessage());
+        }
+    }
+
+    private static boolean endsWithTail(byte[] aData, int aLength) {
+        for (int lIdx = 0; lIdx < TAIL.length; lIdx++) {
+            if (aData[aLength - TAIL.length + lIdx] != TAIL[lIdx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOfHeaderEnd(byte[] aData) {
+        for (int lIdx = 0; lIdx + 3 < aData.length; lIdx++) {
+            if (aData[lIdx] == '\r' && aData[lIdx + 1] == '\n'
+                    && aData[lIdx + 2] == '\r' && aData[lIdx + 3] == '\n') {
+                return lIdx;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the comma separated values of all occurrences of a header in a
+     * raw HTTP request.
+     */
+    private static String getHeader(byte[] aRequest, String aName) {
+        String lRequest;
+        try {
+            lRequest = new String(aRequest, "ISO-8859-1");
+        } catch (UnsupportedEncodingException lEx) {
+            return null;
+        }
+        StringBuilder lValues = null;
+        for (String lLine : lRequest.split("\r\n")) {
+            if (lLine.isEmpty()) {
+                break;
+            }
+            int lPos = lLine.indexOf(':');
+            if (lPos > 0 && lLine.substring(0, lPos).trim().equalsIgnoreCase(aName)) {
+                if (null == lValues) {
+                    lValues = new StringBuilder();
+                } else {
+                    lValues.append(',');
+                }
+                lValues.append(lLine.substring(lPos + 1).trim());
+            }
+        }
+        return (null != lValues) ? lValues.toString() : null;
+    }
+}
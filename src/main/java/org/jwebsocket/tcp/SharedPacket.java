@@ -0,0 +1,125 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Shared (broadcast) packet
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.nio.ByteBuffer;
+import org.jwebsocket.api.WebSocketPacket;
+import org.jwebsocket.kit.RawPacket;
+
+/**
+ * A packet that is sent unchanged to many connectors (e.g. a broadcast). The
+ * engines cache the work derived from its payload, like the compressed
+ * payload and the encoded frames, so it is done once instead of once per
+ * recipient. The payload must not be changed once the packet has been sent.
+ */
+public class SharedPacket extends RawPacket {
+
+    private volatile byte[] mDeflated;
+    // the encoded frames, usually one per protocol family
+    private volatile Frame mFrames;
+
+    private static class Frame {
+
+        private final int mKey;
+        private final byte[] mData;
+        private final ByteBuffer mBuffer;
+        private final Frame mNext;
+
+        private Frame(int aKey, byte[] aData, Frame aNext) {
+            mKey = aKey;
+            mData = aData;
+            mBuffer = ByteBuffer.wrap(aData).asReadOnlyBuffer();
+            mNext = aNext;
+        }
+    }
+
+    /**
+     *
+     * @param aPacket The packet to be shared
+     */
+    public SharedPacket(WebSocketPacket aPacket) {
+        super(aPacket.getByteArray());
+        if (null != aPacket.getFrameType()) {
+            setFrameType(aPacket.getFrameType());
+        }
+    }
+
+    /**
+     * Returns the payload compressed without context takeover, it's computed
+     * by the first caller only.
+     *
+     * @param aDeflate
+     * @return
+     */
+    byte[] getDeflated(PerMessageDeflate aDeflate) {
+        byte[] lDeflated = mDeflated;
+        if (null == lDeflated) {
+            synchronized (this) {
+                lDeflated = mDeflated;
+                if (null == lDeflated) {
+                    lDeflated = aDeflate.compress(getByteArray());
+                    mDeflated = lDeflated;
+                }
+            }
+        }
+        return lDeflated;
+    }
+
+    /**
+     * Returns an encoded frame of this packet, the frame must not be changed.
+     *
+     * @param aKey The key of the frame encoding
+     * @return The frame, <tt>null</tt> if it has not been encoded yet
+     */
+    public byte[] getFrame(int aKey) {
+        Frame lFrame = findFrame(aKey);
+        return (null != lFrame) ? lFrame.mData : null;
+    }
+
+    /**
+     * Returns a read-only buffer of an encoded frame, each call returns a new
+     * buffer sharing the same data, so it can be written independently.
+     *
+     * @param aKey The key of the frame encoding
+     * @return The frame, <tt>null</tt> if it has not been encoded yet
+     */
+    public ByteBuffer getFrameBuffer(int aKey) {
+        Frame lFrame = findFrame(aKey);
+        return (null != lFrame) ? lFrame.mBuffer.duplicate() : null;
+    }
+
+    /**
+     * Caches an encoded frame, unless a frame has been cached for the key
+     * already.
+     *
+     * @param aKey The key of the frame encoding
+     * @param aFrame
+     */
+    public synchronized void putFrame(int aKey, byte[] aFrame) {
+        if (null == findFrame(aKey)) {
+            mFrames = new Frame(aKey, aFrame, mFrames);
+        }
+    }
+
+    private Frame findFrame(int aKey) {
+        for (Frame lFrame = mFrames; null != lFrame; lFrame = lFrame.mNext) {
+            if (aKey == lFrame.mKey) {
+                return lFrame;
+            }
+        }
+        return null;
+    }
+}
@@ -19,8 +19,10 @@ import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 import javax.net.ssl.SSLSocket;
 import org.apache.log4j.Logger;
 import org.jwebsocket.api.WebSocketConnector;
@@ -32,6 +34,10 @@ import org.jwebsocket.config.JWebSocketCommonConstants;
 import org.jwebsocket.connectors.BaseConnector;
 import org.jwebsocket.kit.*;
 import org.jwebsocket.logging.Logging;
+import org.jwebsocket.tcp.nio.FrameDecoder;
+import org.jwebsocket.tcp.nio.FrameEncoder;
+import org.jwebsocket.tcp.nio.HixieDecoder;
+import org.jwebsocket.tcp.nio.MessageAssembler;
 import org.jwebsocket.util.Tools;
 
 /**
@@ -45,8 +51,10 @@ public class TCPConnector extends BaseConnector {
     private static Logger mLog = Logging.getLogger();
     private InputStream mIn = null;
     private OutputStream mOut = null;
+    private OutputStream mSocketOut = null;
     private Socket mClientSocket = null;
     private static final int CONNECT_TIMEOUT = 2000;
+    private static final int HANDSHAKE_BUFFER_SIZE = 4096;
     /**
      *
      */
@@ -59,6 +67,10 @@ public class TCPConnector extends BaseConnector {
     private CloseReason mCloseReason = CloseReason.TIMEOUT;
     private Thread mClientThread = null;
     private TimeoutOutputStreamNIOWriter mOutputStreamNIOSender;
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    private volatile PerMessageDeflate mDeflate = null;
+    private AdmissionController mAdmission = null;
 
     /**
      * creates a new TCP connector for the passed engine using the passed client
@@ -75,10 +87,11 @@ public class TCPConnector extends BaseConnector {
         mLogInfo = isSSL() ? SSL_LOG : TCP_LOG;
         try {
             mIn = mClientSocket.getInputStream();
-            mOut = mClientSocket.getOutputStream();
+            mSocketOut = mClientSocket.getOutputStream();
+            // a frame (header and payload) is written with a single system call on flush
+            mOut = new BufferedOutputStream(mSocketOut, WRITE_BUFFER_SIZE);
 
-            // @TODO: Make the timeout constructor argument configurable for the future
-            mOutputStreamNIOSender = new TimeoutOutputStreamNIOWriter(this, mIn, mOut, 1000);
+            mOutputStreamNIOSender = createWriter(aEngine);
         } catch (IOException lEx) {
             mLog.error(lEx.getClass().getSimpleName()
                     + " instantiating "
@@ -87,6 +100,33 @@ public class TCPConnector extends BaseConnector {
         }
     }
 
+    /**
+     * Creates the writer that sends the packets of {@link #sendPacket}, called
+     * by the constructor once the streams are open. Connectors that send their
+     * packets on their own return <tt>null</tt>.
+     *
+     * @param aEngine
+     * @return
+     */
+    protected TimeoutOutputStreamNIOWriter createWriter(WebSocketEngine aEngine) {
+        if (aEngine instanceof TCPEngine) {
+            TCPEngine lEngine = (TCPEngine) aEngine;
+            return new TimeoutOutputStreamNIOWriter(this, mIn, mSocketOut,
+                    lEngine.getWriteTimeout(), lEngine.getWriteHighWatermark());
+        }
+        return new TimeoutOutputStreamNIOWriter(this, mIn, mSocketOut, 1000);
+    }
+
+    /**
+     * Sets the admission control that counts the connection as pending
+     * handshake, it's notified once the handshake is finished.
+     *
+     * @param aAdmission
+     */
+    void setAdmissionController(AdmissionController aAdmission) {
+        mAdmission = aAdmission;
+    }
+
     @Override
     public void startConnector() {
         int lPort = -1;
@@ -112,8 +152,7 @@ public class TCPConnector extends BaseConnector {
         }
         // pass reference to connector instance to reader thread
         ClientProcessor lClientProc = new ClientProcessor(this);
-        mClientThread = new Thread(lClientProc);
-        mClientThread.start();
+        startReader(lClientProc);
         if (mLog.isInfoEnabled()) {
             mLog.info("Started " + mLogInfo + " connector" + lNodeStr + " on port "
                     + lPort + " with timeout "
@@ -121,6 +160,72 @@ public class TCPConnector extends BaseConnector {
         }
     }
 
+    /**
+     * Starts the reader of this connector, by the client processor pool of
+     * the engine if it has one.
+     *
+     * @param aReader
+     * @throws RejectedExecutionException if the pool is saturated
+     */
+    protected void startReader(Runnable aReader) {
+        ClientProcessorPool lPool = (getEngine() instanceof TCPEngine)
+                ? ((TCPEngine) getEngine()).getClientProcessorPool() : null;
+        if (null != lPool) {
+            lPool.execute(aReader);
+        } else {
+            mClientThread = createReaderThread(aReader);
+            mClientThread.start();
+        }
+    }
+
+    /**
+     * Closes a connection that could not be started, because the client
+     * processor pool was saturated.
+     */
+    void rejectConnector() {
+        mCloseReason = CloseReason.SERVER_REJECT_CONNECTION;
+        try {
+            // resetting the connection, nothing has been sent yet
+            mClientSocket.setSoLinger(true, 0);
+            mClientSocket.close();
+        } catch (IOException lEx) {
+            mLog.error(Logging.getSimpleExceptionMessage(lEx, "closing socket"));
+        } finally {
+            if (null != mAdmission) {
+                mAdmission.handshakeFinished();
+            }
+            connectorTerminated(mCloseReason);
+        }
+    }
+
+    /**
+     * Creates the thread that executes the handshake and reads the incoming
+     * frames of this connector.
+     *
+     * @param aReader
+     * @return
+     */
+    protected Thread createReaderThread(Runnable aReader) {
+        return new Thread(aReader);
+    }
+
+    /**
+     *
+     * @return The client socket of this connector
+     */
+    protected Socket getSocket() {
+        return mClientSocket;
+    }
+
+    /**
+     * Called by the reader thread once the streams and the socket have been
+     * closed, before the engine is notified.
+     *
+     * @param aCloseReason
+     */
+    protected void connectorTerminated(CloseReason aCloseReason) {
+    }
+
     /**
      * This closes all streams, the client socket and shuts down the tread.
      *
@@ -129,8 +234,12 @@ public class TCPConnector extends BaseConnector {
     private void terminateConnector(CloseReason aCloseReason) {
         setStatus(WebSocketConnectorStatus.DOWN);
         int lPort = mClientSocket.getPort();
+        if (null != mDeflate) {
+            mDeflate.release();
+        }
         try {
-            mOut.close();
+            // not flushing the buffered data, the peer may not read anymore
+            mSocketOut.close();
         } catch (IOException lEx) {
             mLog.error(lEx.getClass().getSimpleName()
                     + " while closing outbound stream for " + mLogInfo
@@ -231,11 +340,8 @@ public class TCPConnector extends BaseConnector {
         String lExMsg = null;
         try {
             if (mClientSocket.isConnected()) {
-                if (isHixie()) {
-                    sendHixie(aDataPacket);
-                } else {
-                    sendHybi(getVersion(), aDataPacket);
-                }
+                writePacket(aDataPacket);
+                flushPackets();
                 lSendSuccess = true;
             } else {
                 mLog.error("Trying to send to closed connection: "
@@ -255,16 +361,13 @@ public class TCPConnector extends BaseConnector {
     }
 
     /*
-     * this is called by the TimeoutOutputstreamWriter, the data is first
-     * written into a queue and then send by a watched thread
+     * writes and flushes a single packet immediately, the packets passed to
+     * sendPacket are queued and written in batches by the
+     * TimeoutOutputStreamNIOWriter instead
      */
     public synchronized void _sendPacket(WebSocketPacket aDataPacket) {
         try {
-            if (isHixie()) {
-                sendHixie(aDataPacket);
-            } else {
-                sendHybi(getVersion(), aDataPacket);
-            }
+            writePacket(aDataPacket);
             mOut.flush();
         } catch (IOException lEx) {
             // in case a socket gets closed due to a timeout
@@ -277,6 +380,30 @@ public class TCPConnector extends BaseConnector {
         }
     }
 
+    /**
+     * Writes a packet into the output buffer of the connector without
+     * flushing it, packets exceeding the buffer are written through.
+     *
+     * @param aDataPacket
+     * @throws IOException
+     */
+    protected synchronized void writePacket(WebSocketPacket aDataPacket) throws IOException {
+        if (isHixie()) {
+            sendHixie(aDataPacket);
+        } else {
+            sendHybi(getVersion(), aDataPacket);
+        }
+    }
+
+    /**
+     * Writes the buffered packets to the socket.
+     *
+     * @throws IOException
+     */
+    protected synchronized void flushPackets() throws IOException {
+        mOut.flush();
+    }
+
     @Override
     public void sendPacket(WebSocketPacket aDataPacket) {
         mOutputStreamNIOSender.sendPacket(aDataPacket);
@@ -291,7 +418,13 @@ public class TCPConnector extends BaseConnector {
     }
 
     private void sendHixie(WebSocketPacket aDataPacket) throws IOException {
-        // exception handling is done in sendPacket method
+        // exception handling and flushing is done in sendPacket method
+        if (aDataPacket instanceof SharedPacket
+                && aDataPacket.getFrameType() != WebSocketFrameType.BINARY) {
+            // a broadcast is encoded once for all recipients
+            mOut.write(FrameEncoder.getSharedFrame((SharedPacket) aDataPacket, true, 0, null));
+            return;
+        }
         if (aDataPacket.getFrameType() == WebSocketFrameType.BINARY) {
             // each packet is enclosed in 0xFF<length><data>
             // TODO: for future use! Not yet finally spec'd in IETF drafts!
@@ -300,22 +433,62 @@ public class TCPConnector extends BaseConnector {
             // TODO: implement multi byte length!
             mOut.write(lBA.length);
             mOut.write(lBA);
-            mOut.flush();
         } else {
             // each packet is enclosed in 0x00<data>0xFF
             mOut.write(0x00);
             mOut.write(aDataPacket.getByteArray());
             mOut.write(0xFF);
-            mOut.flush();
         }
     }
 
+    /**
+     *
+     * @return The negotiated permessage-deflate extension, <tt>null</tt> if
+     * messages are not compressed
+     */
+    public PerMessageDeflate getDeflate() {
+        return mDeflate;
+    }
+
     // TODO: implement fragmentation for packet sending
     private void sendHybi(int aVersion, WebSocketPacket aDataPacket) throws IOException {
-        // exception handling is done in sendPacket method
+        // exception handling and flushing is done in sendPacket method
+        PerMessageDeflate lDeflate = mDeflate;
+        boolean lCompress = null != lDeflate && lDeflate.isCompressible(aDataPacket);
+        if (aDataPacket instanceof SharedPacket && (!lCompress || lDeflate.isServerNoContextTakeover())) {
+            // a broadcast is encoded once for all recipients
+            byte[] lPacket;
+            try {
+                lPacket = FrameEncoder.getSharedFrame((SharedPacket) aDataPacket, false, aVersion,
+                        lCompress ? lDeflate : null);
+            } catch (IllegalStateException lEx) {
+                // the connector has been closed in the meantime
+                throw new IOException(lEx.getMessage());
+            }
+            mOut.write(lPacket);
+            return;
+        }
+        if (lCompress) {
+            // with context takeover the frames must be written in compression order
+            synchronized (lDeflate) {
+                byte[] lPayload;
+                try {
+                    lPayload = lDeflate.compress(aDataPacket);
+                } catch (IllegalStateException lEx) {
+                    // the connector has been closed in the meantime
+                    throw new IOException(lEx.getMessage());
+                }
+                byte[] lPacket = new byte[FrameEncoder.getHeaderLength(lPayload.length) + lPayload.length];
+                ByteBuffer lFrame = ByteBuffer.wrap(lPacket);
+                FrameEncoder.putHeader(lFrame, FrameEncoder.getFirstByte(aVersion,
+                        aDataPacket.getFrameType(), true), lPayload.length);
+                lFrame.put(lPayload);
+                mOut.write(lPacket);
+            }
+            return;
+        }
         byte[] lPacket = WebSocketProtocolAbstraction.rawToProtocolPacket(aVersion, aDataPacket);
         mOut.write(lPacket);
-        mOut.flush();
     }
 
     private RequestHeader processHandshake(Socket aClientSocket)
@@ -324,35 +497,50 @@ public class TCPConnector extends BaseConnector {
         InputStream lIn = aClientSocket.getInputStream();
         OutputStream lOut = aClientSocket.getOutputStream();
 
-        ByteArrayOutputStream lBAOS = new ByteArrayOutputStream(4096);
-        byte[] lBuff = new byte[4096];
-        int lRead = 0, lTotal = 0;
-        long lStart = System.currentTimeMillis();
-        do {
-            lRead = lIn.read(lBuff, 0, lBuff.length);
-            if (lRead != -1) {
-                lTotal += lRead;
-                lBAOS.write(lBuff, 0, lRead);
-                String lAsStr = lBAOS.toString();
-                if (null != lAsStr
-                        && lAsStr.indexOf("\r\n\r\n") > 0) {
+        int lMaxSize = (getEngine() instanceof TCPEngine)
+                ? ((TCPEngine) getEngine()).getMaxHandshakeSize()
+                : HANDSHAKE_BUFFER_SIZE;
+        // the request may arrive in several reads, each byte is scanned once
+        HandshakeScanner lScanner = new HandshakeScanner(lMaxSize);
+        byte[] lBuff = new byte[Math.min(HANDSHAKE_BUFFER_SIZE, lMaxSize)];
+        int lSoTimeout = aClientSocket.getSoTimeout();
+        long lDeadline = TimingWheel.now() + CONNECT_TIMEOUT;
+        try {
+            while (true) {
+                long lRemaining = lDeadline - TimingWheel.now();
+                if (lRemaining <= 0) {
                     break;
                 }
-            } else {
-                try {
-                    Thread.sleep(20);
-                } catch (InterruptedException ex) {
+                aClientSocket.setSoTimeout((int) lRemaining);
+                int lRead = lIn.read(lBuff, 0, lBuff.length);
+                if (lRead < 0 || lScanner.append(lBuff, 0, lRead)) {
+                    break;
                 }
             }
-        } while (System.currentTimeMillis() - lStart < CONNECT_TIMEOUT);
-        if (lTotal <= 0) {
+        } catch (SocketTimeoutException lEx) {
+            // handled below as incomplete request
+        } catch (WebSocketException lEx) {
+            mLog.warn("Connection "
+                    + aClientSocket.getInetAddress() + ":"
+                    + aClientSocket.getPort() + ": " + lEx.getMessage());
+            return null;
+        } finally {
+            aClientSocket.setSoTimeout(lSoTimeout);
+        }
+        if (!lScanner.isComplete()) {
             mLog.warn("Connection "
                     + aClientSocket.getInetAddress() + ":"
                     + aClientSocket.getPort()
-                    + " did not detect initial handshake (total bytes read: " + lTotal + ").");
+                    + " did not detect initial handshake (total bytes read: "
+                    + lScanner.size() + ").");
             return null;
         }
-        byte[] lReq = lBAOS.toByteArray();
+        byte[] lReq = lScanner.getRequest();
+        byte[] lRemainder = lScanner.getRemainder();
+        if (null != lRemainder) {
+            // data sent right after the request is processed by the reader
+            mIn = new SequenceInputStream(new ByteArrayInputStream(lRemainder), mIn);
+        }
 
         /*
          * please keep comment for debugging purposes!
@@ -387,6 +575,12 @@ public class TCPConnector extends BaseConnector {
             }
             return null;
         }
+        PerMessageDeflate lDeflate = PerMessageDeflate.negotiate(getEngine().getConfiguration(),
+                lReq, lHeader.getVersion(), EngineUtils.getMaxMessageSize(getEngine().getConfiguration()));
+        if (null != lDeflate) {
+            lBA = lDeflate.addResponseHeader(lBA);
+            mDeflate = lDeflate;
+        }
 
         /*
          * please keep comment for debugging purposes!
@@ -455,8 +649,13 @@ public class TCPConnector extends BaseConnector {
                 // to achieve better latency, no waiting and packaging.
                 mClientSocket.setTcpNoDelay(true);
 
+                long lHandshakeStarted = TimingWheel.now();
                 RequestHeader lHeader = processHandshake(mClientSocket);
                 if (lHeader != null) {
+                    if (lEngine instanceof TCPEngine) {
+                        ((TCPEngine) lEngine).getHandshakeHistogram().record(
+                                TimingWheel.now() - lHandshakeStarted);
+                    }
                     setHeader(lHeader);
                     int lSessionTimeout = lHeader.getTimeout(getEngine().getSessionTimeout());
                     if (lSessionTimeout > 0) {
@@ -480,16 +679,21 @@ public class TCPConnector extends BaseConnector {
                 }
             } catch (IOException lEx) {
                 mLog.error(Logging.getSimpleExceptionMessage(lEx, "executing handshake"));
+            } finally {
+                if (null != mAdmission) {
+                    mAdmission.handshakeFinished();
+                }
             }
-            try {
-                if (!lOk) {
-                    // if header could not be parsed properly
-                    // immediately disconnect the client.
+            if (!lOk) {
+                // if header could not be parsed properly
+                // immediately disconnect the client.
+                try {
                     mClientSocket.close();
-                    return;
+                } catch (Exception lEx) {
+                    mLog.error(Logging.getSimpleExceptionMessage(lEx, "closing socket"));
+                } finally {
+                    connectorTerminated(mCloseReason);
                 }
-            } catch (Exception lEx) {
-                mLog.error(Logging.getSimpleExceptionMessage(lEx, "closing socket"));
                 return;
             }
 
@@ -513,6 +717,7 @@ public class TCPConnector extends BaseConnector {
                 }
             } finally {
                 terminateConnector(mCloseReason);
+                connectorTerminated(mCloseReason);
             }
 
             // call client stopped method of engine
@@ -527,35 +732,29 @@ public class TCPConnector extends BaseConnector {
         }
 
         private void processHixie(WebSocketEngine aEngine) {
-            ByteArrayOutputStream lBuff = new ByteArrayOutputStream();
+            int lMaxFramesize = aEngine.getConfiguration().getMaxFramesize();
+            HixieDecoder lDecoder = new HixieDecoder(lMaxFramesize);
             while (WebSocketConnectorStatus.UP == getStatus()) {
                 try {
-                    int lIn = WebSocketProtocolAbstraction.read(mIn);
-                    // start of frame
-                    if (lIn == 0x00) {
-                        lBuff.reset();
-                        // end of frame
-                    } else if (lIn == 0xFF) {
-                        RawPacket lPacket = new RawPacket(lBuff.toByteArray());
-                        try {
-                            aEngine.processPacket(mConnector, lPacket);
-                            //Reading pending packets in the buffer (for high concurrency scenarios)
-                            if (mIn.available() > 0) {
-                                processHixie(aEngine);
-                            }
-                        } catch (IOException lEx) {
-                            mLog.error(lEx.getClass().getSimpleName()
-                                    + " in processPacket of connector "
-                                    + mConnector.getClass().getSimpleName()
-                                    + ": " + lEx.getMessage());
-                        }
-                        lBuff.reset();
-                    } else if (lIn < 0) {
+                    // one read per buffer, the data is decoded in place
+                    int lRead = lDecoder.read(mIn, READ_BUFFER_SIZE);
+                    if (lRead < 0) {
                         mCloseReason = CloseReason.CLIENT;
                         setStatus(WebSocketConnectorStatus.DOWN);
-                        // any other byte within or outside a frame
-                    } else {
-                        lBuff.write(lIn);
+                        break;
+                    }
+
+                    // processing all complete frames in the buffer iteratively,
+                    // an incomplete frame remains in the decoder until the next read
+                    WebSocketPacket lPacket;
+                    while (WebSocketConnectorStatus.UP == getStatus()
+                            && null != (lPacket = lDecoder.nextPacket())) {
+                        if (WebSocketFrameType.CLOSE == lPacket.getFrameType()) {
+                            mCloseReason = CloseReason.CLIENT;
+                            setStatus(WebSocketConnectorStatus.DOWN);
+                            break;
+                        }
+                        aEngine.processPacket(mConnector, lPacket);
                     }
                 } catch (SocketTimeoutException lEx) {
                     mLog.error(lEx.getClass().getSimpleName()
@@ -574,67 +773,96 @@ public class TCPConnector extends BaseConnector {
         private void processHybi(int aVersion, WebSocketEngine aEngine) {
 
             String lFrom = getRemoteHost() + ":" + getRemotePort() + " (" + getId() + ")";
+            FrameDecoder lDecoder = new FrameDecoder(aVersion,
+                    aEngine.getConfiguration().getMaxFramesize());
+            MessageAssembler lAssembler = new MessageAssembler(
+                    EngineUtils.getMaxMessageSize(aEngine.getConfiguration()));
             while (WebSocketConnectorStatus.UP == getStatus()) {
                 try {
-                    WebSocketPacket lPacket = WebSocketProtocolAbstraction.protocolToRawPacket(aVersion, mIn);
-                    if (lPacket == null) {
+                    // one read per buffer, small frames are decoded in place
+                    int lRead = lDecoder.read(mIn, READ_BUFFER_SIZE);
+                    if (lRead < 0) {
                         if (mLog.isDebugEnabled()) {
                             mLog.debug("Processing client 'disconnect' from " + lFrom + "...");
                         }
                         mCloseReason = CloseReason.CLIENT;
                         setStatus(WebSocketConnectorStatus.DOWN);
-                    } else if (WebSocketFrameType.TEXT.equals(lPacket.getFrameType())) {
-                        if (mLog.isDebugEnabled()) {
-                            mLog.debug("Processing 'text' frame from " + lFrom + "...");
-                        }
-                        aEngine.processPacket(mConnector, lPacket);
-                        //Reading pending packets in the buffer (for high concurrency scenarios)
-                        if (mIn.available() > 0) {
-                            processHybi(aVersion, aEngine);
-                        }
-                    }  else if (WebSocketFrameType.BINARY.equals(lPacket.getFrameType())) {
-                        if (mLog.isDebugEnabled()) {
-                            mLog.debug("Processing 'binary' frame from " + lFrom + "...");
-                        }
-                        // FIXME: How is TEXT vs. BINARY intended to be handled?
-                        // Are both TEXT (in which case they MUST be UTF-8) and
-                        // BINARY both "packets"?
-                        aEngine.processPacket(mConnector, lPacket);
-                        // FIXME: Reading pending packets in the buffer here?
-                    } else if (WebSocketFrameType.PING.equals(lPacket.getFrameType())) {
-                        if (mLog.isDebugEnabled()) {
-                            mLog.debug("Processing 'ping' frame from " + lFrom + "...");
-                        }
-                        WebSocketPacket lPong = new RawPacket(WebSocketFrameType.PONG, "");
-                        sendPacket(lPong);
-                        // Reply with a pong.
-                    } else if (WebSocketFrameType.PONG.equals(lPacket.getFrameType())) {
-                        if (mLog.isDebugEnabled()) {
-                            mLog.debug("Received 'pong' frame from " + lFrom + "...");
-                        }
-                        // Do nothing.
-                    } else if (WebSocketFrameType.CLOSE.equals(lPacket.getFrameType())) {
-                        if (mLog.isDebugEnabled()) {
-                            mLog.debug("Processing 'close' frame from " + lFrom + "...");
-                        }
-                        mCloseReason = CloseReason.CLIENT;
-                        setStatus(WebSocketConnectorStatus.DOWN);
+                        break;
+                    }
 
-                        // As per spec, server must respond to CLOSE with
-                        // acknowledgement CLOSE (maybe this should be handled
-                        // higher up in the hierarchy?).
-                        WebSocketPacket lClose = new RawPacket(WebSocketFrameType.CLOSE, "");
-                        sendPacket(lClose);
-                        // the streams are closed in the run method
-                    } else {
-                        mLog.error("Unknown frame type '" + lPacket.getFrameType()
-                                + "', closing connection.");
-                        // Close on unknown frame types: required by hybi 10+. 
-                        mCloseReason = CloseReason.SERVER;
-                        setStatus(WebSocketConnectorStatus.DOWN);
-                        WebSocketPacket lClose = new RawPacket("");
-                        lClose.setFrameType(WebSocketFrameType.CLOSE);
-                        sendPacket(lClose);
+                    // processing all complete frames in the buffer (for high concurrency scenarios),
+                    // incomplete frames remain in the decoder until the next read
+                    WebSocketPacket lPacket;
+                    while (WebSocketConnectorStatus.UP == getStatus()
+                            && null != (lPacket = lDecoder.nextPacket())) {
+                        if (WebSocketFrameType.TEXT.equals(lPacket.getFrameType())
+                                || WebSocketFrameType.BINARY.equals(lPacket.getFrameType())
+                                || WebSocketFrameType.FRAGMENT.equals(lPacket.getFrameType())) {
+                            if (mLog.isDebugEnabled()) {
+                                mLog.debug("Processing '" + lPacket.getFrameType()
+                                        + "' frame from " + lFrom + "...");
+                            }
+                            // fragmented messages are passed on once they are complete
+                            WebSocketPacket lMessage;
+                            try {
+                                lMessage = lAssembler.assemble(lPacket,
+                                        lDecoder.isFinalFragment(), lDecoder.isRsv1());
+                                if (null != lMessage && lAssembler.isCompressed()) {
+                                    if (null == mDeflate) {
+                                        throw new WebSocketException("Compressed message without negotiated extension.");
+                                    }
+                                    lMessage = new RawPacket(lMessage.getFrameType(),
+                                            mDeflate.decompress(lMessage.getByteArray()));
+                                }
+                            } catch (WebSocketException lEx) {
+                                mLog.warn("Closing connector '" + getId() + "': " + lEx.getMessage());
+                                mCloseReason = CloseReason.SERVER;
+                                setStatus(WebSocketConnectorStatus.DOWN);
+                                WebSocketPacket lClose = new RawPacket(WebSocketFrameType.CLOSE,
+                                        WebSocketProtocolAbstraction.calcCloseData(
+                                        lAssembler.getCloseCode(), lEx.getMessage()));
+                                sendPacket(lClose);
+                                break;
+                            }
+                            if (null != lMessage) {
+                                aEngine.processPacket(mConnector, lMessage);
+                            }
+                        } else if (WebSocketFrameType.PING.equals(lPacket.getFrameType())) {
+                            if (mLog.isDebugEnabled()) {
+                                mLog.debug("Processing 'ping' frame from " + lFrom + "...");
+                            }
+                            // Reply with a pong.
+                            WebSocketPacket lPong = new RawPacket(WebSocketFrameType.PONG,
+                                    lPacket.getByteArray());
+                            sendPacket(lPong);
+                        } else if (WebSocketFrameType.PONG.equals(lPacket.getFrameType())) {
+                            if (mLog.isDebugEnabled()) {
+                                mLog.debug("Received 'pong' frame from " + lFrom + "...");
+                            }
+                            // Do nothing.
+                        } else if (WebSocketFrameType.CLOSE.equals(lPacket.getFrameType())) {
+                            if (mLog.isDebugEnabled()) {
+                                mLog.debug("Processing 'close' frame from " + lFrom + "...");
+                            }
+                            mCloseReason = CloseReason.CLIENT;
+                            setStatus(WebSocketConnectorStatus.DOWN);
+
+                            // As per spec, server must respond to CLOSE with
+                            // acknowledgement CLOSE (maybe this should be handled
+                            // higher up in the hierarchy?).
+                            WebSocketPacket lClose = new RawPacket(WebSocketFrameType.CLOSE, "");
+                            sendPacket(lClose);
+                            // the streams are closed in the run method
+                        } else {
+                            mLog.error("Unknown frame type '" + lPacket.getFrameType()
+                                    + "', closing connection.");
+                            // Close on unknown frame types: required by hybi 10+. 
+                            mCloseReason = CloseReason.SERVER;
+                            setStatus(WebSocketConnectorStatus.DOWN);
+                            WebSocketPacket lClose = new RawPacket("");
+                            lClose.setFrameType(WebSocketFrameType.CLOSE);
+                            sendPacket(lClose);
+                        }
                     }
                 } catch (SocketTimeoutException lEx) {
                     mLog.error(lEx.getClass().getSimpleName() + " reading hybi (" + getId() + "): " + lEx.getMessage());
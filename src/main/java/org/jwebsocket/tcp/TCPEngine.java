@@ -22,6 +22,7 @@ import java.net.Socket;
 import java.net.URL;
 import java.security.KeyStore;
 import java.util.Date;
+import java.util.concurrent.RejectedExecutionException;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocket;
@@ -48,6 +49,12 @@ import org.jwebsocket.logging.Logging;
 public class TCPEngine extends BaseEngine {
 
     private static Logger mLog = Logging.getLogger();
+    private static final String WRITE_TIMEOUT_CONFIG_KEY = "write_timeout";
+    private static final int DEFAULT_WRITE_TIMEOUT = 1000;
+    private static final String WRITE_HIGH_WATERMARK_CONFIG_KEY = "write_high_watermark";
+    private static final int DEFAULT_WRITE_HIGH_WATERMARK = 4 * 1024 * 1024;
+    private static final String MAX_HANDSHAKE_SIZE_CONFIG_KEY = "max_handshake_size";
+    private static final int DEFAULT_MAX_HANDSHAKE_SIZE = 16 * 1024;
     private ServerSocket mTCPServerSocket = null;
     private SSLServerSocket mSSLServerSocket = null;
     private int mTCPListenerPort = JWebSocketCommonConstants.DEFAULT_PORT;
@@ -59,6 +66,12 @@ public class TCPEngine extends BaseEngine {
     private boolean mEventsFired = false;
     private Thread mTCPEngineThread = null;
     private Thread mSSLEngineThread = null;
+    private AdmissionController mAdmission = null;
+    private ClientProcessorPool mClientProcessorPool = null;
+    private final int mWriteTimeout;
+    private final long mWriteHighWatermark;
+    private final int mMaxHandshakeSize;
+    private final Histogram mHandshakeHistogram = new Histogram("ms");
 
     public TCPEngine(EngineConfiguration aConfiguration) {
         super(aConfiguration);
@@ -67,16 +80,23 @@ public class TCPEngine extends BaseEngine {
         mSessionTimeout = aConfiguration.getTimeout();
         mKeyStore = aConfiguration.getKeyStore();
         mKeyStorePassword = aConfiguration.getKeyStorePassword();
+        mWriteTimeout = EngineUtils.getIntSetting(aConfiguration,
+                WRITE_TIMEOUT_CONFIG_KEY, DEFAULT_WRITE_TIMEOUT);
+        mWriteHighWatermark = EngineUtils.getIntSetting(aConfiguration,
+                WRITE_HIGH_WATERMARK_CONFIG_KEY, DEFAULT_WRITE_HIGH_WATERMARK);
+        mMaxHandshakeSize = EngineUtils.getIntSetting(aConfiguration,
+                MAX_HANDSHAKE_SIZE_CONFIG_KEY, DEFAULT_MAX_HANDSHAKE_SIZE);
     }
 
     @Override
     public void startEngine()
             throws WebSocketException {
 
-        // start timeout surveillance timer
-        TimeoutOutputStreamNIOWriter.startTimer();
+        startWriters();
 
         setSessionTimeout(mSessionTimeout);
+        mAdmission = new AdmissionController(getConfiguration());
+        mClientProcessorPool = createClientProcessorPool();
 
         // create unencrypted server socket for ws:// protocol
         if (mLog.isDebugEnabled()) {
@@ -318,7 +338,30 @@ public class TCPEngine extends BaseEngine {
             }
         }
 
-        // stop timeout surveillance timer
+        if (null != mClientProcessorPool) {
+            if (mLog.isDebugEnabled()) {
+                mLog.debug("TCP client processors '" + getId() + "': "
+                        + mClientProcessorPool + ".");
+            }
+            mClientProcessorPool.shutdown();
+        }
+
+        stopWriters();
+    }
+
+    /**
+     * Starts the shared writer pool and the write timeout surveillance timer
+     * of the {@link TimeoutOutputStreamNIOWriter}, called on engine start.
+     */
+    protected void startWriters() {
+        TimeoutOutputStreamNIOWriter.startTimer();
+    }
+
+    /**
+     * Stops the shared writer pool and the write timeout surveillance timer,
+     * called on engine stop.
+     */
+    protected void stopWriters() {
         TimeoutOutputStreamNIOWriter.stopTimer();
     }
 
@@ -348,6 +391,77 @@ public class TCPEngine extends BaseEngine {
         return (mTCPEngineThread != null && mTCPEngineThread.isAlive());
     }
 
+    /**
+     *
+     * @return The admission control of new connections, with the counters of
+     * the rejected connections
+     */
+    public AdmissionController getAdmissionController() {
+        return mAdmission;
+    }
+
+    /**
+     *
+     * @return The maximum number of bytes queued per connector
+     */
+    public long getWriteHighWatermark() {
+        return mWriteHighWatermark;
+    }
+
+    /**
+     *
+     * @return The time in milliseconds a write may block
+     */
+    public int getWriteTimeout() {
+        return mWriteTimeout;
+    }
+
+    /**
+     *
+     * @return The maximum size of a handshake request in bytes
+     */
+    public int getMaxHandshakeSize() {
+        return mMaxHandshakeSize;
+    }
+
+    /**
+     *
+     * @return The time from the start of a handshake to the flushed
+     * response, recorded for the accepted connections
+     */
+    public Histogram getHandshakeHistogram() {
+        return mHandshakeHistogram;
+    }
+
+    /**
+     *
+     * @return The pool of the threads reading the connections, with its
+     * saturation metrics, <tt>null</tt> if each connector has its own thread
+     */
+    public ClientProcessorPool getClientProcessorPool() {
+        return mClientProcessorPool;
+    }
+
+    /**
+     * Creates the pool of the threads reading the connections when the engine
+     * is started.
+     *
+     * @return The pool or <tt>null</tt> if each connector has its own thread
+     */
+    protected ClientProcessorPool createClientProcessorPool() {
+        return new ClientProcessorPool(getConfiguration());
+    }
+
+    /**
+     * Creates the connector for an accepted client socket.
+     *
+     * @param aClientSocket
+     * @return
+     */
+    protected TCPConnector createConnector(Socket aClientSocket) {
+        return new TCPConnector(this, aClientSocket);
+    }
+
     private class EngineListener implements Runnable {
 
         private WebSocketEngine mEngine = null;
@@ -425,13 +539,40 @@ public class TCPEngine extends BaseEngine {
                         }
                     }
 
+                    // rejecting early, before any connector is created, the
+                    // maximum number of connections is checked above
+                    boolean lAdmitted = false;
+                    if (!lReject && !lRedirect) {
+                        AdmissionController.Reason lRejection = mAdmission.admit(
+                                lClientSocket.getInetAddress(), 0, 0);
+                        if (null != lRejection) {
+                            if (mLog.isDebugEnabled()) {
+                                mLog.debug("Closing incoming socket client on port '"
+                                        + lClientSocket.getPort() + "' (" + lRejection + ")...");
+                            }
+                            try {
+                                // resetting the connection, nothing is pending to be sent
+                                lClientSocket.setSoLinger(true, 0);
+                                lClientSocket.close();
+                            } catch (IOException lEx) {
+                                // the client reset the connection already
+                            }
+                            continue;
+                        }
+                        // the pending handshake is released by the connector
+                        lAdmitted = true;
+                    }
+
                     if (mLog.isDebugEnabled()) {
                         mLog.debug("Client trying to connect on port #"
                                 + lClientSocket.getPort() + "...");
                     }
 
                     try {
-                        WebSocketConnector lConnector = new TCPConnector(mEngine, lClientSocket);
+                        TCPConnector lConnector = createConnector(lClientSocket);
+                        if (lAdmitted) {
+                            lConnector.setAdmissionController(mAdmission);
+                        }
 
                         // Check for maximum connections reached strategies
                         if (lReject) {
@@ -460,7 +601,19 @@ public class TCPEngine extends BaseEngine {
                             // log.debug("Adding connector to engine...");
                             getConnectors().put(lConnector.getId(), lConnector);
                             //Starting new connection
-                            lConnector.startConnector();
+                            try {
+                                lConnector.startConnector();
+                                lAdmitted = false;
+                            } catch (RejectedExecutionException lEx) {
+                                lAdmitted = false;
+                                if (mLog.isDebugEnabled()) {
+                                    mLog.debug("Closing incoming connector '"
+                                            + lConnector.getId() + "' ("
+                                            + lEx.getMessage() + ")...");
+                                }
+                                getConnectors().remove(lConnector.getId());
+                                lConnector.rejectConnector();
+                            }
                         }
                     } catch (RuntimeException lEx) {
                         mLog.error(
@@ -468,6 +621,15 @@ public class TCPEngine extends BaseEngine {
                                 ? "SSL" : "TCP") + " engine: "
                                 + lEx.getClass().getSimpleName()
                                 + ": " + lEx.getMessage());
+                        if (lAdmitted) {
+                            // the connector did not take over the pending handshake
+                            mAdmission.handshakeFinished();
+                            try {
+                                lClientSocket.close();
+                            } catch (IOException lCloseEx) {
+                                // nothing to do
+                            }
+                        }
                     }
                 } catch (Exception lEx) {
                     if (mIsRunning) {
@@ -18,22 +18,27 @@ package org.jwebsocket.tcp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Callable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
 import org.jwebsocket.api.WebSocketConnector;
 import org.jwebsocket.api.WebSocketPacket;
 import org.jwebsocket.logging.Logging;
 
 /**
- * This works OK, the only pending question is that the write method of the
- * native OutputStream never gets locked as expected.
- *
- * Advises: - Notify the connector stopped event in a thread pool instead of the
- * same thread - Check the connection state before send a packet
+ * Ordered outbound queue of a TCP connector. The packets are written in send
+ * order by at most one pool thread at a time, which drains the queue in
+ * batches: all packets queued when a drain starts are written into the
+ * connector's output buffer and flushed at once. A drain is watched by a
+ * single timeout of the shared {@link TimeoutScheduler}, the streams are
+ * closed if it blocks for longer than the timeout. The queue is bounded by
+ * the number of queued bytes, a slow consumer exceeding it is disconnected.
  *
  * @author kyberneees
  * @author aschulze
@@ -41,13 +46,17 @@ import org.jwebsocket.logging.Logging;
 public class TimeoutOutputStreamNIOWriter {
 
     private static Logger mLog = Logging.getLogger();
-    private final static int TIME_OUT_TERMINATION_THREAD = 5;
     /**
-     * Singleton Timer instance to control all timeout tasks
+     * The default maximum number of bytes queued per connector
      */
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+    private static final long TIMEOUT_TICK_DURATION = 10;
+    private static final int TIMEOUT_SLOTS = 512;
     private int mTimeout;
-    private static Timer mTimer;
-    private static Timer mPurgeTimer;
+    /**
+     * Singleton scheduler to control all write timeouts
+     */
+    private static TimeoutScheduler mScheduler;
     // can be set to "true" for heavy debugging purposes
     private static boolean mIsDebug = false;
     // the size of this executor service should be adjusted to the maximum
@@ -57,38 +66,62 @@ public class TimeoutOutputStreamNIOWriter {
     private OutputStream mOut = null;
     private InputStream mIn = null;
     private WebSocketConnector mConnector = null;
+    private final long mMaxQueuedBytes;
+    private final Queue<WebSocketPacket> mQueue = new ConcurrentLinkedQueue<WebSocketPacket>();
+    private final AtomicInteger mQueuedCount = new AtomicInteger();
+    private final AtomicLong mQueuedBytes = new AtomicLong();
+    // set while a drain operation is submitted or running
+    private final AtomicBoolean mDraining = new AtomicBoolean(false);
+    private final Runnable mDrainOperation = new DrainOperation();
+    private final Runnable mTimeoutTask = new TimeoutTask();
 
     public static void startTimer() {
-        if (null == mTimer) {
-            mTimer = new Timer("jWebSocket TCP-Engine SendScheduler");
-            mPurgeTimer = new Timer("jWebSocket TCP-Engine PurgeTimer");
-            mPurgeTimer.schedule(new PurgeCancelledWriterTasks(mTimer), 0, 2000);
+        if (null == mScheduler) {
+            mScheduler = new TimeoutScheduler("jWebSocket TCP-Engine SendScheduler",
+                    TIMEOUT_TICK_DURATION, TIMEOUT_SLOTS);
+            mScheduler.start();
             mPool = Executors.newScheduledThreadPool(100); // @TODO make this configurable after
         }
     }
 
     public static void stopTimer() {
-        if (null != mTimer) {
+        if (null != mScheduler) {
             mPool.shutdownNow();
-            mTimer.cancel();
-            mPurgeTimer.cancel();
-            mTimer.purge();
-            mPurgeTimer.purge();
+            mScheduler.stop();
+            if (mLog.isDebugEnabled()) {
+                mLog.debug("Write timeouts: " + mScheduler + ".");
+            }
+            mScheduler = null;
         }
     }
 
     /**
      *
      * @param aConnector
-     * @param aTimeout
+     * @param aIn
      * @param aOut
+     * @param aTimeout
      */
     public TimeoutOutputStreamNIOWriter(WebSocketConnector aConnector,
             InputStream aIn, OutputStream aOut, int aTimeout) {
+        this(aConnector, aIn, aOut, aTimeout, DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    /**
+     *
+     * @param aConnector
+     * @param aIn
+     * @param aOut
+     * @param aTimeout The time in milliseconds a drain operation may block
+     * @param aMaxQueuedBytes The maximum number of queued bytes
+     */
+    public TimeoutOutputStreamNIOWriter(WebSocketConnector aConnector,
+            InputStream aIn, OutputStream aOut, int aTimeout, long aMaxQueuedBytes) {
         mConnector = aConnector;
         mIn = aIn;
         mOut = aOut;
         mTimeout = aTimeout;
+        mMaxQueuedBytes = aMaxQueuedBytes;
     }
 
     /**
@@ -117,72 +150,81 @@ public class TimeoutOutputStreamNIOWriter {
 
     /**
      *
-     * @return
+     * @return The scheduler of the write timeouts, with the counters of the
+     * fired and cancelled timeouts
      */
-    public static Timer getTimer() {
-        return mTimer;
+    public static TimeoutScheduler getScheduler() {
+        return mScheduler;
     }
 
     /**
-     * Write operation thread to execute write operations in non-blocking mode.
+     *
+     * @return The number of bytes queued to be written
      */
-    class SendOperation implements Callable<Object> {
-
-        private int mTimeout;
-        private WebSocketPacket mPacket;
-        private TimerTask mTimeoutTask;
-
-        public InputStream getIn() {
-            return mIn;
-        }
-
-        public OutputStream getOut() {
-            return mOut;
-        }
-
-        public int getTimeout() {
-            // FindBug: This field is never written. 
-            return mTimeout;
-        }
-
-        public SendOperation(WebSocketPacket aDataPacket) {
-            this.mPacket = aDataPacket;
-        }
+    public long getQueuedBytes() {
+        return mQueuedBytes.get();
+    }
 
-        public void setTimeoutTask(TimerTask task) {
-            mTimeoutTask = task;
-        }
+    /**
+     * Drains the queue in batches until it's empty, each batch is flushed
+     * once and watched by one timeout task.
+     */
+    class DrainOperation implements Runnable {
 
         @Override
-        public Object call() throws Exception {
-            // @TODO This always is being executed quickly even when the connector get's stopped
-            // this sends the packet to the socket output stream
-            if (mIsDebug && mLog.isDebugEnabled()) {
-                mLog.debug("Physically sending packet to '" + mConnector.getId() + "' under timeout control...");
+        public void run() {
+            try {
+                drain();
+            } catch (RuntimeException lEx) {
+                mLog.error(lEx.getClass().getSimpleName() + " sending to '"
+                        + mConnector.getId() + "': " + lEx.getMessage(), lEx);
+                drainFailed();
             }
-            ((TCPConnector) mConnector)._sendPacket(mPacket);
-            // this cancels the timeout task in case 
-            // the send operation did not block for the given timeout
+        }
 
-            if (mIsDebug && mLog.isDebugEnabled()) {
-                mLog.debug("Cancelling timeout control for '" + mConnector.getId() + "' because packet had been sent properly...");
-            }
-            // FindBug: mTimeoutTask field is never initialized within any constructor
-            // and is therefore could be null after the object is constructed.
-            // It is set when TimeoutTimerTask is constructed.
-            mTimeoutTask.cancel();
-            return null;
+        private void drain() {
+            TCPConnector lConnector = (TCPConnector) mConnector;
+            do {
+                // the packets queued from now on are written by the next batch
+                int lCount = mQueuedCount.get();
+                if (mIsDebug && mLog.isDebugEnabled()) {
+                    mLog.debug("Physically sending " + lCount + " packet(s) to '"
+                            + mConnector.getId() + "' under timeout control...");
+                }
+                TimingWheel.Timeout lTimeout = mScheduler.schedule(mTimeoutTask, getTimeout());
+                try {
+                    WebSocketPacket lPacket;
+                    for (int lIdx = 0; lIdx < lCount && null != (lPacket = mQueue.poll()); lIdx++) {
+                        mQueuedCount.decrementAndGet();
+                        mQueuedBytes.addAndGet(-lPacket.getByteArray().length);
+                        lConnector.writePacket(lPacket);
+                    }
+                    lConnector.flushPackets();
+                } catch (IOException lEx) {
+                    // in case a socket gets closed due to a timeout
+                    // in a write operation, this is not necessarily an error.
+                    if (mLog.isDebugEnabled()) {
+                        mLog.debug("Sending to '" + mConnector.getId() + "' failed: "
+                                + lEx.getMessage());
+                    }
+                    drainFailed();
+                    return;
+                } finally {
+                    // the batch did not block for the given timeout
+                    mScheduler.cancel(lTimeout);
+                }
+                if (mQueue.isEmpty()) {
+                    mDraining.set(false);
+                    // a packet could have been queued right before
+                    if (mQueue.isEmpty() || !mDraining.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            } while (true);
         }
     }
 
-    class TimeoutTimerTask extends TimerTask {
-
-        private SendOperation mSendOperation;
-
-        public TimeoutTimerTask(SendOperation aSendOperation) {
-            this.mSendOperation = aSendOperation;
-            this.mSendOperation.setTimeoutTask(this);
-        }
+    class TimeoutTask implements Runnable {
 
         @Override
         public void run() {
@@ -192,34 +234,63 @@ public class TimeoutOutputStreamNIOWriter {
                 if (mIsDebug && mLog.isDebugEnabled()) {
                     mLog.debug("Closing stream to '" + mConnector.getId() + "' due to timeout!");
                 }
-                mSendOperation.getIn().close();
-                mSendOperation.getOut().close();
-                /*
-                 * mConnector.getEngine().connectorStopped( mConnector,
-                 * CloseReason.CLIENT);
-                 */
+                mIn.close();
+                mOut.close();
             } catch (IOException ex) {
                 // TODO check this
             }
         }
     }
 
+    private void discardQueue() {
+        WebSocketPacket lPacket;
+        while (null != (lPacket = mQueue.poll())) {
+            mQueuedCount.decrementAndGet();
+            mQueuedBytes.addAndGet(-lPacket.getByteArray().length);
+        }
+    }
+
+    /**
+     * Disconnects the connector if its queue can't be drained anymore, the
+     * next packet starts a new drain operation.
+     */
+    private void drainFailed() {
+        discardQueue();
+        mDraining.set(false);
+        ((TCPConnector) mConnector).stopReader();
+    }
+
     /**
-     * Send a data packet with timeout control.
+     * Queues a data packet, it's written in send order with timeout control.
+     * Only the first packet queued while the queue is idle hands over to a
+     * pool thread.
      *
      * @param aDataPacket
      */
     public void sendPacket(WebSocketPacket aDataPacket) {
+        int lSize = aDataPacket.getByteArray().length;
+        long lQueuedBytes = mQueuedBytes.addAndGet(lSize);
+        if (lQueuedBytes > mMaxQueuedBytes) {
+            mQueuedBytes.addAndGet(-lSize);
+            mLog.warn("Disconnecting slow consumer '" + mConnector.getId() + "' with "
+                    + lQueuedBytes + " queued bytes!");
+            ((TCPConnector) mConnector).stopReader();
+            return;
+        }
         if (mIsDebug && mLog.isDebugEnabled()) {
-            mLog.debug("Scheduling send operation to '" + mConnector.getId() + "'...");
+            mLog.debug("Queueing send operation to '" + mConnector.getId() + "'...");
+        }
+        mQueue.add(aDataPacket);
+        mQueuedCount.incrementAndGet();
+        if (mDraining.compareAndSet(false, true)) {
+            try {
+                mPool.execute(mDrainOperation);
+            } catch (RejectedExecutionException lEx) {
+                // the pool has been shut down, the engine is stopping
+                mLog.warn("Send operation to '" + mConnector.getId() + "' rejected: "
+                        + lEx.getMessage());
+                drainFailed();
+            }
         }
-        // create a timer task to send the packet
-        SendOperation lSend = new SendOperation(aDataPacket);
-        // create a timeout timer task to watch the send operation
-        TimerTask lTask = new TimeoutTimerTask(lSend);
-        // schedule the watcher for the send operation
-        mTimer.schedule(lTask, getTimeout());
-        // finally execute the send operation
-        mPool.submit(lSend);
     }
 }
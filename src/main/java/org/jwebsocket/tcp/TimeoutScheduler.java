@@ -0,0 +1,173 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Timeout scheduler
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.jwebsocket.logging.Logging;
+
+/**
+ * Thread-safe timeout scheduler of the blocking engines, based on a
+ * {@link TimingWheel} driven by a daemon thread. Scheduling and cancelling are
+ * O(1) and cancelled timeouts are removed immediately, so they never have to
+ * be purged. The expired tasks are executed by the scheduler thread, outside
+ * of the wheel lock.
+ */
+public class TimeoutScheduler {
+
+    private static Logger mLog = Logging.getLogger();
+    private final TimingWheel mWheel;
+    private final String mName;
+    private final AtomicLong mFired = new AtomicLong();
+    private final AtomicLong mCancelled = new AtomicLong();
+    // the tasks expired by the current tick, only used by the scheduler thread
+    private final List<Runnable> mExpired = new ArrayList<Runnable>();
+    private volatile Thread mThread = null;
+
+    /**
+     *
+     * @param aName The name of the scheduler thread
+     * @param aTickDuration The precision of the timeouts in milliseconds
+     * @param aSlots The number of wheel slots
+     */
+    public TimeoutScheduler(String aName, long aTickDuration, int aSlots) {
+        mName = aName;
+        mWheel = new TimingWheel(aTickDuration, aSlots);
+    }
+
+    /**
+     * Starts the scheduler thread, nothing happens if it's already running.
+     */
+    public synchronized void start() {
+        if (null == mThread) {
+            mThread = new Thread(new Ticker(), mName);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stops the scheduler thread, the pending timeouts are not executed
+     * anymore.
+     */
+    public synchronized void stop() {
+        Thread lThread = mThread;
+        mThread = null;
+        if (null != lThread) {
+            lThread.interrupt();
+        }
+    }
+
+    /**
+     * Schedules a task to be executed once the given delay has elapsed.
+     *
+     * @param aTask
+     * @param aDelay The delay in milliseconds
+     * @return The timeout, to be passed to {@link #cancel(TimingWheel.Timeout)}
+     */
+    public TimingWheel.Timeout schedule(final Runnable aTask, long aDelay) {
+        Runnable lExpiry = new Runnable() {
+
+            @Override
+            public void run() {
+                mExpired.add(aTask);
+            }
+        };
+        synchronized (mWheel) {
+            return mWheel.schedule(lExpiry, aDelay);
+        }
+    }
+
+    /**
+     * Cancels a timeout, nothing happens if it has already expired.
+     *
+     * @param aTimeout
+     * @return <tt>true</tt> if the timeout has been cancelled
+     */
+    public boolean cancel(TimingWheel.Timeout aTimeout) {
+        synchronized (mWheel) {
+            if (!aTimeout.isPending()) {
+                return false;
+            }
+            aTimeout.cancel();
+        }
+        mCancelled.incrementAndGet();
+        return true;
+    }
+
+    /**
+     *
+     * @return The number of timeouts that expired and executed their task
+     */
+    public long getFiredCount() {
+        return mFired.get();
+    }
+
+    /**
+     *
+     * @return The number of timeouts cancelled before their deadline
+     */
+    public long getCancelledCount() {
+        return mCancelled.get();
+    }
+
+    /**
+     *
+     * @return The number of pending timeouts
+     */
+    public int getPendingCount() {
+        synchronized (mWheel) {
+            return mWheel.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "fired=" + getFiredCount()
+                + ", cancelled=" + getCancelledCount()
+                + ", pending=" + getPendingCount();
+    }
+
+    private class Ticker implements Runnable {
+
+        @Override
+        public void run() {
+            long lTickDuration = mWheel.getTickDuration();
+            while (Thread.currentThread() == mThread) {
+                try {
+                    Thread.sleep(lTickDuration);
+                } catch (InterruptedException lEx) {
+                    break;
+                }
+                synchronized (mWheel) {
+                    mWheel.advance(TimingWheel.now());
+                }
+                for (Runnable lTask : mExpired) {
+                    mFired.incrementAndGet();
+                    try {
+                        lTask.run();
+                    } catch (Exception lEx) {
+                        mLog.error(lEx.getClass().getSimpleName()
+                                + " executing timeout task: " + lEx.getMessage(), lEx);
+                    }
+                }
+                mExpired.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Hashed timing wheel
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import org.apache.log4j.Logger;
+import org.jwebsocket.logging.Logging;
+
+/**
+ * Hashed timing wheel for connection timeouts. Each timeout is hashed into a
+ * slot by its deadline tick, scheduling and cancelling are O(1) and each tick
+ * only visits the timeouts of a single slot, instead of scanning all of them.
+ * Timeouts are executed with a precision of one tick.
+ *
+ * This class is not thread-safe, it's expected to be driven by the thread that
+ * owns it (e.g. a selector thread), which calls {@link #advance(long)}
+ * periodically.
+ */
+public class TimingWheel {
+
+    private static Logger mLog = Logging.getLogger();
+    private final long mTickDuration;
+    private final Timeout[] mSlots;
+    private final int mMask;
+    private final long mStartTime;
+    private long mTick = 0;
+    private int mSize = 0;
+
+    /**
+     * A scheduled task, it can be cancelled until it has been executed.
+     */
+    public static class Timeout {
+
+        private final Runnable mTask;
+        private final long mDeadline;
+        private int mSlot = -1;
+        private Timeout mPrev;
+        private Timeout mNext;
+        private TimingWheel mWheel;
+
+        private Timeout(TimingWheel aWheel, Runnable aTask, long aDeadline) {
+            mWheel = aWheel;
+            mTask = aTask;
+            mDeadline = aDeadline;
+        }
+
+        /**
+         * Removes the timeout from its wheel, it's not executed anymore.
+         * Nothing happens if it has already been executed or cancelled.
+         */
+        public void cancel() {
+            if (null != mWheel) {
+                mWheel.remove(this);
+            }
+        }
+
+        /**
+         *
+         * @return <tt>true</tt> if the timeout is still waiting for its
+         * deadline
+         */
+        public boolean isPending() {
+            return null != mWheel;
+        }
+    }
+
+    /**
+     *
+     * @param aTickDuration The duration of a tick in milliseconds
+     * @param aSlots The number of slots, rounded up to a power of two
+     */
+    public TimingWheel(long aTickDuration, int aSlots) {
+        if (aTickDuration <= 0) {
+            throw new IllegalArgumentException("The tick duration must be positive.");
+        }
+        int lSlots = 1;
+        while (lSlots < aSlots) {
+            lSlots <<= 1;
+        }
+        mTickDuration = aTickDuration;
+        mSlots = new Timeout[lSlots];
+        mMask = lSlots - 1;
+        mStartTime = now();
+    }
+
+    /**
+     * Returns the current time of a monotonic clock in milliseconds, it's the
+     * time base of all timing wheels.
+     *
+     * @return
+     */
+    public static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /**
+     *
+     * @return The duration of a tick in milliseconds
+     */
+    public long getTickDuration() {
+        return mTickDuration;
+    }
+
+    /**
+     *
+     * @return The number of pending timeouts
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Schedules a task to be executed once the given delay has elapsed.
+     *
+     * @param aTask
+     * @param aDelay The delay in milliseconds
+     * @return The timeout, which may be used to cancel the task
+     */
+    public Timeout schedule(Runnable aTask, long aDelay) {
+        // expiring in the past would require a full revolution of the wheel
+        long lTicks = Math.max(1, (aDelay + mTickDuration - 1) / mTickDuration);
+        Timeout lTimeout = new Timeout(this, aTask, mTick + lTicks);
+        int lSlot = (int) (lTimeout.mDeadline & mMask);
+        lTimeout.mSlot = lSlot;
+        lTimeout.mNext = mSlots[lSlot];
+        if (null != lTimeout.mNext) {
+            lTimeout.mNext.mPrev = lTimeout;
+        }
+        mSlots[lSlot] = lTimeout;
+        mSize++;
+        return lTimeout;
+    }
+
+    /**
+     * Advances the wheel to the given time and executes the expired tasks.
+     *
+     * @param aNow The current time as returned by {@link #now()}
+     * @return The number of executed tasks
+     */
+    public int advance(long aNow) {
+        long lTarget = (aNow - mStartTime) / mTickDuration;
+        int lExpired = 0;
+        while (mTick < lTarget) {
+            mTick++;
+            int lSlot = (int) (mTick & mMask);
+            Timeout lTimeout = mSlots[lSlot];
+            while (null != lTimeout) {
+                // tasks scheduled while expiring are added in front of the list
+                Timeout lNext = lTimeout.mNext;
+                if (lTimeout.mDeadline <= mTick) {
+                    remove(lTimeout);
+                    lExpired++;
+                    try {
+                        lTimeout.mTask.run();
+                    } catch (Exception lEx) {
+                        mLog.error(lEx.getClass().getSimpleName()
+                                + " executing timeout task: " + lEx.getMessage(), lEx);
+                    }
+                    if (null != lNext && !lNext.isPending()) {
+                        // the task cancelled its successor, starting over
+                        lNext = mSlots[lSlot];
+                    }
+                }
+                lTimeout = lNext;
+            }
+        }
+        return lExpired;
+    }
+
+    private void remove(Timeout aTimeout) {
+        if (null != aTimeout.mPrev) {
+            aTimeout.mPrev.mNext = aTimeout.mNext;
+        } else {
+            mSlots[aTimeout.mSlot] = aTimeout.mNext;
+        }
+        if (null != aTimeout.mNext) {
+            aTimeout.mNext.mPrev = aTimeout.mPrev;
+        }
+        aTimeout.mPrev = null;
+        aTimeout.mNext = null;
+        aTimeout.mWheel = null;
+        mSize--;
+    }
+}
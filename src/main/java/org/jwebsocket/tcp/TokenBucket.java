@@ -0,0 +1,70 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Token bucket rate limiter
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+/**
+ * Token bucket rate limiter. The bucket is refilled lazily on each acquire
+ * with the configured rate, up to its capacity (the allowed burst).
+ */
+public class TokenBucket {
+
+    private final double mRate;
+    private final double mCapacity;
+    private double mTokens;
+    private long mLastRefill;
+
+    /**
+     *
+     * @param aRate The number of tokens added per second
+     * @param aCapacity The maximum number of tokens
+     */
+    public TokenBucket(double aRate, int aCapacity) {
+        mRate = aRate;
+        mCapacity = Math.max(1, aCapacity);
+        mTokens = mCapacity;
+        mLastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a token from the bucket.
+     *
+     * @return <tt>false</tt> if the bucket is empty
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (mTokens < 1) {
+            return false;
+        }
+        mTokens--;
+        return true;
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if the bucket has been refilled completely, so it
+     * carries no state
+     */
+    public synchronized boolean isFull() {
+        refill();
+        return mTokens >= mCapacity;
+    }
+
+    private void refill() {
+        long lNow = System.nanoTime();
+        mTokens = Math.min(mCapacity, mTokens + (lNow - mLastRefill) * mRate / 1000000000L);
+        mLastRefill = lNow;
+    }
+}
@@ -0,0 +1,236 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Virtual thread TCP Connector
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.io.IOException;
+import java.net.Socket;
+import org.jwebsocket.api.WebSocketEngine;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.jwebsocket.api.WebSocketPacket;
+import org.jwebsocket.kit.CloseReason;
+import org.jwebsocket.kit.WebSocketFrameType;
+import org.jwebsocket.logging.Logging;
+
+/**
+ * TCP connector of the {@link VirtualThreadTCPEngine}. The blocking reader of
+ * the {@link TCPConnector} runs in a virtual thread, the packets are written in
+ * send order by a virtual writer thread of the connector, instead of the
+ * shared writer pool of the TCP engine. If corking is enabled the writer
+ * flushes once the cork delay has elapsed since the first packet of a batch,
+ * the cork size has been reached or a control frame has been written.
+ */
+public class VirtualThreadTCPConnector extends TCPConnector {
+
+    private static Logger mLog = Logging.getLogger();
+    private final VirtualThreadTCPEngine mEngine;
+    private final BlockingQueue<WebSocketPacket> mWriteQueue =
+            new LinkedBlockingQueue<WebSocketPacket>();
+    private final AtomicLong mPendingWriteBytes = new AtomicLong();
+    private final Runnable mWriteTimeoutTask = new WriteTimeoutTask();
+    // set once no more packets are written, the queued ones are discarded
+    private volatile boolean mTerminated = false;
+    private Thread mWriterThread = null;
+
+    /**
+     *
+     * @param aEngine
+     * @param aClientSocket
+     */
+    public VirtualThreadTCPConnector(VirtualThreadTCPEngine aEngine, Socket aClientSocket) {
+        super(aEngine, aClientSocket);
+        mEngine = aEngine;
+    }
+
+    @Override
+    protected TimeoutOutputStreamNIOWriter createWriter(WebSocketEngine aEngine) {
+        // the packets are written by the writer thread of the connector
+        return null;
+    }
+
+    @Override
+    public void startConnector() {
+        mWriterThread = mEngine.getThreadFactory().newThread(new Writer());
+        mWriterThread.start();
+        super.startConnector();
+    }
+
+    @Override
+    protected Thread createReaderThread(Runnable aReader) {
+        return mEngine.getThreadFactory().newThread(aReader);
+    }
+
+    @Override
+    protected void connectorTerminated(CloseReason aCloseReason) {
+        mTerminated = true;
+        if (null != mWriterThread) {
+            mWriterThread.interrupt();
+        }
+        discardQueue();
+    }
+
+    @Override
+    public void sendPacket(WebSocketPacket aDataPacket) {
+        if (mTerminated) {
+            return;
+        }
+        long lPending = mPendingWriteBytes.addAndGet(aDataPacket.getByteArray().length);
+        if (lPending > mEngine.getWriteHighWatermark()) {
+            mPendingWriteBytes.addAndGet(-aDataPacket.getByteArray().length);
+            mLog.warn("Disconnecting slow consumer '" + getId() + "' with "
+                    + lPending + " pending bytes!");
+            stopReader();
+            return;
+        }
+        mWriteQueue.add(aDataPacket);
+        // the connector may have been terminated while the packet was added
+        if (mTerminated && mWriteQueue.remove(aDataPacket)) {
+            mPendingWriteBytes.addAndGet(-aDataPacket.getByteArray().length);
+        }
+    }
+
+    /**
+     *
+     * @return The number of bytes queued to be written
+     */
+    public long getPendingWriteBytes() {
+        return mPendingWriteBytes.get();
+    }
+
+    /**
+     * Schedules the deadline of a write operation of the writer thread.
+     *
+     * @return The deadline to be cancelled once the write returned,
+     * <tt>null</tt> if the write timeout is disabled
+     */
+    private TimingWheel.Timeout startWrite() {
+        TimeoutScheduler lTimeouts = mEngine.getWriteTimeouts();
+        return (null != lTimeouts)
+                ? lTimeouts.schedule(mWriteTimeoutTask, mEngine.getWriteTimeout())
+                : null;
+    }
+
+    private void finishWrite(TimingWheel.Timeout aDeadline) {
+        if (null != aDeadline) {
+            mEngine.getWriteTimeouts().cancel(aDeadline);
+        }
+    }
+
+    private void discardQueue() {
+        WebSocketPacket lPacket;
+        while (null != (lPacket = mWriteQueue.poll())) {
+            mPendingWriteBytes.addAndGet(-lPacket.getByteArray().length);
+        }
+    }
+
+    private void writeFailed() {
+        mTerminated = true;
+        discardQueue();
+        stopReader();
+    }
+
+    private static boolean isControlFrame(WebSocketPacket aPacket) {
+        WebSocketFrameType lType = aPacket.getFrameType();
+        return WebSocketFrameType.PING == lType
+                || WebSocketFrameType.PONG == lType
+                || WebSocketFrameType.CLOSE == lType;
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            int lCorkDelay = mEngine.getCorkDelay();
+            int lCorkSize = mEngine.getCorkSize();
+            try {
+                while (!mTerminated) {
+                    WebSocketPacket lPacket = mWriteQueue.take();
+                    long lBatchStarted = TimingWheel.now();
+                    int lFrames = 0;
+                    long lBytes = 0;
+                    try {
+                        while (true) {
+                            int lLength = lPacket.getByteArray().length;
+                            TimingWheel.Timeout lDeadline = startWrite();
+                            try {
+                                writePacket(lPacket);
+                            } finally {
+                                finishWrite(lDeadline);
+                            }
+                            mPendingWriteBytes.addAndGet(-lLength);
+                            lFrames++;
+                            lBytes += lLength;
+                            if (lCorkDelay <= 0 || lBytes >= lCorkSize || isControlFrame(lPacket)) {
+                                break;
+                            }
+                            long lRemaining = lBatchStarted + lCorkDelay - TimingWheel.now();
+                            lPacket = (lRemaining > 0)
+                                    ? mWriteQueue.poll(lRemaining, TimeUnit.MILLISECONDS)
+                                    : mWriteQueue.poll();
+                            if (null == lPacket) {
+                                break;
+                            }
+                        }
+                        TimingWheel.Timeout lDeadline = startWrite();
+                        try {
+                            flushPackets();
+                        } finally {
+                            finishWrite(lDeadline);
+                        }
+                    } catch (IOException lEx) {
+                        // the socket has been closed, the reader terminates the connector
+                        if (mLog.isDebugEnabled()) {
+                            mLog.debug("Writing to connector '" + getId() + "' failed: "
+                                    + lEx.getMessage());
+                        }
+                        writeFailed();
+                        return;
+                    } catch (RuntimeException lEx) {
+                        mLog.error(lEx.getClass().getSimpleName() + " writing to connector '"
+                                + getId() + "': " + lEx.getMessage(), lEx);
+                        writeFailed();
+                        return;
+                    }
+                    mEngine.getWriteBatchHistogram().record(lFrames);
+                    if (lCorkDelay > 0) {
+                        mEngine.getCorkDelayHistogram().record(TimingWheel.now() - lBatchStarted);
+                    }
+                }
+            } catch (InterruptedException lEx) {
+                // the connector has been terminated
+            }
+        }
+    }
+
+    private class WriteTimeoutTask implements Runnable {
+
+        @Override
+        public void run() {
+            mLog.warn("Closing connector '" + getId() + "', write blocked for more than "
+                    + mEngine.getWriteTimeout() + "ms!");
+            stopReader();
+            try {
+                // the blocked write only returns if the socket is closed
+                getSocket().close();
+            } catch (IOException lEx) {
+                // the socket is closed anyway
+            }
+        }
+    }
+}
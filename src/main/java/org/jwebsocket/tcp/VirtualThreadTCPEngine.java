@@ -0,0 +1,147 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Virtual thread TCP Engine
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+import org.apache.log4j.Logger;
+import org.jwebsocket.api.EngineConfiguration;
+import org.jwebsocket.logging.Logging;
+
+/**
+ * TCP engine with the blocking read and write model of the {@link TCPEngine},
+ * but each connector is served by a virtual reader thread and a virtual writer
+ * thread, so the number of connections is not limited by the number of
+ * platform threads. On JVMs without virtual threads (before Java 21) platform
+ * threads are used.
+ *
+ * Additional settings of the engine configuration: <tt>cork_delay</tt>
+ * (milliseconds the writer waits for more packets before flushing, 0 flushes
+ * each packet) and <tt>cork_size</tt> (bytes written before the writer
+ * flushes anyway).
+ */
+public class VirtualThreadTCPEngine extends TCPEngine {
+
+    private static Logger mLog = Logging.getLogger();
+    private static final long WRITE_TIMEOUT_TICK_DURATION = 10;
+    private static final int WRITE_TIMEOUT_SLOTS = 512;
+    private final ThreadFactory mThreadFactory;
+    private final int mCorkDelay;
+    private final int mCorkSize;
+    private final Histogram mWriteBatchHistogram = new Histogram(" frames");
+    private final Histogram mCorkDelayHistogram = new Histogram("ms");
+    // null if the write timeout is disabled
+    private final TimeoutScheduler mWriteTimeouts;
+
+    /**
+     *
+     * @param aConfiguration
+     */
+    public VirtualThreadTCPEngine(EngineConfiguration aConfiguration) {
+        super(aConfiguration);
+        mCorkDelay = EngineUtils.getCorkDelay(aConfiguration);
+        mCorkSize = EngineUtils.getCorkSize(aConfiguration);
+        mWriteTimeouts = (getWriteTimeout() > 0)
+                ? new TimeoutScheduler("jWebSocket VT-Engine WriteTimeouts",
+                WRITE_TIMEOUT_TICK_DURATION, WRITE_TIMEOUT_SLOTS)
+                : null;
+        mThreadFactory = VirtualThreads.newThreadFactory("jWebSocket VT-Connector ");
+        if (!VirtualThreads.isSupported()) {
+            mLog.warn("Virtual threads are not supported by this JVM, "
+                    + "using platform threads for the TCP connectors.");
+        }
+    }
+
+    @Override
+    protected void startWriters() {
+        // each connector has its own writer thread
+        if (null != mWriteTimeouts) {
+            mWriteTimeouts.start();
+        }
+    }
+
+    @Override
+    protected void stopWriters() {
+        if (null != mWriteTimeouts) {
+            mWriteTimeouts.stop();
+            if (mLog.isDebugEnabled()) {
+                mLog.debug("Write timeouts: " + mWriteTimeouts + ".");
+            }
+        }
+    }
+
+    @Override
+    protected ClientProcessorPool createClientProcessorPool() {
+        // each connector has its own virtual thread
+        return null;
+    }
+
+    @Override
+    protected TCPConnector createConnector(Socket aClientSocket) {
+        return new VirtualThreadTCPConnector(this, aClientSocket);
+    }
+
+    /**
+     *
+     * @return The factory of the connector threads
+     */
+    public ThreadFactory getThreadFactory() {
+        return mThreadFactory;
+    }
+
+    /**
+     *
+     * @return The time in milliseconds the writers wait for more packets
+     * before flushing, 0 if corking is disabled
+     */
+    public int getCorkDelay() {
+        return mCorkDelay;
+    }
+
+    /**
+     *
+     * @return The number of bytes written before the writers flush anyway
+     */
+    public int getCorkSize() {
+        return mCorkSize;
+    }
+
+    /**
+     *
+     * @return The number of packets written per flush
+     */
+    public Histogram getWriteBatchHistogram() {
+        return mWriteBatchHistogram;
+    }
+
+    /**
+     *
+     * @return The time from the first packet of a batch to its flush, only
+     * recorded if corking is enabled
+     */
+    public Histogram getCorkDelayHistogram() {
+        return mCorkDelayHistogram;
+    }
+
+    /**
+     *
+     * @return The scheduler of the write deadlines of the connectors,
+     * <tt>null</tt> if the write timeout is disabled
+     */
+    TimeoutScheduler getWriteTimeouts() {
+        return mWriteTimeouts;
+    }
+}
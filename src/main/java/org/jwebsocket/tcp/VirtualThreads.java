@@ -0,0 +1,87 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Virtual thread support
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.jwebsocket.logging.Logging;
+
+/**
+ * Creates virtual threads if the running JVM supports them (Java 21 and
+ * later). The API is looked up by reflection, since the engines are compiled
+ * for older Java versions. On older JVMs platform threads are created instead.
+ */
+public class VirtualThreads {
+
+    private static Logger mLog = Logging.getLogger();
+    private static final boolean mSupported = (null != createVirtualFactory("jWebSocket probe-"));
+
+    private VirtualThreads() {
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if the running JVM supports virtual threads
+     */
+    public static boolean isSupported() {
+        return mSupported;
+    }
+
+    /**
+     * Returns a factory for virtual threads, or for daemon platform threads if
+     * virtual threads are not supported. The threads are named by the given
+     * prefix and a sequence number.
+     *
+     * @param aNamePrefix
+     * @return
+     */
+    public static ThreadFactory newThreadFactory(final String aNamePrefix) {
+        ThreadFactory lFactory = mSupported ? createVirtualFactory(aNamePrefix) : null;
+        if (null != lFactory) {
+            return lFactory;
+        }
+        return new ThreadFactory() {
+
+            private final AtomicLong mCount = new AtomicLong();
+
+            @Override
+            public Thread newThread(Runnable aRunnable) {
+                Thread lThread = new Thread(aRunnable, aNamePrefix + mCount.getAndIncrement());
+                lThread.setDaemon(true);
+                return lThread;
+            }
+        };
+    }
+
+    private static ThreadFactory createVirtualFactory(String aNamePrefix) {
+        try {
+            // Thread.ofVirtual().name(aNamePrefix, 0).factory()
+            Object lBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> lBuilderClass = Class.forName("java.lang.Thread$Builder");
+            lBuilder = lBuilderClass.getMethod("name", String.class, long.class).invoke(
+                    lBuilder, aNamePrefix, 0L);
+            return (ThreadFactory) lBuilderClass.getMethod("factory").invoke(lBuilder);
+        } catch (NoSuchMethodException lEx) {
+            return null;
+        } catch (ClassNotFoundException lEx) {
+            return null;
+        } catch (Exception lEx) {
+            mLog.warn(Logging.getSimpleExceptionMessage(lEx, "creating virtual thread factory"));
+            return null;
+        }
+    }
+}
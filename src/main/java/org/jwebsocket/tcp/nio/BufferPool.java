@@ -0,0 +1,171 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - WebSocket NIO Engine, BufferPool
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp.nio;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct byte buffers. Buffers are grouped in power of two size
+ * classes, each class is filled by slicing direct memory slabs into equal
+ * chunks. Released buffers go back to the free list of their class. A slab
+ * stays with its class, so a single class may take at most half of the pool's
+ * slabs and a burst of one size can't starve the others. Requests larger than
+ * the biggest size class, or requests exceeding the memory limit of the pool
+ * or of their class, are served with non-pooled heap buffers.
+ */
+public class BufferPool {
+
+    /**
+     * The smallest size class
+     */
+    public static final int MIN_CHUNK_SIZE = 256;
+    /**
+     * The biggest size class
+     */
+    public static final int MAX_CHUNK_SIZE = 65536;
+    private static final int SLAB_SIZE = 1024 * 1024;
+    private final Queue<PooledBuffer>[] mFreeLists;
+    private final int mMaxSlabs;
+    private final int mMaxClassSlabs;
+    private final AtomicInteger mSlabs = new AtomicInteger();
+    private final AtomicIntegerArray mClassSlabs;
+    private final AtomicLong mAcquired = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     *
+     * @param aMaxSize The maximum amount of direct memory (in bytes) allocated
+     * by the pool
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(long aMaxSize) {
+        int lClasses = 0;
+        for (int lSize = MIN_CHUNK_SIZE; lSize <= MAX_CHUNK_SIZE; lSize <<= 1) {
+            lClasses++;
+        }
+        mFreeLists = new Queue[lClasses];
+        for (int lIdx = 0; lIdx < lClasses; lIdx++) {
+            mFreeLists[lIdx] = new ConcurrentLinkedQueue<PooledBuffer>();
+        }
+        mClassSlabs = new AtomicIntegerArray(lClasses);
+        mMaxSlabs = (int) Math.max(1, aMaxSize / SLAB_SIZE);
+        mMaxClassSlabs = Math.max(1, mMaxSlabs / 2);
+    }
+
+    /**
+     * Returns a cleared buffer with a capacity of at least the given size. The
+     * caller owns one reference to it and has to release it once done.
+     *
+     * @param aSize
+     * @return
+     */
+    public PooledBuffer acquire(int aSize) {
+        mAcquired.incrementAndGet();
+        int lClass = sizeClass(aSize);
+        if (lClass < 0) {
+            mMisses.incrementAndGet();
+            return new PooledBuffer(null, -1, ByteBuffer.allocate(aSize));
+        }
+        PooledBuffer lBuffer = mFreeLists[lClass].poll();
+        if (null == lBuffer) {
+            lBuffer = allocateSlab(lClass);
+            if (null == lBuffer) {
+                mMisses.incrementAndGet();
+                return new PooledBuffer(null, -1, ByteBuffer.allocate(aSize));
+            }
+        }
+        lBuffer.reset();
+        return lBuffer;
+    }
+
+    /**
+     *
+     * @return The number of buffers acquired so far
+     */
+    public long getAcquiredCount() {
+        return mAcquired.get();
+    }
+
+    /**
+     *
+     * @return The number of acquired buffers that could not be served from
+     * the pool
+     */
+    public long getMissesCount() {
+        return mMisses.get();
+    }
+
+    /**
+     *
+     * @return The direct memory (in bytes) allocated by the pool
+     */
+    public long getAllocatedSize() {
+        return (long) mSlabs.get() * SLAB_SIZE;
+    }
+
+    void recycle(PooledBuffer aBuffer) {
+        aBuffer.getBuffer().clear();
+        mFreeLists[aBuffer.getSizeClass()].offer(aBuffer);
+    }
+
+    private PooledBuffer allocateSlab(int aClass) {
+        int lSlabs;
+        do {
+            lSlabs = mClassSlabs.get(aClass);
+            if (lSlabs >= mMaxClassSlabs) {
+                return null;
+            }
+        } while (!mClassSlabs.compareAndSet(aClass, lSlabs, lSlabs + 1));
+        do {
+            lSlabs = mSlabs.get();
+            if (lSlabs >= mMaxSlabs) {
+                mClassSlabs.decrementAndGet(aClass);
+                return null;
+            }
+        } while (!mSlabs.compareAndSet(lSlabs, lSlabs + 1));
+
+        int lChunkSize = MIN_CHUNK_SIZE << aClass;
+        ByteBuffer lSlab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        PooledBuffer lFirst = null;
+        for (int lOffset = 0; lOffset < SLAB_SIZE; lOffset += lChunkSize) {
+            lSlab.limit(lOffset + lChunkSize);
+            lSlab.position(lOffset);
+            PooledBuffer lChunk = new PooledBuffer(this, aClass, lSlab.slice());
+            if (null == lFirst) {
+                lFirst = lChunk;
+            } else {
+                mFreeLists[aClass].offer(lChunk);
+            }
+        }
+        return lFirst;
+    }
+
+    private static int sizeClass(int aSize) {
+        if (aSize > MAX_CHUNK_SIZE) {
+            return -1;
+        }
+        int lClass = 0;
+        for (int lSize = MIN_CHUNK_SIZE; lSize < aSize; lSize <<= 1) {
+            lClass++;
+        }
+        return lClass;
+    }
+}
@@ -16,28 +16,69 @@
 package org.jwebsocket.tcp.nio;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.log4j.Logger;
 import org.jwebsocket.api.WebSocketConnector;
 import org.jwebsocket.async.IOFuture;
 import org.jwebsocket.async.IOFutureListener;
 import org.jwebsocket.logging.Logging;
 
-public class DataFuture implements IOFuture {
+/**
+ * The result of an asynchronous send. The state is changed by atomic
+ * operations only, so the future may be completed, cancelled and listened to
+ * from any thread. Listeners are notified exactly once, by the completing
+ * thread (usually the selector thread) or by the given executor. A listener
+ * added to a completed future is notified immediately.
+ *
+ * A frame can be cancelled as long as the selector thread did not start
+ * writing it, it's removed from the connector's queue then.
+ */
+public class DataFuture implements IOFuture, Future<Void> {
 
     private static Logger mLog = Logging.getLogger();
-    private List<IOFutureListener> mListeners;
-    private boolean mDone;
-    private boolean mSuccess;
-    private Throwable mCause;
+    private static final int PENDING = 0;
+    private static final int WRITING = 1;
+    // the cause is being set, the future is not done yet
+    private static final int COMPLETING = 2;
+    private static final int SUCCESS = 3;
+    private static final int FAILURE = 4;
+    private static final int CANCELLED = 5;
+    private final AtomicInteger mState = new AtomicInteger(PENDING);
+    private final Queue<ListenerEntry> mListeners = new ConcurrentLinkedQueue<ListenerEntry>();
+    // created by the first waiting thread only
+    private final AtomicReference<CountDownLatch> mLatch = new AtomicReference<CountDownLatch>();
+    private volatile Throwable mCause;
+    private volatile long mProgress;
+    // the size accounted as pending write, set when the frame is queued
+    private volatile int mQueuedSize;
     private WebSocketConnector mConnector;
     private ByteBuffer mData;
+    private final AtomicReference<PooledBuffer> mPooledData = new AtomicReference<PooledBuffer>();
 
     public DataFuture(WebSocketConnector aConnector, ByteBuffer aData) {
         this.mConnector = aConnector;
         this.mData = aData;
-        mListeners = new ArrayList<IOFutureListener>();
+    }
+
+    /**
+     * The pooled buffer is released once the future is done.
+     *
+     * @param aConnector
+     * @param aData
+     */
+    public DataFuture(WebSocketConnector aConnector, PooledBuffer aData) {
+        this(aConnector, aData.getBuffer());
+        this.mPooledData.set(aData);
     }
 
     @Override
@@ -47,17 +88,17 @@ public class DataFuture implements IOFuture {
 
     @Override
     public boolean isDone() {
-        return mDone;
+        return mState.get() >= SUCCESS;
     }
 
     @Override
     public boolean isCancelled() {
-        return false;  // not implemented
+        return CANCELLED == mState.get();
     }
 
     @Override
     public boolean isSuccess() {
-        return mSuccess;
+        return SUCCESS == mState.get();
     }
 
     @Override
@@ -65,45 +106,143 @@ public class DataFuture implements IOFuture {
         return mCause;
     }
 
+    /**
+     * Cancels the send if the frame has not been started to be written yet.
+     * The frame is removed from the connector's queue by its selector thread.
+     *
+     * @return <tt>true</tt> if the send has been cancelled
+     */
     @Override
     public boolean cancel() {
-        return false;  // not implemented
+        if (!mState.compareAndSet(PENDING, COMPLETING)) {
+            return false;
+        }
+        // the cause is visible before the future is done
+        mCause = new CancellationException("Send cancelled!");
+        mState.set(CANCELLED);
+        // the data is released once the frame has been removed from the queue
+        if (mConnector instanceof NioTcpConnector) {
+            ((NioTcpConnector) mConnector).writeCancelled(this);
+        } else {
+            releaseData();
+        }
+        completed();
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean aMayInterruptIfRunning) {
+        return cancel();
     }
 
     @Override
     public boolean setSuccess() {
-        mSuccess = true;
-        mDone = true;
-        notifyListeners();
-        return mSuccess;
+        int lState = mState.get();
+        while (lState < COMPLETING) {
+            if (mState.compareAndSet(lState, SUCCESS)) {
+                releaseData();
+                completed();
+                return true;
+            }
+            lState = mState.get();
+        }
+        return false;
     }
 
     @Override
-    public boolean setFailure(Throwable cause) {
-        if (!mSuccess && !mDone) {
-            this.mCause = cause;
-            mSuccess = false;
-            mDone = true;
-            notifyListeners();
-            return true;
-        } else {
+    public boolean setFailure(Throwable aCause) {
+        int lState = mState.get();
+        while (lState < COMPLETING) {
+            if (mState.compareAndSet(lState, COMPLETING)) {
+                // the cause is visible before the future is done
+                mCause = aCause;
+                mState.set(FAILURE);
+                releaseData();
+                completed();
+                return true;
+            }
+            lState = mState.get();
+        }
+        return false;
+    }
+
+    /**
+     * Records the number of bytes written so far.
+     *
+     * @param aAmount The number of bytes written by the last operation
+     * @param aCurrent The number of bytes written so far
+     * @param aTotal The total number of bytes
+     * @return <tt>false</tt> if the future is done already
+     */
+    @Override
+    public boolean setProgress(long aAmount, long aCurrent, long aTotal) {
+        if (isDone()) {
             return false;
         }
+        mProgress = aCurrent;
+        return true;
+    }
+
+    /**
+     *
+     * @return The number of bytes written so far, as passed to
+     * {@link #setProgress(long, long, long)}
+     */
+    public long getProgress() {
+        return mProgress;
+    }
+
+    @Override
+    public void addListener(IOFutureListener aListener) {
+        addListener(aListener, null);
+    }
+
+    /**
+     * Adds a listener that is notified by the given executor instead of the
+     * completing thread (e.g. to not block the selector thread).
+     *
+     * @param aListener
+     * @param aExecutor The executor notifying the listener, <tt>null</tt> to
+     * notify it from the completing thread
+     */
+    public void addListener(IOFutureListener aListener, Executor aExecutor) {
+        ListenerEntry lEntry = new ListenerEntry(aListener, aExecutor);
+        mListeners.add(lEntry);
+        // the completing thread may have missed the listener, the one removing
+        // it notifies it
+        if (isDone() && mListeners.remove(lEntry)) {
+            notifyListener(lEntry);
+        }
     }
 
     @Override
-    public boolean setProgress(long amount, long current, long total) {
-        return false;  // not implemented
+    public void removeListener(IOFutureListener aListener) {
+        mListeners.remove(new ListenerEntry(aListener, null));
     }
 
+    /**
+     * Waits until the future is done.
+     *
+     * @return <tt>null</tt>
+     * @throws InterruptedException
+     * @throws ExecutionException if the send failed
+     * @throws CancellationException if the send has been cancelled
+     */
     @Override
-    public void addListener(IOFutureListener listener) {
-        mListeners.add(listener);
+    public Void get() throws InterruptedException, ExecutionException {
+        if (!isDone()) {
+            getLatch().await();
+        }
+        return getResult();
     }
 
     @Override
-    public void removeListener(IOFutureListener listener) {
-        mListeners.remove(listener);
+    public Void get(long aTimeout, TimeUnit aUnit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!isDone() && !getLatch().await(aTimeout, aUnit)) {
+            throw new TimeoutException("Send not completed within " + aTimeout + " " + aUnit + "!");
+        }
+        return getResult();
     }
 
     public ByteBuffer getData() {
@@ -111,16 +250,135 @@ public class DataFuture implements IOFuture {
     }
 
     public void setData(ByteBuffer aData) {
+        releaseData();
         mData = aData;
     }
 
-    private void notifyListeners() {
+    int getQueuedSize() {
+        return mQueuedSize;
+    }
+
+    void setQueuedSize(int aQueuedSize) {
+        mQueuedSize = aQueuedSize;
+    }
+
+    /**
+     * Marks the frame as being written by the selector thread, it can't be
+     * cancelled anymore.
+     *
+     * @return <tt>false</tt> if the future is done already (cancelled)
+     */
+    boolean startWrite() {
+        int lState = mState.get();
+        return WRITING == lState || (PENDING == lState && mState.compareAndSet(PENDING, WRITING));
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if the selector thread started writing the frame
+     */
+    boolean isWriteStarted() {
+        return WRITING == mState.get();
+    }
+
+    /**
+     * Fails the future of a frame that won't be written, its data is
+     * released even if the future is done already (cancelled).
+     *
+     * @param aCause
+     */
+    void discard(Throwable aCause) {
+        if (!setFailure(aCause)) {
+            releaseData();
+        }
+    }
+
+    void releaseData() {
+        PooledBuffer lPooledData = mPooledData.getAndSet(null);
+        if (null != lPooledData) {
+            lPooledData.release();
+        }
+    }
+
+    private Void getResult() throws ExecutionException {
+        int lState = mState.get();
+        if (CANCELLED == lState) {
+            throw new CancellationException("Send cancelled!");
+        } else if (FAILURE == lState) {
+            throw new ExecutionException(mCause);
+        }
+        return null;
+    }
+
+    private CountDownLatch getLatch() {
+        CountDownLatch lLatch = mLatch.get();
+        if (null == lLatch) {
+            mLatch.compareAndSet(null, new CountDownLatch(1));
+            lLatch = mLatch.get();
+            // the future may have been completed before the latch was set
+            if (isDone()) {
+                lLatch.countDown();
+            }
+        }
+        return lLatch;
+    }
+
+    private void completed() {
+        CountDownLatch lLatch = mLatch.get();
+        if (null != lLatch) {
+            lLatch.countDown();
+        }
+        ListenerEntry lEntry;
+        while (null != (lEntry = mListeners.poll())) {
+            notifyListener(lEntry);
+        }
+    }
+
+    private void notifyListener(final ListenerEntry aEntry) {
+        if (null == aEntry.mExecutor) {
+            aEntry.notifyListener(this);
+            return;
+        }
         try {
-            for (IOFutureListener listener : mListeners) {
-                listener.operationComplete(this);
+            aEntry.mExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    aEntry.notifyListener(DataFuture.this);
+                }
+            });
+        } catch (RuntimeException lEx) {
+            mLog.info("Exception while scheduling IOFuture listener", lEx);
+        }
+    }
+
+    private static class ListenerEntry {
+
+        private final IOFutureListener mListener;
+        private final Executor mExecutor;
+
+        ListenerEntry(IOFutureListener aListener, Executor aExecutor) {
+            mListener = aListener;
+            mExecutor = aExecutor;
+        }
+
+        void notifyListener(IOFuture aFuture) {
+            try {
+                mListener.operationComplete(aFuture);
+            } catch (Exception lEx) {
+                mLog.info("Exception while notifying IOFuture listener", lEx);
             }
-        } catch (Exception e) {
-            mLog.info("Exception while notifying IOFuture listener", e);
+        }
+
+        @Override
+        public boolean equals(Object aObject) {
+            return aObject instanceof ListenerEntry
+                    && ((ListenerEntry) aObject).mListener == mListener;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mListener);
         }
     }
 }
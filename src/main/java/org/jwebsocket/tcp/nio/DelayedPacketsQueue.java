@@ -15,19 +15,23 @@
 //    ---------------------------------------------------------------------------
 package org.jwebsocket.tcp.nio;
 
-import java.util.Iterator;
-import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
-import javolution.util.FastMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 
 /**
+ * Hands the delayed packets over to the workers. Every connector keeps its own
+ * queue of delayed packets and is put into the (lock-free) ready queue only
+ * when it gains work and is not already scheduled or being processed.
+ * Therefore, a connector is processed by only one worker at a time and the
+ * workers block on a signal instead of polling the connectors.
  *
  * @author kyberneees
  */
 public class DelayedPacketsQueue {
 
-    private final Map<NioTcpConnector, Queue<IDelayedPacketNotifier>> mDelayedPackets = new FastMap<NioTcpConnector, Queue<IDelayedPacketNotifier>>().shared();
+    private final Queue<NioTcpConnector> mReadyConnectors = new ConcurrentLinkedQueue<NioTcpConnector>();
+    private final Semaphore mSignal = new Semaphore(0);
 
     /**
      * Enqueue a delayed packets to be processed by the workers
@@ -35,43 +39,82 @@ public class DelayedPacketsQueue {
      * @param aDelayedPacket
      */
     public void addDelayedPacket(IDelayedPacketNotifier aDelayedPacket) {
-        if (!mDelayedPackets.containsKey(aDelayedPacket.getConnector())) {
-            mDelayedPackets.put(aDelayedPacket.getConnector(), new LinkedBlockingQueue<IDelayedPacketNotifier>());
+        NioTcpConnector lConnector = aDelayedPacket.getConnector();
+        lConnector.getDelayedPackets().offer(aDelayedPacket);
+        if (lConnector.trySchedule()) {
+            schedule(lConnector);
         }
-        mDelayedPackets.get(aDelayedPacket.getConnector()).offer(aDelayedPacket);
     }
 
     /**
+     * Blocks until a delayed packet is available. The connector of the
+     * returned packet is owned by the calling worker until
+     * {@link #release(NioTcpConnector)} is called.
      *
      * @return The top available delayed packet to be processed by the workers
+     * @throws InterruptedException
      */
-    public synchronized IDelayedPacketNotifier take() throws InterruptedException {
+    public IDelayedPacketNotifier take() throws InterruptedException {
         while (true) {
-            Iterator<NioTcpConnector> lKeys = mDelayedPackets.keySet().iterator();
-            while (lKeys.hasNext()) {
-                NioTcpConnector lConnector = lKeys.next();
-                if (lConnector.getWorkerId() == -1 && !mDelayedPackets.get(lConnector).isEmpty()) {
-                    try {
-                        IDelayedPacketNotifier lPacket = mDelayedPackets.get(lConnector).remove();
-                        lConnector.setWorkerId(Thread.currentThread().hashCode());
-
-                        return lPacket;
-                    } catch (RuntimeException lEx) {
-                        // ignore it. the connector was stopped in the middle
-                    }
-                }
+            mSignal.acquire();
+            NioTcpConnector lConnector = mReadyConnectors.poll();
+            if (null == lConnector) {
+                continue;
+            }
+            IDelayedPacketNotifier lPacket = lConnector.getDelayedPackets().poll();
+            if (null != lPacket) {
+                return lPacket;
             }
-            // CPU release
-            // FindBug: This method calls Thread.sleep() with a lock held. 
-            // This may result in very poor performance and scalability, or a deadlock, 
-            // since other threads may be waiting to acquire the lock. It is a much better
-            // idea to call wait() on the lock, which releases the lock and allows
-            // other threads to run.
-            Thread.sleep(5);
+            // the connector was stopped in the middle
+            release(lConnector);
+        }
+    }
+
+    /**
+     * Releases a connector after one of its packets has been processed. The
+     * connector is scheduled again if it has pending packets, this way other
+     * connectors get their turn in between.
+     *
+     * @param aConnector
+     */
+    public void release(NioTcpConnector aConnector) {
+        if (!aConnector.getDelayedPackets().isEmpty()) {
+            schedule(aConnector);
+            return;
+        }
+        aConnector.unschedule();
+        // a packet could have been added right before unscheduling
+        if (!aConnector.getDelayedPackets().isEmpty() && aConnector.trySchedule()) {
+            schedule(aConnector);
+        }
+    }
+
+    /**
+     * Discards the pending packets of a stopped connector.
+     *
+     * @param aConnector
+     * @return The number of discarded bytes
+     */
+    public long clear(NioTcpConnector aConnector) {
+        long lBytes = 0;
+        IDelayedPacketNotifier lPacket;
+        while (null != (lPacket = aConnector.getDelayedPackets().poll())) {
+            lBytes += lPacket.getBean().getSize();
+            lPacket.getBean().release();
         }
+        return lBytes;
+    }
+
+    /**
+     *
+     * @return The number of connectors waiting for a worker
+     */
+    public int getReadyCount() {
+        return mSignal.availablePermits();
     }
 
-    public Map<NioTcpConnector, Queue<IDelayedPacketNotifier>> getDelayedPackets() {
-        return mDelayedPackets;
+    private void schedule(NioTcpConnector aConnector) {
+        mReadyConnectors.offer(aConnector);
+        mSignal.release();
     }
 }
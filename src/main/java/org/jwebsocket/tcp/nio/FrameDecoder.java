@@ -0,0 +1,261 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - WebSocket NIO Engine, FrameDecoder
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import org.jwebsocket.api.WebSocketPacket;
+import org.jwebsocket.kit.RawPacket;
+import org.jwebsocket.kit.WebSocketException;
+import org.jwebsocket.kit.WebSocketFrameType;
+import org.jwebsocket.kit.WebSocketProtocolAbstraction;
+
+/**
+ * Incremental (stateful) decoder for hybi WebSocket frames. The bytes read from
+ * the socket are appended as they arrive, the decoder keeps partial frames
+ * across reads and returns complete frames one by one. The payload is copied
+ * (and unmasked) only once, when its frame is complete.
+ *
+ * This class is not thread-safe, it's expected that a connector is processed by
+ * one worker at a time.
+ */
+public class FrameDecoder {
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int MAX_HEADER_SIZE = 14;
+    private final int mVersion;
+    private final int mMaxFramesize;
+    // a partial frame plus one socket read of at most the maximum frame size
+    private final int mMaxBufferSize;
+    private byte[] mBuffer;
+    private int mReadPos = 0;
+    private int mWritePos = 0;
+    // header of the current frame, valid if mHeaderLength > 0
+    private int mHeaderLength = 0;
+    private boolean mFin;
+    private boolean mRsv1;
+    private int mOpcode;
+    private int mPayloadLength;
+    private boolean mMasked;
+    private final byte[] mMask = new byte[4];
+
+    /**
+     *
+     * @param aVersion The WebSocket protocol version of the connection
+     * @param aMaxFramesize The maximum allowed payload size of a single frame
+     */
+    public FrameDecoder(int aVersion, int aMaxFramesize) {
+        mVersion = aVersion;
+        mMaxFramesize = aMaxFramesize;
+        mMaxBufferSize = 2 * (aMaxFramesize + MAX_HEADER_SIZE);
+        mBuffer = new byte[Math.min(INITIAL_BUFFER_SIZE, aMaxFramesize + MAX_HEADER_SIZE)];
+    }
+
+    /**
+     * Appends data read from the socket to the decoder.
+     *
+     * @param aData
+     * @param aOffset
+     * @param aLength
+     * @throws WebSocketException if the buffered data exceeds the maximum frame
+     * size
+     */
+    public void append(byte[] aData, int aOffset, int aLength) throws WebSocketException {
+        ensureCapacity(aLength);
+        System.arraycopy(aData, aOffset, mBuffer, mWritePos, aLength);
+        mWritePos += aLength;
+    }
+
+    /**
+     * Appends the remaining data of a buffer read from the socket to the
+     * decoder.
+     *
+     * @param aData
+     * @throws WebSocketException if the buffered data exceeds the maximum frame
+     * size
+     */
+    public void append(ByteBuffer aData) throws WebSocketException {
+        int lLength = aData.remaining();
+        ensureCapacity(lLength);
+        aData.get(mBuffer, mWritePos, lLength);
+        mWritePos += lLength;
+    }
+
+    /**
+     * Reads data from a stream directly into the buffer of the decoder, with a
+     * single read call. The buffer is reused for the following reads, there
+     * is no intermediate copy.
+     *
+     * @param aIn
+     * @param aReadSize The number of bytes requested by the read, the buffer
+     * is compacted or grown if less space is free
+     * @return The number of bytes read, -1 at the end of the stream
+     * @throws IOException
+     * @throws WebSocketException if the buffered data exceeds the maximum frame
+     * size
+     */
+    public int read(InputStream aIn, int aReadSize) throws IOException, WebSocketException {
+        ensureCapacity(Math.min(aReadSize, mMaxFramesize + MAX_HEADER_SIZE));
+        int lRead = aIn.read(mBuffer, mWritePos, mBuffer.length - mWritePos);
+        if (lRead > 0) {
+            mWritePos += lRead;
+        }
+        return lRead;
+    }
+
+    /**
+     *
+     * @return The number of bytes that have been appended but not consumed by
+     * a complete frame yet
+     */
+    public int getBufferedBytes() {
+        return mWritePos - mReadPos;
+    }
+
+    /**
+     * Decodes the next complete frame from the buffered data.
+     *
+     * @return The next complete frame or <tt>null</tt> if more data is
+     * required
+     * @throws WebSocketException if the frame is invalid or too large
+     */
+    public WebSocketPacket nextPacket() throws WebSocketException {
+        if (0 == mHeaderLength && !parseHeader()) {
+            return null;
+        }
+        if (mWritePos - mReadPos < mHeaderLength + mPayloadLength) {
+            return null;
+        }
+
+        int lStart = mReadPos + mHeaderLength;
+        byte[] lPayload = new byte[mPayloadLength];
+        if (mMasked) {
+            for (int lIdx = 0; lIdx < mPayloadLength; lIdx++) {
+                lPayload[lIdx] = (byte) (mBuffer[lStart + lIdx] ^ mMask[lIdx & 3]);
+            }
+        } else {
+            System.arraycopy(mBuffer, lStart, lPayload, 0, mPayloadLength);
+        }
+        mReadPos = lStart + mPayloadLength;
+        mHeaderLength = 0;
+        if (mReadPos == mWritePos) {
+            mReadPos = 0;
+            mWritePos = 0;
+        }
+
+        WebSocketFrameType lFrameType = WebSocketProtocolAbstraction.opcodeToFrameType(mVersion, mOpcode);
+        if (null == lFrameType) {
+            lFrameType = WebSocketFrameType.INVALID;
+        }
+        return new RawPacket(lFrameType, lPayload);
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if the header of the last decoded frame has the FIN
+     * bit set
+     */
+    public boolean isFinalFragment() {
+        return mFin;
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if the header of the last decoded frame has the
+     * RSV1 bit set (permessage-deflate)
+     */
+    public boolean isRsv1() {
+        return mRsv1;
+    }
+
+    private boolean parseHeader() throws WebSocketException {
+        int lAvailable = mWritePos - mReadPos;
+        if (lAvailable < 2) {
+            return false;
+        }
+        int lByte0 = mBuffer[mReadPos] & 0xFF;
+        int lByte1 = mBuffer[mReadPos + 1] & 0xFF;
+        boolean lMasked = (lByte1 & 0x80) != 0;
+        int lLength = lByte1 & 0x7F;
+
+        int lHeaderLength = 2;
+        if (126 == lLength) {
+            lHeaderLength += 2;
+        } else if (127 == lLength) {
+            lHeaderLength += 8;
+        }
+        if (lMasked) {
+            lHeaderLength += 4;
+        }
+        if (lAvailable < lHeaderLength) {
+            return false;
+        }
+
+        long lPayloadLength = lLength;
+        int lPos = mReadPos + 2;
+        if (126 == lLength) {
+            lPayloadLength = ((mBuffer[lPos] & 0xFF) << 8) | (mBuffer[lPos + 1] & 0xFF);
+            lPos += 2;
+        } else if (127 == lLength) {
+            lPayloadLength = 0;
+            for (int lIdx = 0; lIdx < 8; lIdx++) {
+                lPayloadLength = (lPayloadLength << 8) | (mBuffer[lPos + lIdx] & 0xFF);
+            }
+            lPos += 8;
+        }
+        if (lPayloadLength < 0 || lPayloadLength > mMaxFramesize) {
+            throw new WebSocketException("Frame size " + lPayloadLength
+                    + " exceeds the maximum frame size of " + mMaxFramesize + " bytes.");
+        }
+        if (lMasked) {
+            System.arraycopy(mBuffer, lPos, mMask, 0, 4);
+        }
+
+        mFin = (lByte0 & 0x80) != 0;
+        mRsv1 = (lByte0 & 0x40) != 0;
+        mOpcode = lByte0 & 0x0F;
+        mMasked = lMasked;
+        mPayloadLength = (int) lPayloadLength;
+        mHeaderLength = lHeaderLength;
+        return true;
+    }
+
+    private void ensureCapacity(int aLength) throws WebSocketException {
+        if (mBuffer.length - mWritePos >= aLength) {
+            return;
+        }
+        int lPending = mWritePos - mReadPos;
+        int lRequired = lPending + aLength;
+        if (lRequired > mMaxBufferSize) {
+            throw new WebSocketException("Buffered data of " + lRequired
+                    + " bytes exceeds the maximum buffer size of " + mMaxBufferSize + " bytes.");
+        }
+        byte[] lTarget = mBuffer;
+        if (lRequired > mBuffer.length) {
+            int lCapacity = mBuffer.length;
+            while (lCapacity < lRequired) {
+                lCapacity <<= 1;
+            }
+            lTarget = new byte[Math.min(lCapacity, mMaxBufferSize)];
+        }
+        // move the unconsumed bytes to the beginning of the buffer
+        System.arraycopy(mBuffer, mReadPos, lTarget, 0, lPending);
+        mBuffer = lTarget;
+        mReadPos = 0;
+        mWritePos = lPending;
+    }
+}
@@ -0,0 +1,197 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - WebSocket NIO Engine, FrameEncoder
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp.nio;
+
+import java.nio.ByteBuffer;
+import org.jwebsocket.api.WebSocketPacket;
+import org.jwebsocket.kit.WebSocketFrameType;
+import org.jwebsocket.kit.WebSocketProtocolAbstraction;
+import org.jwebsocket.tcp.PerMessageDeflate;
+import org.jwebsocket.tcp.SharedPacket;
+
+/**
+ * Encodes outgoing packets into WebSocket frames directly into pooled buffers,
+ * without intermediate byte arrays. Server frames are never masked.
+ */
+public class FrameEncoder {
+
+    // the frame key of hixie frames, the keys of hybi frames are their first byte
+    private static final int HIXIE_FRAME_KEY = 0x100;
+
+    /**
+     * Encodes the packet into a hixie (0x00 data 0xFF) or a hybi frame.
+     *
+     * @param aPool
+     * @param aHixie
+     * @param aVersion
+     * @param aPacket
+     * @return The flipped frame, ready to be written to the socket
+     */
+    public static PooledBuffer encode(BufferPool aPool, boolean aHixie, int aVersion,
+            WebSocketPacket aPacket) {
+        byte[] lPayload = aPacket.getByteArray();
+        if (aHixie) {
+            PooledBuffer lFrame = aPool.acquire(lPayload.length + 2);
+            ByteBuffer lBuffer = lFrame.getBuffer();
+            lBuffer.put((byte) 0x00);
+            lBuffer.put(lPayload);
+            lBuffer.put((byte) 0xFF);
+            lBuffer.flip();
+            return lFrame;
+        }
+
+        return encode(aPool, aVersion, aPacket.getFrameType(), lPayload, false);
+    }
+
+    /**
+     * Encodes a payload into a single hybi frame.
+     *
+     * @param aPool
+     * @param aVersion
+     * @param aFrameType The frame type, TEXT if <tt>null</tt>
+     * @param aPayload
+     * @param aCompressed <tt>true</tt> to set the RSV1 bit of a
+     * permessage-deflate compressed payload
+     * @return The flipped frame, ready to be written to the socket
+     */
+    public static PooledBuffer encode(BufferPool aPool, int aVersion, WebSocketFrameType aFrameType,
+            byte[] aPayload, boolean aCompressed) {
+        PooledBuffer lFrame = aPool.acquire(getHeaderLength(aPayload.length) + aPayload.length);
+        ByteBuffer lBuffer = lFrame.getBuffer();
+        putHeader(lBuffer, getFirstByte(aVersion, aFrameType, aCompressed), aPayload.length);
+        lBuffer.put(aPayload);
+        lBuffer.flip();
+        return lFrame;
+    }
+
+    /**
+     * Returns the frame of a shared packet, it's encoded once per frame
+     * encoding and cached by the packet. The payload is compressed without
+     * context takeover if a permessage-deflate extension is passed.
+     *
+     * @param aPacket
+     * @param aHixie
+     * @param aVersion
+     * @param aDeflate The extension if the payload is to be compressed,
+     * <tt>null</tt> otherwise
+     * @return The frame, which must not be changed
+     */
+    public static byte[] getSharedFrame(SharedPacket aPacket, boolean aHixie, int aVersion,
+            PerMessageDeflate aDeflate) {
+        int lKey = aHixie ? HIXIE_FRAME_KEY
+                : getFirstByte(aVersion, aPacket.getFrameType(), null != aDeflate);
+        byte[] lFrame = aPacket.getFrame(lKey);
+        if (null == lFrame) {
+            lFrame = encodeFrame(aPacket, aHixie, lKey, aDeflate);
+            aPacket.putFrame(lKey, lFrame);
+            lFrame = aPacket.getFrame(lKey);
+        }
+        return lFrame;
+    }
+
+    /**
+     * Returns a read-only buffer of the frame of a shared packet, all buffers
+     * returned for a frame encoding share the same data.
+     *
+     * @param aPacket
+     * @param aHixie
+     * @param aVersion
+     * @param aDeflate The extension if the payload is to be compressed,
+     * <tt>null</tt> otherwise
+     * @return The frame, ready to be written to the socket
+     * @see #getSharedFrame(SharedPacket, boolean, int, PerMessageDeflate)
+     */
+    public static ByteBuffer encodeShared(SharedPacket aPacket, boolean aHixie, int aVersion,
+            PerMessageDeflate aDeflate) {
+        int lKey = aHixie ? HIXIE_FRAME_KEY
+                : getFirstByte(aVersion, aPacket.getFrameType(), null != aDeflate);
+        ByteBuffer lFrame = aPacket.getFrameBuffer(lKey);
+        if (null == lFrame) {
+            aPacket.putFrame(lKey, encodeFrame(aPacket, aHixie, lKey, aDeflate));
+            lFrame = aPacket.getFrameBuffer(lKey);
+        }
+        return lFrame;
+    }
+
+    private static byte[] encodeFrame(SharedPacket aPacket, boolean aHixie, int aFirstByte,
+            PerMessageDeflate aDeflate) {
+        byte[] lPayload = (null != aDeflate) ? aDeflate.compress(aPacket) : aPacket.getByteArray();
+        if (aHixie) {
+            byte[] lFrame = new byte[lPayload.length + 2];
+            lFrame[0] = 0x00;
+            System.arraycopy(lPayload, 0, lFrame, 1, lPayload.length);
+            lFrame[lFrame.length - 1] = (byte) 0xFF;
+            return lFrame;
+        }
+        byte[] lFrame = new byte[getHeaderLength(lPayload.length) + lPayload.length];
+        ByteBuffer lBuffer = ByteBuffer.wrap(lFrame);
+        putHeader(lBuffer, aFirstByte, lPayload.length);
+        lBuffer.put(lPayload);
+        return lFrame;
+    }
+
+    /**
+     *
+     * @param aVersion
+     * @param aFrameType The frame type, TEXT if <tt>null</tt>
+     * @param aCompressed
+     * @return The FIN/RSV bits and the opcode of an unfragmented frame
+     */
+    public static int getFirstByte(int aVersion, WebSocketFrameType aFrameType, boolean aCompressed) {
+        if (null == aFrameType) {
+            aFrameType = WebSocketFrameType.TEXT;
+        }
+        int lFirstByte = 0x80 | WebSocketProtocolAbstraction.frameTypeToOpcode(aVersion, aFrameType);
+        if (aCompressed) {
+            lFirstByte |= PerMessageDeflate.RSV1;
+        }
+        return lFirstByte;
+    }
+
+    /**
+     *
+     * @param aPayloadLength
+     * @return The length of an unmasked hybi frame header
+     */
+    public static int getHeaderLength(int aPayloadLength) {
+        if (aPayloadLength <= 125) {
+            return 2;
+        } else if (aPayloadLength <= 0xFFFF) {
+            return 4;
+        }
+        return 10;
+    }
+
+    /**
+     * Writes an unmasked hybi frame header.
+     *
+     * @param aBuffer
+     * @param aFirstByte The FIN/RSV bits and the opcode
+     * @param aPayloadLength
+     */
+    public static void putHeader(ByteBuffer aBuffer, int aFirstByte, int aPayloadLength) {
+        aBuffer.put((byte) aFirstByte);
+        if (aPayloadLength <= 125) {
+            aBuffer.put((byte) aPayloadLength);
+        } else if (aPayloadLength <= 0xFFFF) {
+            aBuffer.put((byte) 126);
+            aBuffer.putShort((short) aPayloadLength);
+        } else {
+            aBuffer.put((byte) 127);
+            aBuffer.putLong(aPayloadLength);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Incremental hixie frame decoder
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.jwebsocket.api.WebSocketPacket;
+import org.jwebsocket.kit.RawPacket;
+import org.jwebsocket.kit.WebSocketException;
+import org.jwebsocket.kit.WebSocketFrameType;
+
+/**
+ * Incremental (stateful) decoder for hixie WebSocket frames. Text frames
+ * (0x00 data 0xFF) are found by scanning the buffered data for the end
+ * delimiter, each byte is scanned once even if a frame arrives in several
+ * reads. Length prefixed frames are skipped as a whole, the closing frame
+ * (0xFF 0x00) is returned as CLOSE packet. The payload is copied only once,
+ * when its frame is complete.
+ *
+ * This class is not thread-safe, it's expected that a connector is processed by
+ * one worker at a time.
+ */
+public class HixieDecoder {
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final byte FRAME_END = (byte) 0xFF;
+    private final int mMaxFramesize;
+    // a partial frame plus one socket read of at most the maximum frame size
+    private final int mMaxBufferSize;
+    private byte[] mBuffer;
+    private int mReadPos = 0;
+    private int mWritePos = 0;
+    // bytes of the current text frame scanned without finding its end
+    private int mScanned = 0;
+
+    /**
+     *
+     * @param aMaxFramesize The maximum allowed payload size of a single frame
+     */
+    public HixieDecoder(int aMaxFramesize) {
+        mMaxFramesize = aMaxFramesize;
+        mMaxBufferSize = 2 * (aMaxFramesize + 2);
+        mBuffer = new byte[Math.min(INITIAL_BUFFER_SIZE, aMaxFramesize + 2)];
+    }
+
+    /**
+     * Appends data read from the socket to the decoder.
+     *
+     * @param aData
+     * @param aOffset
+     * @param aLength
+     * @throws WebSocketException if the buffered data exceeds the maximum frame
+     * size
+     */
+    public void append(byte[] aData, int aOffset, int aLength) throws WebSocketException {
+        ensureCapacity(aLength);
+        System.arraycopy(aData, aOffset, mBuffer, mWritePos, aLength);
+        mWritePos += aLength;
+    }
+
+    /**
+     * Appends the remaining data of a buffer read from the socket to the
+     * decoder.
+     *
+     * @param aData
+     * @throws WebSocketException if the buffered data exceeds the maximum frame
+     * size
+     */
+    public void append(ByteBuffer aData) throws WebSocketException {
+        int lLength = aData.remaining();
+        ensureCapacity(lLength);
+        aData.get(mBuffer, mWritePos, lLength);
+        mWritePos += lLength;
+    }
+
+    /**
+     * Reads data from a stream directly into the buffer of the decoder, with a
+     * single read call. The buffer is reused for the following reads, there
+     * is no intermediate copy.
+     *
+     * @param aIn
+     * @param aReadSize The number of bytes requested by the read, the buffer
+     * is compacted or grown if less space is free
+     * @return The number of bytes read, -1 at the end of the stream
+     * @throws IOException
+     * @throws WebSocketException if the buffered data exceeds the maximum frame
+     * size
+     */
+    public int read(InputStream aIn, int aReadSize) throws IOException, WebSocketException {
+        ensureCapacity(Math.min(aReadSize, mMaxFramesize + 2));
+        int lRead = aIn.read(mBuffer, mWritePos, mBuffer.length - mWritePos);
+        if (lRead > 0) {
+            mWritePos += lRead;
+        }
+        return lRead;
+    }
+
+    /**
+     *
+     * @return The number of bytes that have been appended but not consumed by
+     * a complete frame yet
+     */
+    public int getBufferedBytes() {
+        return mWritePos - mReadPos;
+    }
+
+    /**
+     * Decodes the next complete text or closing frame from the buffered data,
+     * other frames are skipped.
+     *
+     * @return The next complete frame or <tt>null</tt> if more data is
+     * required
+     * @throws WebSocketException if a frame is too large
+     */
+    public WebSocketPacket nextPacket() throws WebSocketException {
+        while (mReadPos < mWritePos) {
+            int lType = mBuffer[mReadPos] & 0xFF;
+            if (0 == (lType & 0x80)) {
+                // frame terminated by 0xFF
+                int lStart = mReadPos + 1;
+                int lEnd = indexOf(FRAME_END, lStart + mScanned, mWritePos);
+                if (lEnd < 0) {
+                    mScanned = mWritePos - lStart;
+                    if (mScanned > mMaxFramesize) {
+                        throw new WebSocketException("Frame exceeds the maximum frame size of "
+                                + mMaxFramesize + " bytes.");
+                    }
+                    return null;
+                }
+                mScanned = 0;
+                mReadPos = lEnd + 1;
+                if (lEnd - lStart > mMaxFramesize) {
+                    throw new WebSocketException("Frame exceeds the maximum frame size of "
+                            + mMaxFramesize + " bytes.");
+                }
+                if (0x00 == lType) {
+                    return new RawPacket(Arrays.copyOfRange(mBuffer, lStart, lEnd));
+                }
+                // frames of other types are discarded
+                continue;
+            }
+
+            // frame prefixed by its length in 7 bit groups
+            long lLength = 0;
+            int lPos = mReadPos + 1;
+            boolean lLengthComplete = false;
+            while (lPos < mWritePos) {
+                int lByte = mBuffer[lPos++] & 0xFF;
+                lLength = (lLength << 7) | (lByte & 0x7F);
+                if (lLength > mMaxFramesize) {
+                    throw new WebSocketException("Frame exceeds the maximum frame size of "
+                            + mMaxFramesize + " bytes.");
+                }
+                if (0 == (lByte & 0x80)) {
+                    lLengthComplete = true;
+                    break;
+                }
+            }
+            if (!lLengthComplete || mWritePos - lPos < lLength) {
+                return null;
+            }
+            mReadPos = lPos + (int) lLength;
+            if (0xFF == lType && 0 == lLength) {
+                return new RawPacket(WebSocketFrameType.CLOSE, new byte[0]);
+            }
+            // binary frames are not supported by the hixie drafts, they are discarded
+        }
+        return null;
+    }
+
+    private int indexOf(byte aByte, int aFrom, int aTo) {
+        byte[] lBuffer = mBuffer;
+        for (int lIdx = aFrom; lIdx < aTo; lIdx++) {
+            if (aByte == lBuffer[lIdx]) {
+                return lIdx;
+            }
+        }
+        return -1;
+    }
+
+    private void ensureCapacity(int aLength) throws WebSocketException {
+        if (mBuffer.length - mWritePos >= aLength) {
+            return;
+        }
+        int lPending = mWritePos - mReadPos;
+        int lRequired = lPending + aLength;
+        if (lRequired > mMaxBufferSize) {
+            throw new WebSocketException("Buffered data of " + lRequired
+                    + " bytes exceeds the maximum buffer size of " + mMaxBufferSize + " bytes.");
+        }
+        byte[] lTarget = mBuffer;
+        if (lRequired > mBuffer.length) {
+            int lCapacity = mBuffer.length;
+            while (lCapacity < lRequired) {
+                lCapacity <<= 1;
+            }
+            lTarget = new byte[Math.min(lCapacity, mMaxBufferSize)];
+        }
+        // move the unconsumed bytes to the beginning of the buffer
+        System.arraycopy(mBuffer, mReadPos, lTarget, 0, lPending);
+        mBuffer = lTarget;
+        mReadPos = 0;
+        mWritePos = lPending;
+    }
+}
@@ -1,6 +1,6 @@
 //    ---------------------------------------------------------------------------
-//    jWebSocket - PurgeCancelledWriterTimeouts
-//    Copyright (c) 2011 Alexander Schulze, Innotrade GmbH
+//    jWebSocket - WebSocket NIO Engine, IWritabilityListener
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
 //    ---------------------------------------------------------------------------
 //    This program is free software; you can redistribute it and/or modify it
 //    under the terms of the GNU Lesser General Public License as published by the
@@ -13,31 +13,22 @@
 //    You should have received a copy of the GNU Lesser General Public License along
 //    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
 //    ---------------------------------------------------------------------------
-package org.jwebsocket.tcp;
-
-import java.util.Timer;
-import java.util.TimerTask;
+package org.jwebsocket.tcp.nio;
 
 /**
+ * Listener for the outbound writability of NIO connectors. A connector becomes
+ * unwritable when its pending outgoing bytes exceed the engine's high
+ * watermark, and writable again when they drop below the low watermark.
  *
- * @author kyberneees, aschulze
+ * Events are fired from the sending or the selector threads, listeners must
+ * not block.
  */
-public class PurgeCancelledWriterTasks extends TimerTask {
-
-    private Timer mTimer;
-    
-    public PurgeCancelledWriterTasks(Timer aTimer) {
-        mTimer = aTimer;
-    }
+public interface IWritabilityListener {
 
-    @Override
-    public void run() {
-        mTimer.purge(); // Keep the timer cleaned up
-        /*
-        int lCount = mTimer.purge(); // Keep the timer cleaned up
-        if (lCount > 0 && mLog.isDebugEnabled()) {
-            mLog.debug("Purged " + lCount + " cancelled TCP writer tasks.");
-        }
-         */
-    }
+    /**
+     *
+     * @param aConnector
+     * @param aWritable <tt>false</tt> if the connector is a slow consumer
+     */
+    void writabilityChanged(NioTcpConnector aConnector, boolean aWritable);
 }
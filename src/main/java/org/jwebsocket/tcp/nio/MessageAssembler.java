@@ -0,0 +1,163 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - WebSocket NIO Engine, MessageAssembler
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp.nio;
+
+import java.util.Arrays;
+import org.jwebsocket.api.WebSocketPacket;
+import org.jwebsocket.kit.RawPacket;
+import org.jwebsocket.kit.WebSocketException;
+import org.jwebsocket.kit.WebSocketFrameType;
+
+/**
+ * Reassembles fragmented hybi messages. The payload of each data frame is
+ * appended as it arrives, the message is returned once its final fragment has
+ * been received. Unfragmented messages are passed through without copying.
+ * Control frames may be interleaved and are not handled here.
+ *
+ * This class is not thread-safe, it's expected that a connector is processed by
+ * one worker at a time.
+ */
+public class MessageAssembler {
+
+    /**
+     * Close code for protocol errors
+     */
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    /**
+     * Close code for messages exceeding the maximum message size
+     */
+    public static final int CLOSE_MESSAGE_TOO_BIG = 1009;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private final int mMaxMessageSize;
+    // frame type of the message in progress, null if none
+    private WebSocketFrameType mFrameType;
+    private byte[] mBuffer;
+    private int mSize;
+    private boolean mPendingCompressed;
+    private boolean mCompressed;
+    private int mCloseCode = CLOSE_PROTOCOL_ERROR;
+
+    /**
+     *
+     * @param aMaxMessageSize The maximum allowed size of a reassembled message
+     */
+    public MessageAssembler(int aMaxMessageSize) {
+        mMaxMessageSize = aMaxMessageSize;
+    }
+
+    /**
+     * Adds a decoded TEXT, BINARY or continuation (FRAGMENT) frame.
+     *
+     * @param aFrame
+     * @param aFin <tt>true</tt> if the frame has the FIN bit set
+     * @param aRsv1 <tt>true</tt> if the frame has the RSV1 (compressed) bit
+     * set
+     * @return The complete message or <tt>null</tt> if more fragments are
+     * expected
+     * @throws WebSocketException if the fragments are out of order or the
+     * message exceeds the maximum size
+     */
+    public WebSocketPacket assemble(WebSocketPacket aFrame, boolean aFin, boolean aRsv1)
+            throws WebSocketException {
+        if (WebSocketFrameType.FRAGMENT == aFrame.getFrameType()) {
+            if (null == mFrameType) {
+                fail(CLOSE_PROTOCOL_ERROR, "Continuation frame without a started message.");
+            }
+            if (aRsv1) {
+                fail(CLOSE_PROTOCOL_ERROR, "RSV1 bit set on a continuation frame.");
+            }
+            append(aFrame.getByteArray());
+            return aFin ? complete() : null;
+        }
+
+        if (null != mFrameType) {
+            fail(CLOSE_PROTOCOL_ERROR, "New " + aFrame.getFrameType()
+                    + " frame while a fragmented message is in progress.");
+        }
+        if (aFin) {
+            mCompressed = aRsv1;
+            return aFrame;
+        }
+        mFrameType = aFrame.getFrameType();
+        mPendingCompressed = aRsv1;
+        append(aFrame.getByteArray());
+        return null;
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if the last returned message is compressed (its
+     * first frame had the RSV1 bit set)
+     */
+    public boolean isCompressed() {
+        return mCompressed;
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if a fragmented message is in progress
+     */
+    public boolean isInProgress() {
+        return null != mFrameType;
+    }
+
+    /**
+     *
+     * @return The close code matching the last error
+     */
+    public int getCloseCode() {
+        return mCloseCode;
+    }
+
+    private void append(byte[] aPayload) throws WebSocketException {
+        int lRequired = mSize + aPayload.length;
+        if (lRequired > mMaxMessageSize) {
+            fail(CLOSE_MESSAGE_TOO_BIG, "Message size " + lRequired
+                    + " exceeds the maximum message size of " + mMaxMessageSize + " bytes.");
+        }
+        if (null == mBuffer) {
+            mBuffer = new byte[Math.min(mMaxMessageSize, Math.max(INITIAL_BUFFER_SIZE, lRequired))];
+        } else if (lRequired > mBuffer.length) {
+            int lCapacity = mBuffer.length;
+            while (lCapacity < lRequired) {
+                lCapacity <<= 1;
+            }
+            mBuffer = Arrays.copyOf(mBuffer, Math.min(lCapacity, mMaxMessageSize));
+        }
+        System.arraycopy(aPayload, 0, mBuffer, mSize, aPayload.length);
+        mSize = lRequired;
+    }
+
+    private WebSocketPacket complete() {
+        WebSocketPacket lMessage = new RawPacket(mFrameType, Arrays.copyOf(mBuffer, mSize));
+        mCompressed = mPendingCompressed;
+        reset();
+        return lMessage;
+    }
+
+    private void fail(int aCloseCode, String aMessage) throws WebSocketException {
+        reset();
+        mCloseCode = aCloseCode;
+        throw new WebSocketException(aMessage);
+    }
+
+    private void reset() {
+        mFrameType = null;
+        // large buffers are not kept between messages
+        mBuffer = null;
+        mSize = 0;
+    }
+}
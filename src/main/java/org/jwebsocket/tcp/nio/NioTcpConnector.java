@@ -18,13 +18,24 @@ package org.jwebsocket.tcp.nio;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.net.ssl.SSLEngine;
 import org.apache.log4j.Logger;
 import org.jwebsocket.api.WebSocketPacket;
 import org.jwebsocket.async.IOFuture;
 import org.jwebsocket.connectors.BaseConnector;
-import org.jwebsocket.kit.WebSocketProtocolAbstraction;
+import org.jwebsocket.kit.WebSocketFrameType;
 import org.jwebsocket.logging.Logging;
+import org.jwebsocket.tcp.HandshakeScanner;
+import org.jwebsocket.tcp.PerMessageDeflate;
+import org.jwebsocket.tcp.SharedPacket;
+import org.jwebsocket.tcp.TimingWheel;
 
 /**
  *
@@ -34,29 +45,414 @@ import org.jwebsocket.logging.Logging;
 public class NioTcpConnector extends BaseConnector {
 
     private static Logger mLog = Logging.getLogger();
+    private final long mNumericId;
+    private final String mId;
     private InetAddress mRemoteAddress;
     private int mRemotePort;
     private boolean mIsAfterWSHandshake;
-    private int mWorkerId = -1;
     private boolean mIsAfterSSLHandshake;
-    private SSLEngine mSSLEngine;
+    private SSLHandler mSSLHandler;
+    private NioTcpEngine.SelectorThread mSelectorThread;
+    // the channel is detached once the connection is closed
+    private final AtomicReference<SocketChannel> mChannel = new AtomicReference<SocketChannel>();
+    private volatile SelectionKey mSelectionKey;
+    private final AtomicReference<Queue<DataFuture>> mWriteQueue = new AtomicReference<Queue<DataFuture>>();
+    private FrameDecoder mFrameDecoder;
+    private HixieDecoder mHixieDecoder;
+    private MessageAssembler mMessageAssembler;
+    private volatile PerMessageDeflate mDeflate;
+    private final Queue<IDelayedPacketNotifier> mDelayedPackets = new ConcurrentLinkedQueue<IDelayedPacketNotifier>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean mWriteScheduled = new AtomicBoolean(false);
+    // outbound backpressure state
+    private final AtomicLong mPendingWriteBytes = new AtomicLong();
+    private final AtomicLong mPendingWriteCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicBoolean mWritable = new AtomicBoolean(true);
+    private final AtomicBoolean mTrimScheduled = new AtomicBoolean(false);
+    // inbound backpressure state
+    private final AtomicLong mUnprocessedBytes = new AtomicLong();
+    private final AtomicBoolean mReadPaused = new AtomicBoolean(false);
+    // idle detection, updated and checked by the selector thread
+    private volatile long mLastRead = TimingWheel.now();
+    private volatile long mLastWrite = mLastRead;
+    private volatile long mPingSent = 0;
+    private volatile int mIdleTimeout = 0;
+    private TimingWheel.Timeout mIdleCheck;
+    private final long mConnectedAt = mLastRead;
+    private HandshakeScanner mHandshakeScanner;
+    // admitted connection counted as pending handshake
+    private final AtomicBoolean mHandshakePending = new AtomicBoolean(false);
+    // corking state, the corked flag may be cleared by the sending threads
+    private final AtomicBoolean mCorked = new AtomicBoolean(false);
+    private volatile boolean mUrgentWrite = false;
+    // accessed by the selector thread only
+    private boolean mCorkQueued = false;
+    private long mCorkedSince;
 
-    public NioTcpConnector(NioTcpEngine aEngine, InetAddress aRemoteAddress,
+    /**
+     *
+     * @param aEngine
+     * @param aId The unique id allocated by the engine
+     * @param aRemoteAddress
+     * @param aRemotePort
+     */
+    public NioTcpConnector(NioTcpEngine aEngine, long aId, InetAddress aRemoteAddress,
             int aRemotePort) {
         super(aEngine);
 
+        mNumericId = aId;
+        mId = String.valueOf(aId);
         this.mRemoteAddress = aRemoteAddress;
         this.mRemotePort = aRemotePort;
         mIsAfterWSHandshake = false;
-        mWorkerId = -1;
     }
 
     public SSLEngine getSSLEngine() {
-        return mSSLEngine;
+        return (null != mSSLHandler) ? mSSLHandler.getEngine() : null;
     }
 
-    public void setSSLEngine(SSLEngine aSSLEngine) {
-        this.mSSLEngine = aSSLEngine;
+    /**
+     *
+     * @return The TLS state of the connector, <tt>null</tt> for plain
+     * connections
+     */
+    public SSLHandler getSSLHandler() {
+        return mSSLHandler;
+    }
+
+    public void setSSLHandler(SSLHandler aSSLHandler) {
+        this.mSSLHandler = aSSLHandler;
+    }
+
+    /**
+     *
+     * @return The selector thread (reactor) that owns this connector's socket
+     * channel
+     */
+    NioTcpEngine.SelectorThread getSelectorThread() {
+        return mSelectorThread;
+    }
+
+    void setSelectorThread(NioTcpEngine.SelectorThread aSelectorThread) {
+        this.mSelectorThread = aSelectorThread;
+    }
+
+    /**
+     *
+     * @return The socket channel, <tt>null</tt> once the connection has been
+     * closed
+     */
+    SocketChannel getChannel() {
+        return mChannel.get();
+    }
+
+    void setChannel(SocketChannel aChannel) {
+        mChannel.set(aChannel);
+    }
+
+    /**
+     * Detaches the socket channel from the connector, only the first caller
+     * gets it.
+     *
+     * @return The channel to be closed, <tt>null</tt> if already closed
+     */
+    SocketChannel detachChannel() {
+        return mChannel.getAndSet(null);
+    }
+
+    /**
+     *
+     * @return The key of the channel's registration with the selector
+     * thread, the connector is attached to it
+     */
+    SelectionKey getSelectionKey() {
+        return mSelectionKey;
+    }
+
+    void setSelectionKey(SelectionKey aSelectionKey) {
+        mSelectionKey = aSelectionKey;
+    }
+
+    /**
+     *
+     * @return The frames waiting to be written, <tt>null</tt> if the
+     * connector is not registered with a selector thread
+     */
+    Queue<DataFuture> getWriteQueue() {
+        return mWriteQueue.get();
+    }
+
+    void setWriteQueue(Queue<DataFuture> aQueue) {
+        mWriteQueue.set(aQueue);
+    }
+
+    /**
+     *
+     * @return The removed write queue, <tt>null</tt> if it has already been
+     * removed
+     */
+    Queue<DataFuture> removeWriteQueue() {
+        return mWriteQueue.getAndSet(null);
+    }
+
+    /**
+     *
+     * @return The incremental frame decoder of this connector, it keeps
+     * partial frames across socket reads
+     */
+    public FrameDecoder getFrameDecoder() {
+        if (null == mFrameDecoder) {
+            mFrameDecoder = new FrameDecoder(getVersion(),
+                    getEngine().getConfiguration().getMaxFramesize());
+        }
+        return mFrameDecoder;
+    }
+
+    /**
+     *
+     * @return The incremental hixie frame decoder of this connector, it keeps
+     * partial frames across socket reads
+     */
+    public HixieDecoder getHixieDecoder() {
+        if (null == mHixieDecoder) {
+            mHixieDecoder = new HixieDecoder(getEngine().getConfiguration().getMaxFramesize());
+        }
+        return mHixieDecoder;
+    }
+
+    /**
+     *
+     * @return <tt>false</tt> if the pending outgoing bytes exceeded the
+     * engine's high watermark and did not drop below the low watermark yet
+     */
+    public boolean isWritable() {
+        return mWritable.get();
+    }
+
+    /**
+     *
+     * @return The number of bytes queued but not written to the socket yet
+     */
+    public long getPendingWriteBytes() {
+        return mPendingWriteBytes.get();
+    }
+
+    /**
+     *
+     * @return The number of frames queued but not written to the socket yet
+     */
+    public long getPendingWriteCount() {
+        return mPendingWriteCount.get();
+    }
+
+    /**
+     *
+     * @return The number of outgoing frames dropped by the slow consumer
+     * policy
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    long addPendingWrite(int aBytes) {
+        mPendingWriteCount.incrementAndGet();
+        return mPendingWriteBytes.addAndGet(aBytes);
+    }
+
+    long removePendingWrite(int aBytes) {
+        mPendingWriteCount.decrementAndGet();
+        return mPendingWriteBytes.addAndGet(-aBytes);
+    }
+
+    void incrementDropped() {
+        mDroppedCount.incrementAndGet();
+    }
+
+    /**
+     *
+     * @param aWritable
+     * @return <tt>true</tt> if the writability changed
+     */
+    boolean setWritable(boolean aWritable) {
+        return mWritable.compareAndSet(!aWritable, aWritable);
+    }
+
+    /**
+     *
+     * @return The number of bytes read from the socket but not processed by
+     * the workers yet
+     */
+    public long getUnprocessedBytes() {
+        return mUnprocessedBytes.get();
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if reading from the socket is paused because the
+     * workers fall behind
+     */
+    public boolean isReadPaused() {
+        return mReadPaused.get();
+    }
+
+    long addUnprocessedBytes(long aBytes) {
+        return mUnprocessedBytes.addAndGet(aBytes);
+    }
+
+    /**
+     *
+     * @param aPaused
+     * @return <tt>true</tt> if the read state changed
+     */
+    boolean setReadPaused(boolean aPaused) {
+        return mReadPaused.compareAndSet(!aPaused, aPaused);
+    }
+
+    boolean tryScheduleTrim() {
+        return mTrimScheduled.compareAndSet(false, true);
+    }
+
+    void unscheduleTrim() {
+        mTrimScheduled.set(false);
+    }
+
+    /**
+     *
+     * @return The time of the last socket read, as returned by
+     * {@link TimingWheel#now()}
+     */
+    public long getLastRead() {
+        return mLastRead;
+    }
+
+    /**
+     *
+     * @return The time of the last socket write, as returned by
+     * {@link TimingWheel#now()}
+     */
+    public long getLastWrite() {
+        return mLastWrite;
+    }
+
+    void setLastRead(long aTime) {
+        mLastRead = aTime;
+    }
+
+    void setLastWrite(long aTime) {
+        mLastWrite = aTime;
+    }
+
+    /**
+     *
+     * @return The time the unanswered PING was sent, <tt>0</tt> if none is
+     * outstanding
+     */
+    long getPingSent() {
+        return mPingSent;
+    }
+
+    void setPingSent(long aTime) {
+        mPingSent = aTime;
+    }
+
+    /**
+     *
+     * @return The time in milliseconds after which the connector is closed if
+     * nothing has been received, <tt>0</tt> for no timeout
+     */
+    public int getIdleTimeout() {
+        return mIdleTimeout;
+    }
+
+    void setIdleTimeout(int aIdleTimeout) {
+        mIdleTimeout = aIdleTimeout;
+    }
+
+    TimingWheel.Timeout getIdleCheck() {
+        return mIdleCheck;
+    }
+
+    void setIdleCheck(TimingWheel.Timeout aIdleCheck) {
+        mIdleCheck = aIdleCheck;
+    }
+
+    /**
+     *
+     * @return The time the connection has been accepted, as returned by
+     * {@link TimingWheel#now()}
+     */
+    public long getConnectedAt() {
+        return mConnectedAt;
+    }
+
+    /**
+     *
+     * @return The scanner collecting the handshake request, it's released
+     * once the request is complete
+     */
+    HandshakeScanner getHandshakeScanner() {
+        if (null == mHandshakeScanner) {
+            mHandshakeScanner = new HandshakeScanner(
+                    ((NioTcpEngine) getEngine()).getMaxHandshakeSize());
+        }
+        return mHandshakeScanner;
+    }
+
+    void releaseHandshakeScanner() {
+        mHandshakeScanner = null;
+    }
+
+    /**
+     * Removes a cancelled frame from the write queue, executed by the selector
+     * thread.
+     *
+     * @param aFuture
+     */
+    void writeCancelled(DataFuture aFuture) {
+        NioTcpEngine.SelectorThread lSelectorThread = mSelectorThread;
+        if (null != lSelectorThread) {
+            lSelectorThread.removeCancelled(this, aFuture);
+        } else {
+            aFuture.releaseData();
+        }
+    }
+
+    void setHandshakePending() {
+        mHandshakePending.set(true);
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if the connector was counted as pending handshake,
+     * only the first caller gets <tt>true</tt>
+     */
+    boolean clearHandshakePending() {
+        return mHandshakePending.compareAndSet(true, false);
+    }
+
+    /**
+     *
+     * @return The reassembler of this connector's fragmented messages
+     */
+    public MessageAssembler getMessageAssembler() {
+        if (null == mMessageAssembler) {
+            mMessageAssembler = new MessageAssembler(((NioTcpEngine) getEngine()).getMaxMessageSize());
+        }
+        return mMessageAssembler;
+    }
+
+    /**
+     *
+     * @return The negotiated permessage-deflate extension, <tt>null</tt> if
+     * messages are not compressed
+     */
+    public PerMessageDeflate getDeflate() {
+        return mDeflate;
+    }
+
+    public void setDeflate(PerMessageDeflate aDeflate) {
+        this.mDeflate = aDeflate;
     }
 
     @Override
@@ -66,24 +462,72 @@ public class NioTcpConnector extends BaseConnector {
 
     @Override
     public IOFuture sendPacketAsync(WebSocketPacket aPacket) {
-        byte[] lProtocolPacket;
-        if (isHixie()) {
-            lProtocolPacket = new byte[aPacket.getByteArray().length + 2];
-            lProtocolPacket[0] = 0x00;
-            System.arraycopy(aPacket.getByteArray(), 0, lProtocolPacket, 1, aPacket.getByteArray().length);
-            lProtocolPacket[lProtocolPacket.length - 1] = (byte) 0xFF;
-        } else {
-            lProtocolPacket = WebSocketProtocolAbstraction.rawToProtocolPacket(getVersion(), aPacket);
+        NioTcpEngine lEngine = (NioTcpEngine) getEngine();
+        PerMessageDeflate lDeflate = mDeflate;
+        boolean lCompress = null != lDeflate && lDeflate.isCompressible(aPacket);
+        if (aPacket instanceof SharedPacket && (!lCompress || lDeflate.isServerNoContextTakeover())) {
+            // a broadcast is encoded once, the recipients write read-only duplicates of its frame
+            ByteBuffer lFrame;
+            try {
+                lFrame = FrameEncoder.encodeShared((SharedPacket) aPacket,
+                        isHixie(), getVersion(), lCompress ? lDeflate : null);
+            } catch (IllegalStateException lEx) {
+                return failedFuture(lEx);
+            }
+            DataFuture lFuture = new DataFuture(this, lFrame);
+            lEngine.send(this, lFuture);
+            return lFuture;
+        }
+        if (lCompress) {
+            // with context takeover the frames must be queued in compression order
+            synchronized (lDeflate) {
+                byte[] lPayload;
+                try {
+                    lPayload = lDeflate.compress(aPacket);
+                } catch (IllegalStateException lEx) {
+                    return failedFuture(lEx);
+                }
+                DataFuture lFuture = new DataFuture(this, FrameEncoder.encode(lEngine.getBufferPool(),
+                        getVersion(), aPacket.getFrameType(), lPayload, true));
+                lEngine.send(this, lFuture);
+                return lFuture;
+            }
         }
+        // the frame is encoded into a pooled buffer that is released once it's written
+        DataFuture lFuture = new DataFuture(this, FrameEncoder.encode(
+                lEngine.getBufferPool(), isHixie(), getVersion(), aPacket));
+        if (WebSocketFrameType.PING == aPacket.getFrameType()
+                || WebSocketFrameType.PONG == aPacket.getFrameType()
+                || WebSocketFrameType.CLOSE == aPacket.getFrameType()) {
+            // control frames are written without corking
+            mUrgentWrite = true;
+        }
+        lEngine.send(this, lFuture);
+        return lFuture;
+    }
 
-        DataFuture lFuture = new DataFuture(this, ByteBuffer.wrap(lProtocolPacket));
-        ((NioTcpEngine) getEngine()).send(getId(), lFuture);
+    /**
+     * Returns the future of a packet that could not be compressed, because
+     * the connector has been closed in the meantime.
+     */
+    private DataFuture failedFuture(Throwable aCause) {
+        DataFuture lFuture = new DataFuture(this, ByteBuffer.allocate(0));
+        lFuture.setFailure(aCause);
         return lFuture;
     }
 
     @Override
     public String getId() {
-        return String.valueOf(hashCode());
+        return mId;
+    }
+
+    /**
+     *
+     * @return The id allocated by the engine, ids are unique per engine
+     * instance
+     */
+    public long getNumericId() {
+        return mNumericId;
     }
 
     @Override
@@ -127,15 +571,96 @@ public class NioTcpConnector extends BaseConnector {
         }
     }
 
-    public int getWorkerId() {
-        return mWorkerId;
+    /**
+     *
+     * @return The packets read for this connector that are waiting for a worker
+     */
+    Queue<IDelayedPacketNotifier> getDelayedPackets() {
+        return mDelayedPackets;
+    }
+
+    /**
+     * Marks the connector as scheduled for (or being processed by) a worker.
+     *
+     * @return <tt>false</tt> if the connector was already scheduled
+     */
+    boolean trySchedule() {
+        return mScheduled.compareAndSet(false, true);
+    }
+
+    void unschedule() {
+        mScheduled.set(false);
+    }
+
+    /**
+     * Marks the connector as having pending writes the selector thread knows
+     * about.
+     *
+     * @return <tt>false</tt> if the selector thread was already notified
+     */
+    boolean tryScheduleWrite() {
+        return mWriteScheduled.compareAndSet(false, true);
+    }
+
+    void unscheduleWrite() {
+        mWriteScheduled.set(false);
+    }
+
+    /**
+     * Marks the connector as corked, its queued frames are written once the
+     * cork delay has elapsed or the sending threads uncork it.
+     *
+     * @param aNow
+     */
+    void cork(long aNow) {
+        mCorkQueued = true;
+        mCorkedSince = aNow;
+        mCorked.set(true);
+    }
+
+    /**
+     * Clears the corked flag.
+     *
+     * @return <tt>false</tt> if the connector was not corked or has been
+     * uncorked already
+     */
+    boolean tryUncork() {
+        return mCorked.compareAndSet(true, false);
+    }
+
+    boolean isCorked() {
+        return mCorked.get();
+    }
+
+    boolean isCorkQueued() {
+        return mCorkQueued;
+    }
+
+    /**
+     * Clears the selector thread's corking state.
+     *
+     * @return The time the connector was corked at
+     */
+    long clearCorkQueued() {
+        mCorkQueued = false;
+        mCorked.set(false);
+        return mCorkedSince;
+    }
+
+    long getCorkedSince() {
+        return mCorkedSince;
     }
 
-    public void setWorkerId(int aWorkerId) {
-        this.mWorkerId = aWorkerId;
+    /**
+     *
+     * @return <tt>true</tt> if a control frame was queued since the last
+     * write, it must not be delayed
+     */
+    boolean hasUrgentWrite() {
+        return mUrgentWrite;
     }
 
-    public void releaseWorker() throws IOException {
-        mWorkerId = -1;
+    void clearUrgentWrite() {
+        mUrgentWrite = false;
     }
 }
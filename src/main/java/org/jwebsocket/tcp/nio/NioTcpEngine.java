@@ -15,8 +15,6 @@
 //    ---------------------------------------------------------------------------
 package org.jwebsocket.tcp.nio;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
@@ -25,8 +23,14 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import org.apache.log4j.Logger;
 import org.jwebsocket.api.EngineConfiguration;
 import org.jwebsocket.api.WebSocketConnector;
@@ -35,23 +39,49 @@ import org.jwebsocket.config.JWebSocketCommonConstants;
 import org.jwebsocket.engines.BaseEngine;
 import org.jwebsocket.kit.*;
 import org.jwebsocket.logging.Logging;
+import org.jwebsocket.tcp.AdmissionController;
 import org.jwebsocket.tcp.EngineUtils;
+import org.jwebsocket.tcp.HandshakeScanner;
+import org.jwebsocket.tcp.Histogram;
+import org.jwebsocket.tcp.PerMessageDeflate;
+import org.jwebsocket.tcp.TimingWheel;
 import org.jwebsocket.util.Tools;
 
 /**
  * <p> Tcp engine that uses java non-blocking io api to bind to listening port
- * and handle incoming/outgoing packets. There's one 'selector' thread that is
- * responsible only for handling socket operations. Therefore, every packet that
- * should be sent will be firstly queued into concurrent queue, which is
- * continuously processed by selector thread. Since the queue is concurrent,
- * there's no blocking and a call to send method will return immediately. </p>
+ * and handle incoming/outgoing packets. There's one 'acceptor' thread that
+ * only accepts new socket channels and hands each of them over to one of
+ * several 'selector' threads (reactors). A reactor is chosen either round-robin
+ * or by its current number of connections. Every reactor owns its own selector,
+ * read buffer and pending writes, and is responsible only for handling socket
+ * operations of its connections. Therefore, every packet that should be sent
+ * will be firstly queued into concurrent queue, which is continuously processed
+ * by the connector's selector thread. Since the queue is concurrent, there's no
+ * blocking and a call to send method will return immediately. </p>
  * <p> All packets that are received from remote clients are processed in
  * separate worker threads. This way it's possible to handle many clients
  * simultaneously with just a few threads. Add more worker threads to handle
- * more clients. </p> <p> Before making any changes to this source, note this:
- * it is highly advisable to read from (or write to) a socket only in selector
- * thread. Ignoring this advice may result in strange consequences (threads
- * locking or spinning, depending on actual scenario). </p>
+ * more clients, add more selector threads to spread socket operations across
+ * CPU cores. </p> <p> Before making any changes to this source, note this: it
+ * is highly advisable to read from (or write to) a socket only in the selector
+ * thread the socket is registered with. Ignoring this advice may result in
+ * strange consequences (threads locking or spinning, depending on actual
+ * scenario). </p> <p> TLS (wss://) connections are accepted on the SSL port
+ * and handled by the same reactors: every connector owns an SSLEngine that is
+ * driven without blocking. Handshake data and encryption are processed in the
+ * selector thread only, the potentially long running delegated handshake tasks
+ * are executed by a separate executor. Workers receive decrypted data and
+ * queue plain frames, they never touch the SSLEngine. </p> <p> The outgoing
+ * queue of a connector is bounded by byte watermarks: when its pending bytes
+ * exceed the high watermark the connector becomes unwritable, the registered
+ * {@link IWritabilityListener}s are notified and the slow consumer policy
+ * (drop oldest, drop new or disconnect) applies until the pending bytes drop
+ * below the low watermark. </p> <p> Inbound data is bounded as well: when the
+ * bytes read but not processed by the workers exceed the per connector or the
+ * global limit, the selector stops reading the connector's channel (OP_READ is
+ * cleared) until the backlog is drained to half of the limit. This way TCP flow
+ * control slows down the client instead of the data piling up in the heap.
+ * </p>
  *
  * @author jang
  * @author kyberneees (bug fixes, session identifier cookie support and
@@ -62,18 +92,84 @@ public class NioTcpEngine extends BaseEngine {
     private static Logger mLog = Logging.getLogger();
     private static final String NUM_WORKERS_CONFIG_KEY = "workers";
     private static final int DEFAULT_NUM_WORKERS = 100;
-    private Selector mPlainSelector;
-    private Selector mSSLSelector;
+    private static final String NUM_SELECTORS_CONFIG_KEY = "selectors";
+    private static final int DEFAULT_NUM_SELECTORS = Runtime.getRuntime().availableProcessors();
+    private static final String SELECTOR_STRATEGY_CONFIG_KEY = "selector_strategy";
+    private static final String SELECTOR_STRATEGY_ROUND_ROBIN = "roundrobin";
+    private static final String SELECTOR_STRATEGY_LOAD = "load";
+    // maximum number of queued frames written by a single gathering write
+    private static final int MAX_GATHER_BUFFERS = 64;
+    private static final String BUFFER_POOL_SIZE_CONFIG_KEY = "buffer_pool_size";
+    private static final int DEFAULT_BUFFER_POOL_SIZE = 64 * 1024 * 1024;
+    private static final String WRITE_HIGH_WATERMARK_CONFIG_KEY = "write_high_watermark";
+    private static final int DEFAULT_WRITE_HIGH_WATERMARK = 4 * 1024 * 1024;
+    private static final String WRITE_LOW_WATERMARK_CONFIG_KEY = "write_low_watermark";
+    private static final int DEFAULT_WRITE_LOW_WATERMARK = 1024 * 1024;
+    private static final String SLOW_CONSUMER_POLICY_CONFIG_KEY = "slow_consumer_policy";
+    private static final String READ_CONNECTOR_LIMIT_CONFIG_KEY = "read_connector_limit";
+    private static final int DEFAULT_READ_CONNECTOR_LIMIT = 1024 * 1024;
+    private static final String READ_GLOBAL_LIMIT_CONFIG_KEY = "read_global_limit";
+    private static final int DEFAULT_READ_GLOBAL_LIMIT = 64 * 1024 * 1024;
+    private static final String MAX_HANDSHAKE_SIZE_CONFIG_KEY = "max_handshake_size";
+    private static final int DEFAULT_MAX_HANDSHAKE_SIZE = 16 * 1024;
+    private static final String HANDSHAKE_TIMEOUT_CONFIG_KEY = "handshake_timeout";
+    private static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+    private static final String PING_INTERVAL_CONFIG_KEY = "ping_interval";
+    // pings are opt-in, clients that never answer them would be disconnected
+    private static final int DEFAULT_PING_INTERVAL = 0;
+    private static final String PONG_TIMEOUT_CONFIG_KEY = "pong_timeout";
+    private static final int DEFAULT_PONG_TIMEOUT = 10000;
+    private static final long WHEEL_TICK_DURATION = 100;
+    private static final int WHEEL_SLOTS = 512;
+    /**
+     * Drops the oldest queued frames that were not written yet
+     */
+    public static final String SLOW_CONSUMER_DROP_OLDEST = "drop_oldest";
+    /**
+     * Drops the frames sent while the connector is unwritable
+     */
+    public static final String SLOW_CONSUMER_DROP_NEW = "drop_new";
+    /**
+     * Disconnects the slow consumer
+     */
+    public static final String SLOW_CONSUMER_DISCONNECT = "disconnect";
+    private Selector mAcceptSelector;
     private ServerSocketChannel mPlainServer;
-    private boolean mIsRunning;
-    private Map<String, Queue<DataFuture>> mPendingWrites; // <connector id, data queue>
+    private ServerSocketChannel mSSLServer;
+    private volatile boolean mIsRunning;
     private ExecutorService mExecutorService;
-    private Map<String, SocketChannel> mConnectorToChannelMap; // <connector id, socket channel>
-    private Map<SocketChannel, String> mChannelToConnectorMap; // <socket channel, connector id>
-    private ByteBuffer mReadBuffer;
-    private Thread mPlainSelectorThread;
+    private final AtomicLong mNextConnectorId = new AtomicLong();
+    private Thread mAcceptorThread;
+    private SelectorThread[] mSelectorThreads;
+    private Thread[] mSelectorThreadHandles;
+    private boolean mBalanceByLoad;
+    private final AtomicInteger mNextSelector = new AtomicInteger();
+    private BufferPool mBufferPool;
     private final DelayedPacketsQueue mDelayedPacketsQueue = new DelayedPacketsQueue();
     private SSLContext mSSLContext;
+    private ExecutorService mSSLTaskExecutor;
+    private long mHighWatermark;
+    private long mLowWatermark;
+    private String mSlowConsumerPolicy;
+    private final List<IWritabilityListener> mWritabilityListeners =
+            new CopyOnWriteArrayList<IWritabilityListener>();
+    private int mMaxMessageSize;
+    private long mConnectorReadLimit;
+    private long mGlobalReadLimit;
+    private final AtomicLong mUnprocessedBytes = new AtomicLong();
+    private final AtomicLong mReadPausesCount = new AtomicLong();
+    private AdmissionController mAdmission;
+    private int mMaxHandshakeSize;
+    private int mHandshakeTimeout;
+    private int mPingInterval;
+    private int mPongTimeout;
+    private final AtomicLong mIdleClosedCount = new AtomicLong();
+    private int mCorkDelay;
+    private int mCorkSize;
+    private final Histogram mWriteBatchHistogram = new Histogram(" frames");
+    private final Histogram mCorkDelayHistogram = new Histogram("ms");
+    private final Set<NioTcpConnector> mReadPausedConnectors =
+            Collections.newSetFromMap(new ConcurrentHashMap<NioTcpConnector, Boolean>());
 
     public NioTcpEngine(EngineConfiguration aConfiguration) {
         super(aConfiguration);
@@ -82,61 +178,78 @@ public class NioTcpEngine extends BaseEngine {
     @Override
     public void startEngine() throws WebSocketException {
         try {
-            mPendingWrites = new ConcurrentHashMap<String, Queue<DataFuture>>();
-            mConnectorToChannelMap = new ConcurrentHashMap<String, SocketChannel>();
-            mChannelToConnectorMap = new ConcurrentHashMap<SocketChannel, String>();
-            mReadBuffer = ByteBuffer.allocate(getConfiguration().getMaxFramesize());
-            mPlainSelector = SelectorProvider.provider().openSelector();
-//            mSSLSelector = SelectorProvider.provider().openSelector();
+            mBufferPool = new BufferPool(EngineUtils.getIntSetting(getConfiguration(),
+                    BUFFER_POOL_SIZE_CONFIG_KEY, DEFAULT_BUFFER_POOL_SIZE));
+            mHighWatermark = EngineUtils.getIntSetting(getConfiguration(),
+                    WRITE_HIGH_WATERMARK_CONFIG_KEY, DEFAULT_WRITE_HIGH_WATERMARK);
+            mLowWatermark = Math.min(mHighWatermark, EngineUtils.getIntSetting(getConfiguration(),
+                    WRITE_LOW_WATERMARK_CONFIG_KEY, DEFAULT_WRITE_LOW_WATERMARK));
+            mSlowConsumerPolicy = EngineUtils.getStringSetting(getConfiguration(),
+                    SLOW_CONSUMER_POLICY_CONFIG_KEY, SLOW_CONSUMER_DISCONNECT).toLowerCase();
+            mMaxMessageSize = EngineUtils.getMaxMessageSize(getConfiguration());
+            mConnectorReadLimit = EngineUtils.getIntSetting(getConfiguration(),
+                    READ_CONNECTOR_LIMIT_CONFIG_KEY, DEFAULT_READ_CONNECTOR_LIMIT);
+            mGlobalReadLimit = EngineUtils.getIntSetting(getConfiguration(),
+                    READ_GLOBAL_LIMIT_CONFIG_KEY, DEFAULT_READ_GLOBAL_LIMIT);
+            mAdmission = new AdmissionController(getConfiguration());
+            mMaxHandshakeSize = EngineUtils.getIntSetting(getConfiguration(),
+                    MAX_HANDSHAKE_SIZE_CONFIG_KEY, DEFAULT_MAX_HANDSHAKE_SIZE);
+            mHandshakeTimeout = EngineUtils.getIntSetting(getConfiguration(),
+                    HANDSHAKE_TIMEOUT_CONFIG_KEY, DEFAULT_HANDSHAKE_TIMEOUT);
+            mPingInterval = EngineUtils.getIntSetting(getConfiguration(),
+                    PING_INTERVAL_CONFIG_KEY, DEFAULT_PING_INTERVAL);
+            mPongTimeout = EngineUtils.getIntSetting(getConfiguration(),
+                    PONG_TIMEOUT_CONFIG_KEY, DEFAULT_PONG_TIMEOUT);
+            mCorkDelay = EngineUtils.getCorkDelay(getConfiguration());
+            mCorkSize = EngineUtils.getCorkSize(getConfiguration());
+            mAcceptSelector = SelectorProvider.provider().openSelector();
 
             mPlainServer = Util.createServerSocketChannel(getConfiguration().getPort());
-            mPlainServer.register(mPlainSelector, SelectionKey.OP_ACCEPT);
+            mPlainServer.register(mAcceptSelector, SelectionKey.OP_ACCEPT);
             if (mLog.isDebugEnabled()) {
                 mLog.debug("Non-SSL server running at port: " + getConfiguration().getPort() + "...");
             }
 
             // creating the SSL server only if required
-//            if (getConfiguration().getSSLPort() > 0) {
-//                mSSLContext = Util.createSSLContext(getConfiguration().getKeyStore(),
-//                        getConfiguration().getKeyStorePassword());
-//                if (mLog.isDebugEnabled()) {
-//                    mLog.debug("SSLContext created with key-store: " + getConfiguration().getKeyStore() + "...");
-//                }
-//                mSSLServer = Util.createServerSocketChannel(getConfiguration().getSSLPort());
-//                mSSLServer.register(mSSLSelector, SelectionKey.OP_ACCEPT);
-//                if (mLog.isDebugEnabled()) {
-//                    mLog.debug("SSL server running at port: " + getConfiguration().getSSLPort() + "...");
-//                }
-//            }
+            if (getConfiguration().getSSLPort() > 0) {
+                startSSLServer();
+            }
 
             mIsRunning = true;
 
             // start worker threads
-            Integer lNumWorkers = DEFAULT_NUM_WORKERS;
-            if (getConfiguration().getSettings().containsKey(NUM_WORKERS_CONFIG_KEY)) {
-                lNumWorkers = Integer.parseInt(getConfiguration().
-                        getSettings().
-                        get(NUM_WORKERS_CONFIG_KEY).
-                        toString());
-            }
+            int lNumWorkers = EngineUtils.getIntSetting(getConfiguration(),
+                    NUM_WORKERS_CONFIG_KEY, DEFAULT_NUM_WORKERS);
             mExecutorService = Executors.newFixedThreadPool(lNumWorkers);
             for (int lIdx = 0; lIdx < lNumWorkers; lIdx++) {
                 // give an index to each worker thread
                 mExecutorService.submit(new ReadWorker(lIdx));
             }
 
-            // start plain selector thread
-            mPlainSelectorThread = new Thread(new SelectorThread(mPlainSelector));
-            mPlainSelectorThread.start();
+            // start the selector threads (reactors), each one with its own selector
+            int lNumSelectors = Math.max(1, EngineUtils.getIntSetting(getConfiguration(),
+                    NUM_SELECTORS_CONFIG_KEY, DEFAULT_NUM_SELECTORS));
+            mBalanceByLoad = SELECTOR_STRATEGY_LOAD.equalsIgnoreCase(
+                    EngineUtils.getStringSetting(getConfiguration(),
+                    SELECTOR_STRATEGY_CONFIG_KEY, SELECTOR_STRATEGY_ROUND_ROBIN));
+            mSelectorThreads = new SelectorThread[lNumSelectors];
+            mSelectorThreadHandles = new Thread[lNumSelectors];
+            for (int lIdx = 0; lIdx < lNumSelectors; lIdx++) {
+                mSelectorThreads[lIdx] = new SelectorThread(lIdx,
+                        SelectorProvider.provider().openSelector());
+                mSelectorThreadHandles[lIdx] = new Thread(mSelectorThreads[lIdx]);
+                mSelectorThreadHandles[lIdx].start();
+            }
 
-//            if (getConfiguration().getSSLPort() > 0) {
-//                // start SSL selector thread
-//                mSSLSelectorThread = new Thread(new SelectorThread(mSSLSelector));
-//                mSSLSelectorThread.start();
-//            }
+            // start the acceptor thread, it serves both the plain and the SSL port
+            mAcceptorThread = new Thread(new AcceptorThread(mAcceptSelector));
+            mAcceptorThread.start();
 
             if (mLog.isDebugEnabled()) {
-                mLog.debug("NioTcpEngine started successfully with '" + lNumWorkers + "' workers!");
+                mLog.debug("NioTcpEngine started successfully with '" + lNumWorkers
+                        + "' workers and '" + lNumSelectors + "' selector threads ("
+                        + (mBalanceByLoad ? SELECTOR_STRATEGY_LOAD : SELECTOR_STRATEGY_ROUND_ROBIN)
+                        + ")!");
             }
         } catch (ClosedChannelException e) {
             throw new WebSocketException(e.getMessage(), e);
@@ -148,15 +261,26 @@ public class NioTcpEngine extends BaseEngine {
     @Override
     public void stopEngine(CloseReason aCloseReason) throws WebSocketException {
         super.stopEngine(aCloseReason);
-        if (mPlainSelector != null) {
+        if (mAcceptSelector != null) {
             try {
                 mIsRunning = false;
-                mPlainSelectorThread.join();
-                mPlainSelector.wakeup();
+                mAcceptSelector.wakeup();
+                mAcceptorThread.join();
                 mPlainServer.close();
-                mPlainSelector.close();
-                mPendingWrites.clear();
-                mExecutorService.shutdown();
+                if (null != mSSLServer) {
+                    mSSLServer.close();
+                }
+                mAcceptSelector.close();
+                for (int lIdx = 0; lIdx < mSelectorThreads.length; lIdx++) {
+                    mSelectorThreads[lIdx].getSelector().wakeup();
+                    mSelectorThreadHandles[lIdx].join();
+                    mSelectorThreads[lIdx].getSelector().close();
+                }
+                // interrupts the workers waiting for delayed packets
+                mExecutorService.shutdownNow();
+                if (null != mSSLTaskExecutor) {
+                    mSSLTaskExecutor.shutdownNow();
+                }
                 mLog.info("NIO engine stopped.");
             } catch (InterruptedException lEx) {
                 throw new WebSocketException(lEx.getMessage(), lEx);
@@ -166,43 +290,303 @@ public class NioTcpEngine extends BaseEngine {
         }
     }
 
+    /**
+     * Creates the SSLContext from the configured key store and opens the SSL
+     * server channel. Errors are logged, the plain server keeps running.
+     */
+    private void startSSLServer() {
+        String lKeyStore = getConfiguration().getKeyStore();
+        String lKeyStorePassword = getConfiguration().getKeyStorePassword();
+        if (null == lKeyStore || lKeyStore.isEmpty()
+                || null == lKeyStorePassword || lKeyStorePassword.isEmpty()) {
+            mLog.error("SSL server could not be instantiated due to missing configuration,"
+                    + " please set sslport, keystore and password options.");
+            return;
+        }
+        try {
+            mSSLContext = Util.createSSLContext(lKeyStore, lKeyStorePassword);
+            if (mLog.isDebugEnabled()) {
+                mLog.debug("SSLContext created with key-store: " + lKeyStore + "...");
+            }
+            mSSLServer = Util.createServerSocketChannel(getConfiguration().getSSLPort());
+            mSSLServer.register(mAcceptSelector, SelectionKey.OP_ACCEPT);
+            // delegated handshake tasks must not block the selector threads
+            mSSLTaskExecutor = Executors.newCachedThreadPool();
+            if (mLog.isDebugEnabled()) {
+                mLog.debug("SSL server running at port: " + getConfiguration().getSSLPort() + "...");
+            }
+        } catch (Exception lEx) {
+            mSSLContext = null;
+            mLog.error(Logging.getSimpleExceptionMessage(lEx, "instantiating SSL server"));
+        }
+    }
+
+    /**
+     *
+     * @return The pool of the direct buffers used for socket reads and writes
+     */
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
     public void send(String aConnectorId, DataFuture aFuture) {
+        NioTcpConnector lConnector = (NioTcpConnector) getConnectors().get(aConnectorId);
+        if (null != lConnector) {
+            send(lConnector, aFuture);
+        } else {
+            aFuture.discard(new Exception("Discarding packet for unattached socket channel..."));
+        }
+    }
+
+    /**
+     * Queues a frame for a connector, it's written by the connector's
+     * selector thread.
+     *
+     * @param aConnector
+     * @param aFuture
+     */
+    public void send(NioTcpConnector aConnector, DataFuture aFuture) {
+        if (aFuture.isDone()) {
+            // cancelled before being queued
+            aFuture.releaseData();
+            return;
+        }
         try {
-            if (mPendingWrites.containsKey(aConnectorId)) {
-                NioTcpConnector lConnector = (NioTcpConnector) getConnectors().get(aConnectorId);
-                mPendingWrites.get(aConnectorId).add(aFuture);
-                if (lConnector.isSSL()) {
-                    aFuture.setData(Util.wrap(
-                            aFuture.getData(),
-                            lConnector.getSSLEngine(),
-                            getConfiguration().getMaxFramesize()));
-                    mSSLSelector.wakeup();
-                } else {
-                    mPlainSelector.wakeup();
+            SelectorThread lSelectorThread = aConnector.getSelectorThread();
+            Queue<DataFuture> lQueue = aConnector.getWriteQueue();
+            if (null != lQueue && null != lSelectorThread) {
+                int lSize = aFuture.getData().limit();
+                aFuture.setQueuedSize(lSize);
+                if (!aConnector.isWritable()
+                        || aConnector.getPendingWriteBytes() + lSize > mHighWatermark) {
+                    if (aConnector.setWritable(false)) {
+                        mLog.info("Connector '" + aConnector.getId() + "' (" + aConnector.generateUID()
+                                + ") exceeded the high watermark with "
+                                + aConnector.getPendingWriteBytes() + " pending bytes!");
+                        fireWritabilityChanged(aConnector, false);
+                    }
+                    if (SLOW_CONSUMER_DROP_NEW.equals(mSlowConsumerPolicy)) {
+                        aConnector.incrementDropped();
+                        aFuture.discard(new WebSocketException("Packet dropped, slow consumer!"));
+                        return;
+                    } else if (SLOW_CONSUMER_DISCONNECT.equals(mSlowConsumerPolicy)) {
+                        aFuture.discard(new WebSocketException("Slow consumer disconnected!"));
+                        clientDisconnect(aConnector, CloseReason.SERVER);
+                        return;
+                    } else if (aConnector.tryScheduleTrim()) {
+                        lSelectorThread.trimPendingWrites(aConnector);
+                    }
+                }
+                aConnector.addPendingWrite(lSize);
+                // SSL data is encrypted by the selector thread
+                lQueue.add(aFuture);
+                // only the first packet of an idle queue notifies the selector thread
+                if (aConnector.tryScheduleWrite()) {
+                    lSelectorThread.requestWrite(aConnector);
+                } else if (aConnector.isCorked()
+                        && (aConnector.hasUrgentWrite() || aConnector.getPendingWriteBytes() >= mCorkSize)
+                        && aConnector.tryUncork()) {
+                    // enough data or a control frame, the frames are written right away
+                    lSelectorThread.requestWrite(aConnector);
                 }
             } else {
-                aFuture.setFailure(new Exception("Discarding packet for unattached socket channel..."));
+                aFuture.discard(new Exception("Discarding packet for unattached socket channel..."));
             }
         } catch (Exception lEx) {
             if (mLog.isDebugEnabled()) {
                 mLog.debug("Data could not be sent!", lEx);
             }
-            aFuture.setFailure(lEx);
+            aFuture.discard(lEx);
+        }
+    }
+
+    /**
+     * Registers a listener for the writability changes of the connectors.
+     *
+     * @param aListener
+     */
+    public void addWritabilityListener(IWritabilityListener aListener) {
+        mWritabilityListeners.add(aListener);
+    }
+
+    public void removeWritabilityListener(IWritabilityListener aListener) {
+        mWritabilityListeners.remove(aListener);
+    }
+
+    /**
+     *
+     * @return The connectors whose outgoing queue exceeded the high watermark
+     */
+    public List<NioTcpConnector> getSlowConsumers() {
+        List<NioTcpConnector> lResult = new ArrayList<NioTcpConnector>();
+        for (WebSocketConnector lConnector : getConnectors().values()) {
+            if (!((NioTcpConnector) lConnector).isWritable()) {
+                lResult.add((NioTcpConnector) lConnector);
+            }
+        }
+        return lResult;
+    }
+
+    /**
+     *
+     * @return The maximum size of a message reassembled from fragments
+     */
+    public int getMaxMessageSize() {
+        return mMaxMessageSize;
+    }
+
+    /**
+     *
+     * @return The number of bytes read from the sockets but not processed by
+     * the workers yet
+     */
+    public long getUnprocessedBytes() {
+        return mUnprocessedBytes.get();
+    }
+
+    /**
+     *
+     * @return The number of connectors whose reading is currently paused
+     */
+    public int getReadPausedCount() {
+        return mReadPausedConnectors.size();
+    }
+
+    /**
+     *
+     * @return The number of times reading has been paused since the engine
+     * started
+     */
+    public long getReadPausesCount() {
+        return mReadPausesCount.get();
+    }
+
+    /**
+     *
+     * @return The admission control of new connections, with the counters of
+     * the rejected connections
+     */
+    public AdmissionController getAdmissionController() {
+        return mAdmission;
+    }
+
+    /**
+     *
+     * @return The maximum size of a handshake request in bytes
+     */
+    public int getMaxHandshakeSize() {
+        return mMaxHandshakeSize;
+    }
+
+    /**
+     *
+     * @return The number of connectors closed because they were idle, did
+     * not answer a PING or did not complete the handshake in time
+     */
+    public long getIdleClosedCount() {
+        return mIdleClosedCount.get();
+    }
+
+    /**
+     *
+     * @return The number of frames written per gathering write (or TLS
+     * record)
+     */
+    public Histogram getWriteBatchHistogram() {
+        return mWriteBatchHistogram;
+    }
+
+    /**
+     *
+     * @return The time the connectors were corked before their frames were
+     * written, only recorded if corking is enabled
+     */
+    public Histogram getCorkDelayHistogram() {
+        return mCorkDelayHistogram;
+    }
+
+    private void handshakeFinished(NioTcpConnector aConnector) {
+        if (aConnector.clearHandshakePending()) {
+            mAdmission.handshakeFinished();
+        }
+    }
+
+    /**
+     * Updates the inbound backpressure state once read data has been
+     * processed (or discarded) and resumes reading the paused connectors if
+     * the backlog has been drained.
+     */
+    private void readProcessed(NioTcpConnector aConnector, long aBytes) {
+        aConnector.addUnprocessedBytes(-aBytes);
+        long lGlobalBytes = mUnprocessedBytes.addAndGet(-aBytes);
+        if (aConnector.isReadPaused()) {
+            tryResumeRead(aConnector);
+        }
+        if (lGlobalBytes <= mGlobalReadLimit / 2 && !mReadPausedConnectors.isEmpty()) {
+            for (NioTcpConnector lConnector : mReadPausedConnectors) {
+                tryResumeRead(lConnector);
+            }
+        }
+    }
+
+    private void tryResumeRead(NioTcpConnector aConnector) {
+        if (aConnector.getUnprocessedBytes() > mConnectorReadLimit / 2
+                || mUnprocessedBytes.get() > mGlobalReadLimit / 2
+                || !aConnector.setReadPaused(false)) {
+            return;
+        }
+        mReadPausedConnectors.remove(aConnector);
+        SelectorThread lSelectorThread = aConnector.getSelectorThread();
+        if (null != lSelectorThread) {
+            lSelectorThread.resumeRead(aConnector);
+        }
+    }
+
+    private void fireWritabilityChanged(NioTcpConnector aConnector, boolean aWritable) {
+        for (IWritabilityListener lListener : mWritabilityListeners) {
+            try {
+                lListener.writabilityChanged(aConnector, aWritable);
+            } catch (Exception lEx) {
+                mLog.error("Exception while notifying writability listener", lEx);
+            }
+        }
+    }
+
+    /**
+     * Updates the outbound backpressure state of a connector once a frame
+     * left its queue.
+     */
+    private void pendingWriteRemoved(NioTcpConnector aConnector, DataFuture aFuture) {
+        if (null == aConnector) {
+            return;
+        }
+        long lPending = aConnector.removePendingWrite(aFuture.getQueuedSize());
+        if (lPending <= mLowWatermark && !aConnector.isWritable() && aConnector.setWritable(true)) {
+            fireWritabilityChanged(aConnector, true);
         }
     }
 
     @Override
     public void connectorStopped(WebSocketConnector aConnector, CloseReason aCloseReason) {
-        if (mConnectorToChannelMap.containsKey(aConnector.getId())) {
-            mPendingWrites.remove(aConnector.getId());
-            SocketChannel lChannel = mConnectorToChannelMap.remove(aConnector.getId());
+        mReadPausedConnectors.remove((NioTcpConnector) aConnector);
+        handshakeFinished((NioTcpConnector) aConnector);
+        SocketChannel lChannel = ((NioTcpConnector) aConnector).detachChannel();
+        if (null != lChannel) {
+            SelectorThread lSelectorThread = ((NioTcpConnector) aConnector).getSelectorThread();
+            if (null != lSelectorThread) {
+                lSelectorThread.connectionClosed((NioTcpConnector) aConnector);
+            }
             try {
                 lChannel.close();
                 lChannel.socket().close();
             } catch (IOException lEx) {
                 //Ignore it. Channel has been closed previously!
             }
-            mChannelToConnectorMap.remove(lChannel);
+        }
+
+        PerMessageDeflate lDeflate = ((NioTcpConnector) aConnector).getDeflate();
+        if (null != lDeflate) {
+            lDeflate.release();
         }
 
         if (((NioTcpConnector) aConnector).isAfterWSHandshake()) {
@@ -211,57 +595,336 @@ public class NioTcpEngine extends BaseEngine {
     }
 
     /**
-     * Socket operations are permitted only via this thread. Strange behavior
-     * will occur if anything is done to the socket outside of this thread.
+     * Picks the selector thread a new connection is assigned to, either the
+     * next one in round-robin order or the one with the fewest connections.
+     *
+     * @return
      */
-    private class SelectorThread implements Runnable {
+    private SelectorThread nextSelectorThread() {
+        if (mBalanceByLoad) {
+            SelectorThread lResult = mSelectorThreads[0];
+            for (int lIdx = 1; lIdx < mSelectorThreads.length; lIdx++) {
+                if (mSelectorThreads[lIdx].getConnectionsCount() < lResult.getConnectionsCount()) {
+                    lResult = mSelectorThreads[lIdx];
+                }
+            }
+            return lResult;
+        }
+        int lNext = mNextSelector.getAndIncrement() & Integer.MAX_VALUE;
+        return mSelectorThreads[lNext % mSelectorThreads.length];
+    }
+
+    /**
+     * Accepts new socket channels on the server channels and hands them over to
+     * the selector threads. The engine started/stopped events are fired from
+     * this thread.
+     */
+    private class AcceptorThread implements Runnable {
 
         Selector mSelector;
 
-        public SelectorThread(Selector aSelector) {
+        public AcceptorThread(Selector aSelector) {
             this.mSelector = aSelector;
         }
 
         @Override
         public void run() {
-            Thread.currentThread().setName("jWebSocket NIO-Engine SelectorThread");
+            Thread.currentThread().setName("jWebSocket NIO-Engine AcceptorThread");
 
             engineStarted();
 
             while (mIsRunning && mSelector.isOpen()) {
-                boolean lWrite = false;
-                for (Iterator<String> lIterator = mPendingWrites.keySet().iterator(); lIterator.hasNext();) {
-                    String lConnectorId = lIterator.next();
+                try {
+                    if (mSelector.select(500) > 0 && mIsRunning) {
+                        Iterator<SelectionKey> lKeys = mSelector.selectedKeys().iterator();
+                        while (lKeys.hasNext()) {
+                            SelectionKey lKey = lKeys.next();
+                            lKeys.remove();
+                            try {
+                                if (lKey.isValid() && lKey.isAcceptable()) {
+                                    accept(lKey);
+                                }
+                            } catch (CancelledKeyException lCKEx) {
+                                // ignore, server channel has been closed
+                            }
+                        }
+                    }
+                } catch (Exception lEx) {
+                    mLog.error("Error during accept operation", lEx);
+                }
+            }
+
+            engineStopped();
+        }
+    }
+
+    /**
+     * Socket operations are permitted only via this thread. Strange behavior
+     * will occur if anything is done to the socket outside of this thread. Each
+     * selector thread owns its connections' read buffer and pending writes.
+     */
+    class SelectorThread implements Runnable {
+
+        private final int mId;
+        private final Selector mSelector;
+        private final ByteBuffer mReadBuffer;
+        private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+        private final Queue<NioTcpConnector> mWriteRequests = new ConcurrentLinkedQueue<NioTcpConnector>();
+        private final AtomicBoolean mWakeupPending = new AtomicBoolean(false);
+        private final AtomicInteger mConnectionsCount = new AtomicInteger();
+        private final ByteBuffer[] mGatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+        // idle checks of this thread's connectors
+        private final TimingWheel mWheel = new TimingWheel(WHEEL_TICK_DURATION, WHEEL_SLOTS);
+        // corked connectors in corking order
+        private final Queue<NioTcpConnector> mCorked = new ArrayDeque<NioTcpConnector>();
+
+        public SelectorThread(int aId, Selector aSelector) {
+            mId = aId;
+            mSelector = aSelector;
+            // the read data is copied into pooled buffers of the right size
+            mReadBuffer = ByteBuffer.allocateDirect(Math.min(BufferPool.MAX_CHUNK_SIZE,
+                    getConfiguration().getMaxFramesize()));
+        }
+
+        public Selector getSelector() {
+            return mSelector;
+        }
+
+        public int getConnectionsCount() {
+            return mConnectionsCount.get();
+        }
+
+        /**
+         * Registers a new socket channel with this selector thread. The
+         * registration itself is executed by the selector thread.
+         *
+         * @param aChannel
+         * @param aConnector
+         */
+        public void register(final SocketChannel aChannel, final NioTcpConnector aConnector) {
+            mConnectionsCount.incrementAndGet();
+            aConnector.setSelectorThread(this);
+            aConnector.setWriteQueue(new ConcurrentLinkedQueue<DataFuture>());
+            mTasks.add(new Runnable() {
+
+                @Override
+                public void run() {
                     try {
-                        SelectionKey lKey = mConnectorToChannelMap.get(lConnectorId).keyFor(mSelector);
-                        if (null != lKey && !mPendingWrites.get(lConnectorId).isEmpty()) {
-                            lKey.interestOps(SelectionKey.OP_WRITE);
-                            lWrite = true;
+                        // the connector is attached to the key, so no lookups are
+                        // required when its channel is selected
+                        aConnector.setSelectionKey(aChannel.register(mSelector,
+                                SelectionKey.OP_READ, aConnector));
+                        // the WebSocket handshake is subject to the session timeout
+                        aConnector.setIdleTimeout(getSessionTimeout());
+                        scheduleIdleCheck(aConnector, mHandshakeTimeout);
+                    } catch (ClosedChannelException lEx) {
+                        // the client disconnected before the channel was registered
+                        connectorStopped(aConnector, CloseReason.CLIENT);
+                    }
+                }
+            });
+            wakeup();
+        }
+
+        /**
+         * Executes a task in the selector thread.
+         *
+         * @param aTask
+         */
+        public void execute(Runnable aTask) {
+            mTasks.add(aTask);
+            wakeup();
+        }
+
+        /**
+         * Drops the oldest queued frames of a connector, that were not
+         * written yet, until its pending bytes drop below the high watermark.
+         * Executed by the selector thread, which may be writing the head of
+         * the queue.
+         *
+         * @param aConnector
+         */
+        public void trimPendingWrites(final NioTcpConnector aConnector) {
+            execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    aConnector.unscheduleTrim();
+                    Queue<DataFuture> lQueue = aConnector.getWriteQueue();
+                    if (null == lQueue) {
+                        return;
+                    }
+                    Iterator<DataFuture> lIt = lQueue.iterator();
+                    while (aConnector.getPendingWriteBytes() > mHighWatermark && lIt.hasNext()) {
+                        DataFuture lFuture = lIt.next();
+                        if (lFuture.isWriteStarted()) {
+                            // partially written, the frame must be completed
+                            continue;
+                        }
+                        lIt.remove();
+                        aConnector.incrementDropped();
+                        pendingWriteRemoved(aConnector, lFuture);
+                        lFuture.discard(new WebSocketException("Packet dropped, slow consumer!"));
+                    }
+                }
+            });
+        }
+
+        /**
+         * Removes a cancelled frame from the write queue of a connector, unless
+         * it has been removed by a write operation already.
+         *
+         * @param aConnector
+         * @param aFuture
+         */
+        public void removeCancelled(final NioTcpConnector aConnector, final DataFuture aFuture) {
+            execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    Queue<DataFuture> lQueue = aConnector.getWriteQueue();
+                    if (null != lQueue && lQueue.remove(aFuture)) {
+                        pendingWriteRemoved(aConnector, aFuture);
+                    }
+                    aFuture.releaseData();
+                }
+            });
+        }
+
+        /**
+         * Registers OP_READ again for a connector whose reading was paused.
+         *
+         * @param aConnector
+         */
+        public void resumeRead(final NioTcpConnector aConnector) {
+            execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    SelectionKey lKey = aConnector.getSelectionKey();
+                    // reading may have been paused again in the meantime
+                    if (null != lKey && lKey.isValid() && !aConnector.isReadPaused()) {
+                        lKey.interestOps(lKey.interestOps() | SelectionKey.OP_READ);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Notifies the selector thread that the write queue of a connector went
+         * from empty to non-empty.
+         *
+         * @param aConnector
+         */
+        public void requestWrite(NioTcpConnector aConnector) {
+            mWriteRequests.offer(aConnector);
+            wakeup();
+        }
+
+        /**
+         * Wakes up the selector unless a wake up is already pending, so many
+         * concurrent requests result in a single wake up.
+         */
+        private void wakeup() {
+            if (mWakeupPending.compareAndSet(false, true)) {
+                mSelector.wakeup();
+            }
+        }
+
+        /**
+         * Releases the state kept for a closed connection. The idle check and
+         * the SSL buffers are released by the selector thread, which may still
+         * be using them.
+         *
+         * @param aConnector
+         */
+        public void connectionClosed(NioTcpConnector aConnector) {
+            final Queue<DataFuture> lQueue = aConnector.removeWriteQueue();
+            if (null != lQueue) {
+                mConnectionsCount.decrementAndGet();
+                final NioTcpConnector lConnector = aConnector;
+                execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        DataFuture lFuture;
+                        while (null != (lFuture = lQueue.poll())) {
+                            lFuture.discard(new WebSocketException("Connection closed!"));
+                        }
+                        if (null != lConnector.getIdleCheck()) {
+                            lConnector.getIdleCheck().cancel();
+                            lConnector.setIdleCheck(null);
+                        }
+                        if (null != lConnector.getSSLHandler()) {
+                            lConnector.getSSLHandler().release();
                         }
-                    } catch (Exception lEx) {
-                        // just ignore it. client disconnect too fast
                     }
+                });
+            }
+        }
+
+        @Override
+        public void run() {
+            Thread.currentThread().setName("jWebSocket NIO-Engine SelectorThread " + mId);
+
+            while (mIsRunning && mSelector.isOpen()) {
+                // requests arriving from now on wake up the next select call
+                mWakeupPending.set(false);
+
+                Runnable lTask;
+                while (null != (lTask = mTasks.poll())) {
+                    lTask.run();
                 }
-                if (lWrite) {
-                    mSelector.wakeup();
+
+                NioTcpConnector lConnector;
+                long lNow = TimingWheel.now();
+                while (null != (lConnector = mWriteRequests.poll())) {
+                    if (lConnector.isCorkQueued()) {
+                        // uncorked by a sending thread
+                        uncork(lConnector, lNow);
+                    } else if (mCorkDelay > 0 && !lConnector.hasUrgentWrite()
+                            && lConnector.getPendingWriteBytes() < mCorkSize) {
+                        // waiting for more frames to be written with a single system call
+                        lConnector.cork(lNow);
+                        // a control frame or enough data may have been queued before the
+                        // corked flag was set, the sending thread did not see it then
+                        if (!(lConnector.hasUrgentWrite()
+                                || lConnector.getPendingWriteBytes() >= mCorkSize)
+                                || !lConnector.tryUncork()) {
+                            mCorked.add(lConnector);
+                            continue;
+                        }
+                        uncork(lConnector, lNow);
+                    }
+                    writeRequested(lConnector);
                 }
 
                 try {
-                    // Waits for 500ms for any data from connected clients or for new client connections.
-                    // We could have indefinite wait (selector.wait()), but it is good to check for 'running' variable
-                    // fairly often.
-                    if (mSelector.select(500) > 0 && mIsRunning) {
+                    // Waits for a tick of the timing wheel (or the next corked connector) for
+                    // any data from connected clients. We could have indefinite wait (selector.wait()),
+                    // but it is good to check for 'running' variable fairly often.
+                    long lTimeout = mWheel.getTickDuration();
+                    if (!mCorked.isEmpty()) {
+                        lTimeout = Math.max(1, Math.min(lTimeout,
+                                mCorked.peek().getCorkedSince() + mCorkDelay - lNow));
+                    }
+                    if (mSelector.select(lTimeout) > 0 && mIsRunning) {
                         Iterator<SelectionKey> lKeys = mSelector.selectedKeys().iterator();
                         while (lKeys.hasNext()) {
                             SelectionKey lKey = lKeys.next();
                             lKeys.remove();
                             try {
-                                if (lKey.isAcceptable()) {
-                                    accept(lKey, mSelector);
-                                } else if (lKey.isReadable()) {
+                                if (lKey.isValid() && lKey.isReadable()) {
                                     read(lKey);
-                                } else if (lKey.isValid() && lKey.isWritable()) {
-                                    write(lKey, mSelector);
+                                }
+                                if (lKey.isValid() && lKey.isWritable()) {
+                                    write(lKey);
+                                    // the handshake may wait for its data to be written
+                                    NioTcpConnector lSSLConnector = getSSLConnector(lKey);
+                                    if (null != lSSLConnector && lKey.isValid()
+                                            && !lSSLConnector.isAfterSSLHandshake()) {
+                                        processSSL(lKey, lSSLConnector);
+                                    }
                                 }
                             } catch (CancelledKeyException lCKEx) {
                                 // ignore, key was cancelled an instant after isValid() returned true,
@@ -269,110 +932,329 @@ public class NioTcpEngine extends BaseEngine {
                             }
                         }
                     }
+                    lNow = TimingWheel.now();
+                    mWheel.advance(lNow);
+                    if (!mCorked.isEmpty()) {
+                        writeCorked(lNow);
+                    }
                 } catch (Exception lEx) {
                     // something happened during socket operation (select, read or write), just log it
                     mLog.error("Error during socket operation", lEx);
                 }
             }
-
-            engineStopped();
         }
-    }
 
-    private void write(SelectionKey aKey, Selector aSelector) throws IOException {
-        SocketChannel lSocketChannel = (SocketChannel) aKey.channel();
-        Queue<DataFuture> lQueue = mPendingWrites.get(mChannelToConnectorMap.get(lSocketChannel));
-        if (!lQueue.isEmpty()) {
-            DataFuture future = lQueue.element();
+        private void writeRequested(NioTcpConnector aConnector) {
+            SelectionKey lKey = aConnector.getSelectionKey();
+            aConnector.clearUrgentWrite();
             try {
-                ByteBuffer lData = future.getData();
-                lSocketChannel.write(lData);
-                if (lData.remaining() > 0) {
-                    // socket's buffer is full, stop writing for now and leave the remaining
-                    // data in queue for another round of writing
-                    return;
+                if (null != lKey && lKey.isValid()) {
+                    // optimistic write, OP_WRITE is registered only if the socket is full
+                    write(lKey);
                 } else {
-                    lQueue.remove();
-                    future.setSuccess();
+                    // client disconnect too fast
+                    aConnector.unscheduleWrite();
                 }
-            } catch (IOException lIOEx) {
-                future.setFailure(lIOEx);
-                // don't throw exception here
-                // pending close packets are maybe in reading queue
-                // some connectors could be not stopped yet
+            } catch (Exception lEx) {
+                // just ignore it. client disconnect too fast
+                aConnector.unscheduleWrite();
             }
         }
-        aKey.interestOps(SelectionKey.OP_READ);
-        if (!lQueue.isEmpty()) {
-            aSelector.wakeup();
+
+        private void uncork(NioTcpConnector aConnector, long aNow) {
+            mCorkDelayHistogram.record(aNow - aConnector.clearCorkQueued());
         }
-    }
 
-    private void accept(SelectionKey aKey, Selector aSelector) throws IOException {
-        try {
-            if (getConnectors().size() == getConfiguration().getMaxConnections()
-                    && getConfiguration().getOnMaxConnectionStrategy().equals("close")) {
-                aKey.channel().close();
-                aKey.cancel();
-                mLog.info("NIO client (" + ((ServerSocketChannel) aKey.channel()).socket().getInetAddress()
-                        + ") not accepted due to max connections reached. Connection closed!");
-            } else {
-                SocketChannel lSocketChannel = ((ServerSocketChannel) aKey.channel()).accept();
-                lSocketChannel.configureBlocking(false);
-                lSocketChannel.register(aSelector, SelectionKey.OP_READ);
-                int lSocketPort = lSocketChannel.socket().getPort();
-                int lServerPort = lSocketChannel.socket().getLocalPort();
-                NioTcpConnector lConnector = new NioTcpConnector(
-                        this, lSocketChannel.socket().getInetAddress(),
-                        lSocketPort);
-                // proceed with SSL connector
-                if (lServerPort == getConfiguration().getSSLPort()) {
-                    lConnector.setSSL(true);
-                    lConnector.setSSLEngine(mSSLContext.createSSLEngine());
-                    lConnector.getSSLEngine().setUseClientMode(false);
-                    lConnector.getSSLEngine().beginHandshake();
-                }
-                getConnectors().put(lConnector.getId(), lConnector);
-                mPendingWrites.put(lConnector.getId(), new ConcurrentLinkedQueue<DataFuture>());
-                mConnectorToChannelMap.put(lConnector.getId(), lSocketChannel);
-                mChannelToConnectorMap.put(lSocketChannel, lConnector.getId());
-
-                mLog.info("NIO " + ((lConnector.isSSL()) ? "(SSL)" : "(plain)")
-                        + "client started. Address: " + lConnector.getRemoteHost()
-                        + "@" + lConnector.getRemotePort());
+        /**
+         * Writes the frames of the connectors whose cork delay has elapsed.
+         * Connectors uncorked by a sending thread are removed, their write
+         * request is pending.
+         */
+        private void writeCorked(long aNow) {
+            for (int lIdx = mCorked.size(); lIdx > 0; lIdx--) {
+                NioTcpConnector lConnector = mCorked.poll();
+                if (!lConnector.isCorkQueued() || !lConnector.isCorked()) {
+                    continue;
+                }
+                if (aNow - lConnector.getCorkedSince() < mCorkDelay) {
+                    mCorked.add(lConnector);
+                } else if (lConnector.tryUncork()) {
+                    uncork(lConnector, aNow);
+                    writeRequested(lConnector);
+                }
             }
-        } catch (IOException e) {
-            mLog.warn("Could not start new client connection!");
-            throw e;
         }
-    }
 
-    private void read(SelectionKey aKey) throws IOException {
-        SocketChannel lSocketChannel = (SocketChannel) aKey.channel();
-        mReadBuffer.clear();
+        /**
+         * Writes as many queued frames as the socket accepts, using gathering
+         * writes of up to MAX_GATHER_BUFFERS frames per system call. The
+         * futures are completed in queue order. OP_WRITE is registered only
+         * while the socket's buffer is full.
+         */
+        private void write(SelectionKey aKey) throws IOException {
+            SocketChannel lSocketChannel = (SocketChannel) aKey.channel();
+            NioTcpConnector lConnector = (NioTcpConnector) aKey.attachment();
+            Queue<DataFuture> lQueue = lConnector.getWriteQueue();
+            if (null == lQueue) {
+                // connection closed in the meantime
+                return;
+            }
+            if (null != lConnector.getSSLHandler()) {
+                writeSSL(aKey, lConnector, lQueue);
+                return;
+            }
+            do {
+                while (!lQueue.isEmpty()) {
+                    int lCount = gather(lConnector, lQueue);
+                    if (0 == lCount) {
+                        // only cancelled frames
+                        continue;
+                    }
+                    boolean lSocketFull;
+                    mWriteBatchHistogram.record(lCount);
+                    try {
+                        if (lSocketChannel.write(mGatherBuffers, 0, lCount) > 0) {
+                            lConnector.setLastWrite(TimingWheel.now());
+                        }
+                        lSocketFull = mGatherBuffers[lCount - 1].hasRemaining();
+                    } catch (IOException lIOEx) {
+                        // don't throw exception here
+                        // pending close packets are maybe in reading queue
+                        // some connectors could be not stopped yet
+                        DataFuture lFuture;
+                        while (null != (lFuture = lQueue.poll())) {
+                            pendingWriteRemoved(lConnector, lFuture);
+                            lFuture.discard(lIOEx);
+                        }
+                        break;
+                    } finally {
+                        Arrays.fill(mGatherBuffers, 0, lCount, null);
+                    }
 
-        int lNumRead;
-        try {
-            lNumRead = lSocketChannel.read(mReadBuffer);
-        } catch (IOException lIOEx) {
-            // remote client probably disconnected uncleanly ?
-            clientDisconnect(aKey);
-            return;
+                    // completing the completely written frames in order
+                    DataFuture lFuture;
+                    while (null != (lFuture = lQueue.peek()) && !lFuture.getData().hasRemaining()) {
+                        lQueue.poll();
+                        pendingWriteRemoved(lConnector, lFuture);
+                        lFuture.setSuccess();
+                    }
+                    if (lSocketFull) {
+                        // socket's buffer is full, stop writing for now and leave the remaining
+                        // data in queue for another round of writing
+                        aKey.interestOps(aKey.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                aKey.interestOps(aKey.interestOps() & ~SelectionKey.OP_WRITE);
+                lConnector.unscheduleWrite();
+                // a packet could have been queued right before unscheduling
+            } while (!lQueue.isEmpty() && lConnector.tryScheduleWrite());
         }
-        if (lNumRead == -1) {
-            // read channel closed, connection has ended
-            clientDisconnect(aKey);
-            return;
+
+        /**
+         * Collects the data of up to MAX_GATHER_BUFFERS queued frames into the
+         * gather buffers, the frames can't be cancelled anymore. Cancelled
+         * frames are removed from the queue.
+         *
+         * @return The number of collected buffers
+         */
+        private int gather(NioTcpConnector aConnector, Queue<DataFuture> aQueue) {
+            int lCount = 0;
+            for (Iterator<DataFuture> lIt = aQueue.iterator();
+                    lIt.hasNext() && lCount < MAX_GATHER_BUFFERS;) {
+                DataFuture lFuture = lIt.next();
+                if (!lFuture.startWrite()) {
+                    lIt.remove();
+                    pendingWriteRemoved(aConnector, lFuture);
+                    lFuture.releaseData();
+                    continue;
+                }
+                mGatherBuffers[lCount++] = lFuture.getData();
+            }
+            return lCount;
         }
-        if (lNumRead > 0 && mChannelToConnectorMap.containsKey(lSocketChannel)) {
-            String lConnectorId = mChannelToConnectorMap.get(lSocketChannel);
-            final ReadBean lBean = new ReadBean(lConnectorId, Arrays.copyOf(mReadBuffer.array(), lNumRead));
-            final NioTcpConnector lConnector = (NioTcpConnector) getConnectors().get(lBean.getConnectorId());
+
+        /**
+         * Encrypts and writes the handshake data and the queued frames of a
+         * SSL connector. Each wrap operation gathers up to MAX_GATHER_BUFFERS
+         * frames into a single TLS record. The futures are completed once
+         * their encrypted data has been written.
+         */
+        private void writeSSL(SelectionKey aKey, NioTcpConnector aConnector,
+                Queue<DataFuture> aQueue) throws IOException {
+            SocketChannel lSocketChannel = (SocketChannel) aKey.channel();
+            SSLHandler lHandler = aConnector.getSSLHandler();
+            do {
+                try {
+                    while (true) {
+                        if (lHandler.hasNetOut()) {
+                            if (lSocketChannel.write(lHandler.getNetOut()) > 0) {
+                                aConnector.setLastWrite(TimingWheel.now());
+                            }
+                            if (lHandler.hasNetOut()) {
+                                // socket's buffer is full
+                                aKey.interestOps(aKey.interestOps() | SelectionKey.OP_WRITE);
+                                return;
+                            }
+                            lHandler.completeWrapped();
+                        }
+                        HandshakeStatus lStatus = lHandler.getHandshakeStatus();
+                        if (HandshakeStatus.NEED_WRAP == lStatus) {
+                            lHandler.wrapHandshake();
+                            continue;
+                        }
+                        if (!aConnector.isAfterSSLHandshake()
+                                || HandshakeStatus.NOT_HANDSHAKING != lStatus) {
+                            // the (re)handshake is in progress, the write stays
+                            // scheduled, processSSL writes the queued frames
+                            // once it's completed
+                            aKey.interestOps(aKey.interestOps() & ~SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        if (aQueue.isEmpty()) {
+                            break;
+                        }
+                        int lCount = gather(aConnector, aQueue);
+                        if (0 == lCount) {
+                            // only cancelled frames
+                            continue;
+                        }
+                        mWriteBatchHistogram.record(lCount);
+                        try {
+                            lHandler.wrap(mGatherBuffers, 0, lCount);
+                        } finally {
+                            Arrays.fill(mGatherBuffers, 0, lCount, null);
+                        }
+                        DataFuture lFuture;
+                        while (null != (lFuture = aQueue.peek()) && !lFuture.getData().hasRemaining()) {
+                            aQueue.poll();
+                            pendingWriteRemoved(aConnector, lFuture);
+                            lHandler.addWrapped(lFuture);
+                        }
+                    }
+                } catch (IOException lIOEx) {
+                    DataFuture lFuture;
+                    while (null != (lFuture = aQueue.poll())) {
+                        pendingWriteRemoved(aConnector, lFuture);
+                        lFuture.discard(lIOEx);
+                    }
+                    clientDisconnect(aKey, CloseReason.SERVER);
+                    return;
+                }
+                aKey.interestOps(aKey.interestOps() & ~SelectionKey.OP_WRITE);
+                aConnector.unscheduleWrite();
+                // a packet could have been queued right before unscheduling
+            } while (!aQueue.isEmpty() && aConnector.tryScheduleWrite());
+        }
+
+        /**
+         * Drives the SSL handshake and decrypts the buffered network data of
+         * a SSL connector. The decrypted data is queued for the workers.
+         */
+        private void processSSL(SelectionKey aKey, NioTcpConnector aConnector) throws IOException {
+            SSLHandler lHandler = aConnector.getSSLHandler();
+            try {
+                boolean lProgress = true;
+                while (lProgress && !lHandler.isTaskPending() && aKey.isValid()) {
+                    lProgress = false;
+                    switch (lHandler.getHandshakeStatus()) {
+                        case NEED_TASK:
+                            runSSLTasks(aKey, aConnector);
+                            return;
+                        case NEED_WRAP:
+                            write(aKey);
+                            // continue unless the socket is full
+                            lProgress = !lHandler.hasNetOut();
+                            break;
+                        default:
+                            lProgress = lHandler.unwrap();
+                            if (lHandler.hasAppData()) {
+                                dispatch(aKey, aConnector, lHandler.takeAppData());
+                                lProgress = true;
+                            }
+                    }
+                }
+            } catch (IOException lIOEx) {
+                // SSLException included, the handshake failed or the client closed the connection
+                if (mLog.isDebugEnabled()) {
+                    mLog.debug(Logging.getSimpleExceptionMessage(lIOEx, "processing SSL data"));
+                }
+                clientDisconnect(aKey, CloseReason.CLIENT);
+                return;
+            }
+            if (lHandler.isTaskPending()
+                    || HandshakeStatus.NOT_HANDSHAKING != lHandler.getHandshakeStatus()) {
+                return;
+            }
+            if (!aConnector.isAfterSSLHandshake()) {
+                aConnector.sslHandshakeValidated();
+                if (mLog.isDebugEnabled()) {
+                    mLog.debug("SSL handshake completed for connector '" + aConnector.getId() + "'.");
+                }
+                // writing the frames queued during the handshake
+                if (aKey.isValid()) {
+                    write(aKey);
+                }
+            } else if (aKey.isValid() && null != aConnector.getWriteQueue()
+                    && !aConnector.getWriteQueue().isEmpty()) {
+                // writeSSL stops while a renegotiation is in progress, keeping
+                // the write scheduled, so the queued frames are resumed here
+                write(aKey);
+            }
+        }
+
+        /**
+         * Executes the delegated handshake tasks of a SSL connector outside of
+         * the selector thread, the handshake is resumed afterwards.
+         */
+        private void runSSLTasks(final SelectionKey aKey, final NioTcpConnector aConnector) {
+            final SSLHandler lHandler = aConnector.getSSLHandler();
+            lHandler.setTaskPending(true);
+            mSSLTaskExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    Runnable lTask;
+                    while (null != (lTask = lHandler.getEngine().getDelegatedTask())) {
+                        lTask.run();
+                    }
+                    execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            lHandler.setTaskPending(false);
+                            if (aKey.isValid()) {
+                                try {
+                                    processSSL(aKey, aConnector);
+                                } catch (IOException lEx) {
+                                    mLog.error("Error during SSL handshake", lEx);
+                                }
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        private NioTcpConnector getSSLConnector(SelectionKey aKey) {
+            NioTcpConnector lConnector = (NioTcpConnector) aKey.attachment();
+            return (null != lConnector.getSSLHandler()) ? lConnector : null;
+        }
+
+        /**
+         * Queues data read from a connector for the workers. Reading the
+         * connector is paused if its backlog or the global backlog exceed
+         * their limits.
+         */
+        private void dispatch(SelectionKey aKey, final NioTcpConnector aConnector, PooledBuffer aData) {
+            final ReadBean lBean = new ReadBean(aConnector.getId(), aData);
+            long lConnectorBytes = aConnector.addUnprocessedBytes(lBean.getSize());
+            long lGlobalBytes = mUnprocessedBytes.addAndGet(lBean.getSize());
             mDelayedPacketsQueue.addDelayedPacket(new IDelayedPacketNotifier() {
 
                 @Override
                 public NioTcpConnector getConnector() {
-                    return lConnector;
+                    return aConnector;
                 }
 
                 @Override
@@ -380,6 +1262,233 @@ public class NioTcpEngine extends BaseEngine {
                     return lBean;
                 }
             });
+
+            if ((lConnectorBytes > mConnectorReadLimit || lGlobalBytes > mGlobalReadLimit)
+                    && aConnector.setReadPaused(true)) {
+                aKey.interestOps(aKey.interestOps() & ~SelectionKey.OP_READ);
+                mReadPausedConnectors.add(aConnector);
+                mReadPausesCount.incrementAndGet();
+                // the workers may have drained the backlog in the meantime
+                tryResumeRead(aConnector);
+            }
+        }
+
+        /**
+         * Schedules the next idle check of a connector in this thread's timing
+         * wheel.
+         *
+         * @param aConnector
+         * @param aDelay The delay in milliseconds, <tt>0</tt> for the delay
+         * derived from the connector's timeouts
+         */
+        private void scheduleIdleCheck(final NioTcpConnector aConnector, long aDelay) {
+            if (aDelay <= 0) {
+                aDelay = (mPingInterval > 0) ? mPingInterval : aConnector.getIdleTimeout();
+                if (aConnector.getIdleTimeout() > 0) {
+                    aDelay = Math.min(aDelay, aConnector.getIdleTimeout());
+                }
+                if (aDelay <= 0) {
+                    // neither pings nor timeouts
+                    return;
+                }
+            }
+            aConnector.setIdleCheck(mWheel.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    aConnector.setIdleCheck(null);
+                    checkIdle(aConnector);
+                }
+            }, aDelay));
+        }
+
+        /**
+         * Closes a connector that received nothing within its idle timeout, did
+         * not complete the handshake within the handshake timeout or did not
+         * answer a PING within the pong timeout. A PING is sent if
+         * nothing has been received or sent within the ping interval. The
+         * timestamps are updated by the socket operations, so the check is
+         * only rescheduled here instead of for each read or write.
+         *
+         * @param aConnector
+         */
+        private void checkIdle(NioTcpConnector aConnector) {
+            if (null == aConnector.getChannel()) {
+                // closed in the meantime
+                return;
+            }
+            long lNow = TimingWheel.now();
+            long lReadIdle = lNow - aConnector.getLastRead();
+            int lIdleTimeout = aConnector.getIdleTimeout();
+            if (lIdleTimeout > 0 && lReadIdle >= lIdleTimeout) {
+                closeIdle(aConnector, "Nothing received for " + lReadIdle + "ms");
+                return;
+            }
+            long lNext = (lIdleTimeout > 0) ? lIdleTimeout - lReadIdle : Long.MAX_VALUE;
+            if (mHandshakeTimeout > 0 && !aConnector.isAfterWSHandshake()) {
+                long lElapsed = lNow - aConnector.getConnectedAt();
+                if (lElapsed >= mHandshakeTimeout) {
+                    closeIdle(aConnector, "Handshake not completed within " + lElapsed + "ms");
+                    return;
+                }
+                lNext = Math.min(lNext, mHandshakeTimeout - lElapsed);
+            }
+
+            // pings are supported by the hybi protocol only
+            if (mPingInterval > 0 && aConnector.isAfterWSHandshake() && !aConnector.isHixie()) {
+                long lPingSent = aConnector.getPingSent();
+                if (lPingSent > 0 && aConnector.getLastRead() < lPingSent) {
+                    long lPongWait = lNow - lPingSent;
+                    if (lPongWait >= mPongTimeout) {
+                        closeIdle(aConnector, "No PONG received for " + lPongWait + "ms");
+                        return;
+                    }
+                    lNext = Math.min(lNext, mPongTimeout - lPongWait);
+                } else {
+                    // anything received after the PING counts as an answer
+                    aConnector.setPingSent(0);
+                    long lIdle = lNow - Math.min(aConnector.getLastRead(), aConnector.getLastWrite());
+                    if (lIdle >= mPingInterval) {
+                        aConnector.setPingSent(lNow);
+                        aConnector.sendPacket(new RawPacket(WebSocketFrameType.PING, ""));
+                        lNext = Math.min(lNext, mPongTimeout);
+                    } else {
+                        lNext = Math.min(lNext, mPingInterval - lIdle);
+                    }
+                }
+            } else if (mPingInterval > 0 && !aConnector.isAfterWSHandshake()) {
+                // waiting for the handshake to be completed
+                lNext = Math.min(lNext, mPingInterval);
+            }
+            if (Long.MAX_VALUE != lNext) {
+                scheduleIdleCheck(aConnector, lNext);
+            }
+        }
+
+        private void closeIdle(NioTcpConnector aConnector, String aReason) {
+            mIdleClosedCount.incrementAndGet();
+            if (mLog.isDebugEnabled()) {
+                mLog.debug(aReason + ", closing connector '" + aConnector.getId() + "'...");
+            }
+            try {
+                clientDisconnect(aConnector, CloseReason.TIMEOUT);
+            } catch (IOException lEx) {
+                mLog.error(lEx.getClass().getSimpleName() + " closing idle connector '"
+                        + aConnector.getId() + "': " + lEx.getMessage());
+            }
+        }
+
+        private void read(SelectionKey aKey) throws IOException {
+            SocketChannel lSocketChannel = (SocketChannel) aKey.channel();
+            mReadBuffer.clear();
+
+            int lNumRead;
+            try {
+                lNumRead = lSocketChannel.read(mReadBuffer);
+            } catch (IOException lIOEx) {
+                // remote client probably disconnected uncleanly ?
+                clientDisconnect(aKey);
+                return;
+            }
+            if (lNumRead == -1) {
+                // read channel closed, connection has ended
+                clientDisconnect(aKey);
+                return;
+            }
+            NioTcpConnector lConnector = (NioTcpConnector) aKey.attachment();
+            if (lNumRead > 0) {
+                lConnector.setLastRead(TimingWheel.now());
+                mReadBuffer.flip();
+                if (null != lConnector.getSSLHandler()) {
+                    lConnector.getSSLHandler().feed(mReadBuffer);
+                    processSSL(aKey, lConnector);
+                    return;
+                }
+                PooledBuffer lData = mBufferPool.acquire(lNumRead);
+                lData.getBuffer().put(mReadBuffer);
+                lData.getBuffer().flip();
+                dispatch(aKey, lConnector, lData);
+            }
+        }
+    }
+
+    private void accept(SelectionKey aKey) throws IOException {
+        SocketChannel lSocketChannel = ((ServerSocketChannel) aKey.channel()).accept();
+        if (null == lSocketChannel) {
+            // another thread was faster or the client went away
+            return;
+        }
+        // rejecting early, before any connector is created. The "reject" and
+        // "redirect" strategies need a connector to send the close frame, they
+        // are applied once the handshake request is read
+        int lMaxConnections = "close".equals(getConfiguration().getOnMaxConnectionStrategy())
+                ? getConfiguration().getMaxConnections() : 0;
+        AdmissionController.Reason lRejection = mAdmission.admit(
+                lSocketChannel.socket().getInetAddress(), getConnectors().size(),
+                lMaxConnections);
+        if (null != lRejection) {
+            if (mLog.isDebugEnabled()) {
+                mLog.debug("NIO client (" + lSocketChannel.socket().getInetAddress()
+                        + ") not accepted (" + lRejection + "). Connection closed!");
+            }
+            try {
+                // resetting the connection, nothing is pending to be sent
+                lSocketChannel.socket().setSoLinger(true, 0);
+                lSocketChannel.close();
+            } catch (IOException lEx) {
+            }
+            return;
+        }
+
+        NioTcpConnector lConnector = null;
+        try {
+            lSocketChannel.configureBlocking(false);
+            int lSocketPort = lSocketChannel.socket().getPort();
+            lConnector = new NioTcpConnector(
+                    this, mNextConnectorId.incrementAndGet(),
+                    lSocketChannel.socket().getInetAddress(), lSocketPort);
+            lConnector.setHandshakePending();
+            lConnector.setChannel(lSocketChannel);
+            // proceed with SSL connector
+            if (null != mSSLServer && aKey.channel() == mSSLServer) {
+                SSLEngine lSSLEngine = mSSLContext.createSSLEngine(
+                        lConnector.getRemoteHost().getHostAddress(), lSocketPort);
+                lSSLEngine.setUseClientMode(false);
+                lSSLEngine.beginHandshake();
+                lConnector.setSSL(true);
+                lConnector.setSSLHandler(new SSLHandler(lSSLEngine, mBufferPool));
+            }
+            getConnectors().put(lConnector.getId(), lConnector);
+            nextSelectorThread().register(lSocketChannel, lConnector);
+
+            mLog.info("NIO " + ((lConnector.isSSL()) ? "(SSL)" : "(plain)")
+                    + "client started. Address: " + lConnector.getRemoteHost()
+                    + "@" + lConnector.getRemotePort());
+        } catch (IOException lEx) {
+            acceptFailed(lSocketChannel, lConnector);
+            throw lEx;
+        } catch (RuntimeException lEx) {
+            acceptFailed(lSocketChannel, lConnector);
+            throw lEx;
+        }
+    }
+
+    /**
+     * Releases the pending handshake of a connection that could not be
+     * started and closes its channel.
+     */
+    private void acceptFailed(SocketChannel aChannel, NioTcpConnector aConnector) {
+        mLog.warn("Could not start new client connection!");
+        if (null != aConnector) {
+            getConnectors().remove(aConnector.getId());
+            handshakeFinished(aConnector);
+        } else {
+            // failed before the connector counted the handshake
+            mAdmission.handshakeFinished();
+        }
+        try {
+            aChannel.close();
+        } catch (IOException lEx) {
         }
     }
 
@@ -388,8 +1497,9 @@ public class NioTcpEngine extends BaseEngine {
     }
 
     private void clientDisconnect(SelectionKey aKey, CloseReason aReason) throws IOException {
-        SocketChannel lChannel = (SocketChannel) aKey.channel();
-        if (mChannelToConnectorMap.containsKey(lChannel)) {
+        NioTcpConnector lConnector = (NioTcpConnector) aKey.attachment();
+        SocketChannel lChannel = (null != lConnector) ? lConnector.detachChannel() : null;
+        if (null != lChannel) {
             try {
                 aKey.cancel();
                 lChannel.socket().close();
@@ -397,14 +1507,10 @@ public class NioTcpEngine extends BaseEngine {
             } catch (IOException lEx) {
             }
 
-            String lId = mChannelToConnectorMap.remove(lChannel);
-            mPendingWrites.remove(lId);
-            mConnectorToChannelMap.remove(lId);
-
-            WebSocketConnector lConnector = getConnectors().get(lId);
-            if (mDelayedPacketsQueue.getDelayedPackets().containsKey(lConnector)) {
-                mDelayedPacketsQueue.getDelayedPackets().remove(lConnector);
+            if (null != lConnector.getSelectorThread()) {
+                lConnector.getSelectorThread().connectionClosed(lConnector);
             }
+            readProcessed(lConnector, mDelayedPacketsQueue.clear(lConnector));
 
             connectorStopped(lConnector, aReason);
         }
@@ -416,8 +1522,14 @@ public class NioTcpEngine extends BaseEngine {
 
     private void clientDisconnect(WebSocketConnector aConnector,
             CloseReason aReason) throws IOException {
-        if (mConnectorToChannelMap.containsKey(aConnector.getId())) {
-            clientDisconnect(mConnectorToChannelMap.get(aConnector.getId()).keyFor(mPlainSelector), aReason);
+        NioTcpConnector lConnector = (NioTcpConnector) aConnector;
+        if (null != lConnector.getChannel()) {
+            SelectionKey lKey = lConnector.getSelectionKey();
+            if (null != lKey) {
+                clientDisconnect(lKey, aReason);
+            } else {
+                connectorStopped(aConnector, aReason);
+            }
         }
     }
 
@@ -434,98 +1546,37 @@ public class NioTcpEngine extends BaseEngine {
         public void run() {
             Thread.currentThread().setName("jWebSocket NIO-Engine ReadWorker " + this.mId);
             while (mIsRunning) {
+                IDelayedPacketNotifier lDelayedPacket = null;
                 try {
-                    IDelayedPacketNotifier lDelayedPacket;
                     lDelayedPacket = mDelayedPacketsQueue.take();
 
-                    // processing SSL packets
-//                    if (lDelayedPacket.getConnector().isSSL()) {
-//                        boolean lContinue = false;
-//                        try {
-//                            lContinue = lDelayedPacket.getConnector().isAfterSSLHandshake();
-//                            processSSLPacket(lDelayedPacket);
-//                        } catch (Exception lEx) {
-//                            if (mLog.isDebugEnabled()) {
-//                                mLog.debug(Logging.getSimpleExceptionMessage(lEx, "processing SSL packet"));
-//                            }
-//                            clientDisconnect(lDelayedPacket.getConnector(), CloseReason.SERVER);
-//                        }
-//
-//                        if (!lContinue) {
-//                            continue; // ssl handshaking
-//                        }
-//                    }
                     // executing read operation
                     doRead(lDelayedPacket.getConnector(), lDelayedPacket.getBean());
-
-                    lDelayedPacket.getConnector().releaseWorker();
+                } catch (InterruptedException lEx) {
+                    // engine stopped
+                    break;
                 } catch (Exception e) {
                     // uncaught exception during packet processing - kill the worker (todo: think about worker restart)
                     mLog.error("Unexpected exception during incoming packet processing", e);
                     break;
+                } finally {
+                    if (null != lDelayedPacket) {
+                        readProcessed(lDelayedPacket.getConnector(), lDelayedPacket.getBean().getSize());
+                        lDelayedPacket.getBean().release();
+                        // let other workers process the pending packets of the connector
+                        mDelayedPacketsQueue.release(lDelayedPacket.getConnector());
+                    }
                 }
             }
         }
 
-//        private void processSSLPacket(IDelayedPacketNotifier aDelayedPacket) throws Exception {
-//            NioTcpConnector lConnector = aDelayedPacket.getConnector();
-//            ByteBuffer lIn = ByteBuffer.wrap(aDelayedPacket.getBean().getData());
-//            ByteBuffer lOut;
-//
-//            switch (lConnector.getSSLEngine().getHandshakeStatus()) {
-//                case NOT_HANDSHAKING:
-//                    lOut = Util.unwrap(
-//                            lIn,
-//                            lConnector.getSSLEngine(),
-//                            getConfiguration().getMaxFramesize());
-//                    aDelayedPacket.getBean().setData(lOut.array());
-//                    break;
-//                case NEED_WRAP:
-//                    lOut = Util.wrap(
-//                            lIn,
-//                            lConnector.getSSLEngine(),
-//                            getConfiguration().getMaxFramesize());
-//                    aDelayedPacket.getBean().setData(lOut.array());
-//
-//                    mPendingWrites.get(lConnector.getId()).offer(new DataFuture(lConnector, lOut));
-//                    mSSLSelector.wakeup();
-//
-//                    // checking if the SSL handshake is complete
-//                    if (lConnector.getSSLEngine().getHandshakeStatus().equals(SSLEngineResult.HandshakeStatus.FINISHED)) {
-//                        lConnector.sslHandshakeValidated();
-//                    } else {
-//                        processSSLPacket(aDelayedPacket);
-//                    }
-//
-//                    break;
-//                case NEED_UNWRAP:
-//                    Util.unwrap(
-//                            lIn,
-//                            lConnector.getSSLEngine(),
-//                            getConfiguration().getMaxFramesize());
-//
-//                    //aDelayedPacket.getBean().setData(lOut.array());
-//                    processSSLPacket(aDelayedPacket);
-//                    break;
-//                case NEED_TASK:
-//                    Runnable lTask;
-//                    while ((lTask = lConnector.getSSLEngine().getDelegatedTask()) != null) {
-//                        lTask.run();
-//                    }
-//                    processSSLPacket(aDelayedPacket);
-//                    break;
-//                case FINISHED:
-//                    throw new IllegalStateException("SSL handshake FINISHED on connector: " + lConnector.generateUID());
-//            }
-//        }
-
         private void doRead(NioTcpConnector aConnector, ReadBean aBean) throws IOException {
             if (aConnector.isAfterWSHandshake()) {
                 boolean lIsHixie = aConnector.isHixie();
                 if (lIsHixie) {
-                    readHixie(new ByteArrayInputStream(aBean.getData()), aConnector);
+                    readHixie(aBean.getBuffer(), aConnector);
                 } else {
-                    readHybi(aConnector.getVersion(), new ByteArrayInputStream(aBean.getData()), aConnector);
+                    readHybi(aBean.getBuffer(), aConnector);
                 }
             } else {
                 // checking if "max connnections" value has been reached
@@ -544,7 +1595,21 @@ public class NioTcpEngine extends BaseEngine {
                         clientDisconnect(aConnector, CloseReason.SERVER_REDIRECT_CONNECTION);
                     }
                 } else {
-                    Map lReqMap = WebSocketHandshake.parseC2SRequest(aBean.getData(), false);
+                    // the request may arrive in several reads
+                    HandshakeScanner lScanner = aConnector.getHandshakeScanner();
+                    try {
+                        if (!lScanner.append(aBean.getBuffer())) {
+                            return;
+                        }
+                    } catch (WebSocketException lEx) {
+                        mLog.warn("Closing connector '" + aConnector.getId() + "': " + lEx.getMessage());
+                        clientDisconnect(aConnector, CloseReason.SERVER);
+                        return;
+                    }
+                    aConnector.releaseHandshakeScanner();
+
+                    byte[] lRequest = lScanner.getRequest();
+                    Map lReqMap = WebSocketHandshake.parseC2SRequest(lRequest, aConnector.isSSL());
 
                     EngineUtils.parseCookies(lReqMap);
                     //Setting the session identifier cookie if not present previously
@@ -555,61 +1620,102 @@ public class NioTcpEngine extends BaseEngine {
                     byte[] lResponse = WebSocketHandshake.generateS2CResponse(lReqMap);
                     RequestHeader lReqHeader = EngineUtils.validateC2SRequest(
                             getConfiguration().getDomains(), lReqMap, mLog);
+                    PerMessageDeflate lDeflate = (null != lResponse && null != lReqHeader)
+                            ? PerMessageDeflate.negotiate(getConfiguration(), lRequest,
+                            lReqHeader.getVersion(), mMaxMessageSize) : null;
+                    if (null != lDeflate) {
+                        lResponse = lDeflate.addResponseHeader(lResponse);
+                        aConnector.setDeflate(lDeflate);
+                    }
                     if (lResponse == null || lReqHeader == null) {
                         if (mLog.isDebugEnabled()) {
                             mLog.warn("TCP-Engine detected illegal handshake.");
                         }
                         // disconnect the client
                         clientDisconnect(aConnector);
+                        return;
                     }
 
                     //Setting the session identifier
                     aConnector.getSession().setSessionId(lReqHeader.getCookies().get(JWebSocketCommonConstants.SESSIONID_COOKIE_NAME).toString());
 
-                    send(aConnector.getId(), new DataFuture(aConnector, ByteBuffer.wrap(lResponse)));
-                    int lTimeout = lReqHeader.getTimeout(getSessionTimeout());
-                    if (lTimeout > 0) {
-                        mConnectorToChannelMap.get(aBean.getConnectorId()).socket().setSoTimeout(lTimeout);
-                    }
+                    send(aConnector, new DataFuture(aConnector, ByteBuffer.wrap(lResponse)));
+                    // setSoTimeout has no effect on non-blocking channels, the
+                    // timeout is checked by the selector thread instead
+                    aConnector.setIdleTimeout(Math.max(0, lReqHeader.getTimeout(getSessionTimeout())));
                     aConnector.wsHandshakeValidated();
+                    handshakeFinished(aConnector);
                     aConnector.setHeader(lReqHeader);
                     aConnector.startConnector();
+
+                    // processing the frames sent right after the request
+                    byte[] lRemainder = lScanner.getRemainder();
+                    if (null != lRemainder) {
+                        if (aConnector.isHixie()) {
+                            readHixie(ByteBuffer.wrap(lRemainder), aConnector);
+                        } else {
+                            readHybi(ByteBuffer.wrap(lRemainder), aConnector);
+                        }
+                    }
                 }
             }
         }
     }
 
-    private void readHybi(int aVersion, ByteArrayInputStream aIS, NioTcpConnector aConnector) throws IOException {
+    private void readHybi(ByteBuffer aData, NioTcpConnector aConnector) throws IOException {
         try {
+            FrameDecoder lDecoder = aConnector.getFrameDecoder();
+            lDecoder.append(aData);
+
+            // processing all complete frames in the buffer (for high concurrency scenarios),
+            // incomplete frames remain in the decoder until the next read
             WebSocketPacket lRawPacket;
-            lRawPacket = WebSocketProtocolAbstraction.protocolToRawPacket(aVersion, aIS);
-
-            if (lRawPacket.getFrameType() == WebSocketFrameType.PING) {
-                // As per spec, server must respond to PING with PONG (maybe
-                // this should be handled higher up in the hierarchy?)
-                WebSocketPacket lPong = new RawPacket(lRawPacket.getByteArray());
-                lPong.setFrameType(WebSocketFrameType.PONG);
-                aConnector.sendPacket(lPong);
-            } else if (lRawPacket.getFrameType() == WebSocketFrameType.CLOSE) {
-                // As per spec, server must respond to CLOSE with acknowledgment CLOSE (maybe
-                // this should be handled higher up in the hierarchy?)
-                WebSocketPacket lClose = new RawPacket(lRawPacket.getByteArray());
-                lClose.setFrameType(WebSocketFrameType.CLOSE);
-                aConnector.sendPacket(lClose);
-                clientDisconnect(aConnector, CloseReason.CLIENT);
-            } else if (lRawPacket.getFrameType() == WebSocketFrameType.TEXT) {
-                aConnector.flushPacket(lRawPacket);
-            } else if (lRawPacket.getFrameType() == WebSocketFrameType.INVALID) {
-                mLog.debug(getClass().getSimpleName() + ": Discarding invalid incoming packet... ");
-            } else if (lRawPacket.getFrameType() == WebSocketFrameType.FRAGMENT
-                    || lRawPacket.getFrameType() == WebSocketFrameType.BINARY) {
-                mLog.debug(getClass().getSimpleName() + ": Discarding unsupported ('"
-                        + lRawPacket.getFrameType().toString() + "')incoming packet... ");
-            }
-
-            //Reading pending packets in the buffer (for high concurrency scenarios)
-            if (aIS.available() > 0) {
-                readHybi(aVersion, aIS, aConnector);
+            while (null != (lRawPacket = lDecoder.nextPacket())) {
+                if (lRawPacket.getFrameType() == WebSocketFrameType.PING) {
+                    // As per spec, server must respond to PING with PONG (maybe
+                    // this should be handled higher up in the hierarchy?)
+                    WebSocketPacket lPong = new RawPacket(lRawPacket.getByteArray());
+                    lPong.setFrameType(WebSocketFrameType.PONG);
+                    aConnector.sendPacket(lPong);
+                } else if (lRawPacket.getFrameType() == WebSocketFrameType.CLOSE) {
+                    // As per spec, server must respond to CLOSE with acknowledgment CLOSE (maybe
+                    // this should be handled higher up in the hierarchy?)
+                    WebSocketPacket lClose = new RawPacket(lRawPacket.getByteArray());
+                    lClose.setFrameType(WebSocketFrameType.CLOSE);
+                    aConnector.sendPacket(lClose);
+                    clientDisconnect(aConnector, CloseReason.CLIENT);
+                    return;
+                } else if (lRawPacket.getFrameType() == WebSocketFrameType.TEXT
+                        || lRawPacket.getFrameType() == WebSocketFrameType.BINARY
+                        || lRawPacket.getFrameType() == WebSocketFrameType.FRAGMENT) {
+                    // fragmented messages are passed on once they are complete
+                    MessageAssembler lAssembler = aConnector.getMessageAssembler();
+                    WebSocketPacket lMessage;
+                    try {
+                        lMessage = lAssembler.assemble(lRawPacket,
+                                lDecoder.isFinalFragment(), lDecoder.isRsv1());
+                        if (null != lMessage && lAssembler.isCompressed()) {
+                            if (null == aConnector.getDeflate()) {
+                                throw new WebSocketException("Compressed message without negotiated extension.");
+                            }
+                            lMessage = new RawPacket(lMessage.getFrameType(),
+                                    aConnector.getDeflate().decompress(lMessage.getByteArray()));
+                        }
+                    } catch (WebSocketException lEx) {
+                        mLog.warn("Closing connector '" + aConnector.getId() + "': " + lEx.getMessage());
+                        WebSocketPacket lClose = new RawPacket(WebSocketFrameType.CLOSE,
+                                WebSocketProtocolAbstraction.calcCloseData(
+                                lAssembler.getCloseCode(), lEx.getMessage()));
+                        aConnector.sendPacket(lClose);
+                        clientDisconnect(aConnector, CloseReason.SERVER);
+                        return;
+                    }
+                    if (null != lMessage) {
+                        aConnector.flushPacket(lMessage);
+                    }
+                } else if (lRawPacket.getFrameType() == WebSocketFrameType.INVALID) {
+                    mLog.debug(getClass().getSimpleName() + ": Discarding invalid incoming packet... ");
+                }
             }
         } catch (Exception e) {
             mLog.error("(other) " + e.getClass().getSimpleName() + ": " + e.getMessage(), e);
@@ -617,39 +1723,31 @@ public class NioTcpEngine extends BaseEngine {
         }
     }
 
-    private void readHixie(ByteArrayInputStream aIS, NioTcpConnector lConnector) throws IOException {
-        ByteArrayOutputStream lBuff = new ByteArrayOutputStream();
+    private void readHixie(ByteBuffer aData, NioTcpConnector aConnector) throws IOException {
+        try {
+            HixieDecoder lDecoder = aConnector.getHixieDecoder();
+            lDecoder.append(aData);
 
-        while (true) {
-            try {
-                int lByte = WebSocketProtocolAbstraction.read(aIS);
-                // start of frame
-                if (lByte == 0x00) {
-                    lBuff.reset();
-                    // end of frame
-                } else if (lByte == 0xFF) {
-                    RawPacket lPacket = new RawPacket(lBuff.toByteArray());
-                    try {
-                        lConnector.flushPacket(lPacket);
-                        //Reading pending packets in the buffer (for high concurrency scenarios)
-                        if (aIS.available() > 0) {
-                            readHixie(aIS, lConnector);
-                        }
-                    } catch (Exception lEx) {
-                        mLog.error(lEx.getClass().getSimpleName()
-                                + " in processPacket of connector "
-                                + lConnector.getClass().getSimpleName()
-                                + ": " + lEx.getMessage());
-                    }
-                    break;
-                } else {
-                    lBuff.write(lByte);
+            // processing all complete frames in the buffer iteratively,
+            // an incomplete frame remains in the decoder until the next read
+            WebSocketPacket lPacket;
+            while (null != (lPacket = lDecoder.nextPacket())) {
+                if (WebSocketFrameType.CLOSE == lPacket.getFrameType()) {
+                    clientDisconnect(aConnector, CloseReason.CLIENT);
+                    return;
+                }
+                try {
+                    aConnector.flushPacket(lPacket);
+                } catch (Exception lEx) {
+                    mLog.error(lEx.getClass().getSimpleName()
+                            + " in processPacket of connector "
+                            + aConnector.getClass().getSimpleName()
+                            + ": " + lEx.getMessage());
                 }
-            } catch (Exception lEx) {
-                mLog.error("Error while processing incoming packet", lEx);
-                clientDisconnect(lConnector, CloseReason.SERVER);
-                break;
             }
+        } catch (Exception lEx) {
+            mLog.error("Error while processing incoming packet", lEx);
+            clientDisconnect(aConnector, CloseReason.SERVER);
         }
     }
 }
@@ -0,0 +1,88 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - WebSocket NIO Engine, PooledBuffer
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.jwebsocket.logging.Logging;
+
+/**
+ * Reference counted buffer of a {@link BufferPool}. The buffer goes back to
+ * its pool when the last reference is released.
+ */
+public class PooledBuffer {
+
+    private static Logger mLog = Logging.getLogger();
+    private final BufferPool mPool;
+    private final int mSizeClass;
+    private final ByteBuffer mBuffer;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    PooledBuffer(BufferPool aPool, int aSizeClass, ByteBuffer aBuffer) {
+        mPool = aPool;
+        mSizeClass = aSizeClass;
+        mBuffer = aBuffer;
+    }
+
+    /**
+     * Wraps a byte array into a non-pooled buffer.
+     *
+     * @param aData
+     * @return
+     */
+    public static PooledBuffer wrap(byte[] aData) {
+        return new PooledBuffer(null, -1, ByteBuffer.wrap(aData));
+    }
+
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Adds a reference to the buffer.
+     *
+     * @return This buffer
+     */
+    public PooledBuffer retain() {
+        mRefCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Releases a reference, the last one returns the buffer to its pool.
+     */
+    public void release() {
+        int lRefCount = mRefCount.decrementAndGet();
+        if (0 == lRefCount) {
+            if (null != mPool) {
+                mPool.recycle(this);
+            }
+        } else if (lRefCount < 0) {
+            // the buffer may already be used by another owner
+            mLog.error("Buffer released more often than retained (reference count "
+                    + lRefCount + ").", new IllegalStateException());
+        }
+    }
+
+    int getSizeClass() {
+        return mSizeClass;
+    }
+
+    void reset() {
+        mRefCount.set(1);
+    }
+}
@@ -15,6 +15,8 @@
 //    ---------------------------------------------------------------------------
 package org.jwebsocket.tcp.nio;
 
+import java.nio.ByteBuffer;
+
 /**
  *
  * @author kyberneees
@@ -22,19 +24,54 @@ package org.jwebsocket.tcp.nio;
 public class ReadBean {
 
     private String mConnectorId;
-    private byte[] mData;
+    private PooledBuffer mData;
+    private final int mSize;
 
     public ReadBean(String aConnectorId, byte[] aData) {
+        this(aConnectorId, PooledBuffer.wrap(aData));
+    }
+
+    /**
+     * The bean owns the passed buffer until it's released.
+     *
+     * @param aConnectorId
+     * @param aData
+     */
+    public ReadBean(String aConnectorId, PooledBuffer aData) {
         this.mConnectorId = aConnectorId;
         this.mData = aData;
+        this.mSize = aData.getBuffer().remaining();
     }
 
     public String getConnectorId() {
         return mConnectorId;
     }
 
+    /**
+     *
+     * @return The number of bytes read from the socket
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     *
+     * @return A copy of the data as byte array
+     */
     public byte[] getData() {
-        return mData;
+        ByteBuffer lData = mData.getBuffer().duplicate();
+        byte[] lBytes = new byte[lData.remaining()];
+        lData.get(lBytes);
+        return lBytes;
+    }
+
+    /**
+     *
+     * @return The read data, positioned at its beginning
+     */
+    public ByteBuffer getBuffer() {
+        return mData.getBuffer();
     }
 
     /**
@@ -43,6 +80,14 @@ public class ReadBean {
      * @param aData
      */
     public void setData(byte[] aData) {
-        mData = aData;
+        mData.release();
+        mData = PooledBuffer.wrap(aData);
+    }
+
+    /**
+     * Returns the data buffer to its pool
+     */
+    public void release() {
+        mData.release();
     }
 }
@@ -0,0 +1,252 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - WebSocket NIO Engine, SSLHandler
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * Non-blocking TLS state of a NIO connector. The network and application
+ * buffers are taken from the engine's buffer pool and sized from the
+ * SSLSession, they are enlarged on BUFFER_OVERFLOW/BUFFER_UNDERFLOW if the
+ * session requires it.
+ *
+ * All methods except {@link #isTaskPending()} must be called from the selector
+ * thread of the connector.
+ */
+public class SSLHandler {
+
+    private static final ByteBuffer[] EMPTY = new ByteBuffer[]{ByteBuffer.allocate(0)};
+    private final SSLEngine mEngine;
+    private final BufferPool mPool;
+    // network data received from the client, in write mode
+    private PooledBuffer mNetIn;
+    // decrypted application data, in write mode
+    private PooledBuffer mAppIn;
+    // encrypted data to be sent to the client, in read mode
+    private PooledBuffer mNetOut;
+    // futures whose data has been wrapped but not yet written to the socket
+    private final List<DataFuture> mWrapped = new ArrayList<DataFuture>();
+    private volatile boolean mTaskPending = false;
+
+    public SSLHandler(SSLEngine aEngine, BufferPool aPool) {
+        mEngine = aEngine;
+        mPool = aPool;
+        mNetIn = aPool.acquire(aEngine.getSession().getPacketBufferSize());
+        mAppIn = aPool.acquire(aEngine.getSession().getApplicationBufferSize());
+        mNetOut = aPool.acquire(aEngine.getSession().getPacketBufferSize());
+        mNetOut.getBuffer().flip();
+    }
+
+    public SSLEngine getEngine() {
+        return mEngine;
+    }
+
+    public HandshakeStatus getHandshakeStatus() {
+        return mEngine.getHandshakeStatus();
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if delegated handshake tasks are being executed
+     */
+    public boolean isTaskPending() {
+        return mTaskPending;
+    }
+
+    public void setTaskPending(boolean aTaskPending) {
+        mTaskPending = aTaskPending;
+    }
+
+    /**
+     * Appends network data read from the socket.
+     *
+     * @param aNetData
+     */
+    public void feed(ByteBuffer aNetData) {
+        ByteBuffer lNetIn = mNetIn.getBuffer();
+        if (lNetIn.remaining() < aNetData.remaining()) {
+            mNetIn = enlarge(mNetIn, lNetIn.position() + aNetData.remaining());
+            lNetIn = mNetIn.getBuffer();
+        }
+        lNetIn.put(aNetData);
+    }
+
+    /**
+     * Executes a single unwrap operation on the buffered network data.
+     *
+     * @return <tt>true</tt> if network data has been consumed or application
+     * data has been produced
+     * @throws SSLException if the SSL connection has been closed
+     */
+    public boolean unwrap() throws SSLException {
+        ByteBuffer lNetIn = mNetIn.getBuffer();
+        lNetIn.flip();
+        SSLEngineResult lResult;
+        try {
+            lResult = mEngine.unwrap(lNetIn, mAppIn.getBuffer());
+        } finally {
+            lNetIn.compact();
+        }
+        switch (lResult.getStatus()) {
+            case OK:
+                return lResult.bytesConsumed() > 0 || lResult.bytesProduced() > 0;
+            case BUFFER_UNDERFLOW:
+                // more network data is required, making sure a complete record fits
+                int lPacketSize = mEngine.getSession().getPacketBufferSize();
+                if (mNetIn.getBuffer().capacity() < lPacketSize) {
+                    mNetIn = enlarge(mNetIn, lPacketSize);
+                }
+                return false;
+            case BUFFER_OVERFLOW:
+                if (mAppIn.getBuffer().position() > 0) {
+                    // the application data must be consumed first
+                    return false;
+                }
+                mAppIn = enlarge(mAppIn, Math.max(mAppIn.getBuffer().capacity() * 2,
+                        mEngine.getSession().getApplicationBufferSize()));
+                return true;
+            case CLOSED:
+            default:
+                throw new SSLException("SSL connection closed!");
+        }
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if decrypted application data is available
+     */
+    public boolean hasAppData() {
+        return mAppIn.getBuffer().position() > 0;
+    }
+
+    /**
+     * Moves the decrypted application data into a new pooled buffer.
+     *
+     * @return The flipped application data
+     */
+    public PooledBuffer takeAppData() {
+        ByteBuffer lAppIn = mAppIn.getBuffer();
+        lAppIn.flip();
+        PooledBuffer lData = mPool.acquire(lAppIn.remaining());
+        lData.getBuffer().put(lAppIn);
+        lData.getBuffer().flip();
+        lAppIn.clear();
+        return lData;
+    }
+
+    /**
+     * Wraps handshake data into the network output buffer. The buffer must
+     * have been written to the socket completely before.
+     *
+     * @throws SSLException
+     */
+    public void wrapHandshake() throws SSLException {
+        wrap(EMPTY, 0, 1);
+    }
+
+    /**
+     * Wraps application data into the network output buffer. The buffer must
+     * have been written to the socket completely before.
+     *
+     * @param aSrcs
+     * @param aOffset
+     * @param aLength
+     * @throws SSLException if the SSL connection has been closed
+     */
+    public void wrap(ByteBuffer[] aSrcs, int aOffset, int aLength) throws SSLException {
+        ByteBuffer lNetOut = mNetOut.getBuffer();
+        lNetOut.clear();
+        SSLEngineResult lResult = mEngine.wrap(aSrcs, aOffset, aLength, lNetOut);
+        if (SSLEngineResult.Status.BUFFER_OVERFLOW == lResult.getStatus()) {
+            // nothing is pending in the buffer, a bigger one is required
+            mNetOut.release();
+            mNetOut = mPool.acquire(Math.max(lNetOut.capacity() * 2,
+                    mEngine.getSession().getPacketBufferSize()));
+            lNetOut = mNetOut.getBuffer();
+            lResult = mEngine.wrap(aSrcs, aOffset, aLength, lNetOut);
+        }
+        lNetOut.flip();
+        if (SSLEngineResult.Status.CLOSED == lResult.getStatus()) {
+            throw new SSLException("SSL connection closed!");
+        }
+    }
+
+    /**
+     *
+     * @return The encrypted data to be written to the socket
+     */
+    public ByteBuffer getNetOut() {
+        return mNetOut.getBuffer();
+    }
+
+    /**
+     *
+     * @return <tt>true</tt> if encrypted data is waiting to be written
+     */
+    public boolean hasNetOut() {
+        return mNetOut.getBuffer().hasRemaining();
+    }
+
+    /**
+     * Registers a future whose data has been wrapped completely, it's
+     * completed once the network data has been written.
+     *
+     * @param aFuture
+     */
+    public void addWrapped(DataFuture aFuture) {
+        mWrapped.add(aFuture);
+    }
+
+    /**
+     * Completes the futures whose data has been written to the socket.
+     */
+    public void completeWrapped() {
+        for (DataFuture lFuture : mWrapped) {
+            lFuture.setSuccess();
+        }
+        mWrapped.clear();
+    }
+
+    /**
+     * Returns the buffers to the pool and fails the futures that were not
+     * written.
+     */
+    public void release() {
+        for (DataFuture lFuture : mWrapped) {
+            lFuture.discard(new SSLException("SSL connection closed!"));
+        }
+        mWrapped.clear();
+        mNetIn.release();
+        mAppIn.release();
+        mNetOut.release();
+        mEngine.closeOutbound();
+    }
+
+    private PooledBuffer enlarge(PooledBuffer aBuffer, int aSize) {
+        ByteBuffer lOld = aBuffer.getBuffer();
+        PooledBuffer lNew = mPool.acquire(Math.max(aSize, lOld.capacity()));
+        lOld.flip();
+        lNew.getBuffer().put(lOld);
+        aBuffer.release();
+        return lNew;
+    }
+}
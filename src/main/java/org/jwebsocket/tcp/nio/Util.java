@@ -19,7 +19,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URL;
-import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.security.KeyStore;
 import javax.net.ssl.*;
@@ -73,52 +72,4 @@ public class Util {
 
         return lServer;
     }
-
-    public static ByteBuffer wrap(ByteBuffer aIn, SSLEngine aEngine, int aBufferSize) throws Exception {
-        ByteBuffer lOut = ByteBuffer.allocate(aBufferSize);
-        aIn.flip();
-        SSLEngineResult lWrapResult = aEngine.wrap(aIn, lOut);
-        aIn.compact();
-
-        switch (lWrapResult.getStatus()) {
-            case OK:
-                if (lOut.position() > 0) {
-                    lOut.flip();
-                }
-                return lOut;
-            case BUFFER_UNDERFLOW:
-                break;
-            case BUFFER_OVERFLOW:
-                break;
-            case CLOSED:
-                throw new SSLException("SSL connection closed!");
-        }
-
-        throw new IllegalStateException("Failed to wrap!");
-    }
-
-    public static ByteBuffer unwrap(ByteBuffer aIn, SSLEngine aEngine, int aBufferSize) throws Exception {
-        ByteBuffer lOut = ByteBuffer.allocate(aBufferSize);
-        aIn = aIn.slice();
-        SSLEngineResult lUnwrapResult = aEngine.unwrap(aIn, lOut);
-        aIn.compact();
-        lOut = lOut.slice();
-        lOut.compact();
-
-        switch (lUnwrapResult.getStatus()) {
-            case OK:
-                if (lOut.position() > 0) {
-                    lOut.flip();
-                }
-                return lOut;
-            case BUFFER_UNDERFLOW:
-                break;
-            case BUFFER_OVERFLOW:
-                break;
-            case CLOSED:
-                throw new SSLException("SSL connection closed!");
-        }
-
-        throw new IllegalStateException("Failed to unwrap!");
-    }
 }
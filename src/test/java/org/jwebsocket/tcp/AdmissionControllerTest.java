@@ -0,0 +1,141 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Admission control tests
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import org.jwebsocket.tcp.AdmissionController.Reason;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the token bucket and the rejection reasons of the admission control.
+ */
+public class AdmissionControllerTest {
+
+    private static AdmissionController controller(String... aSettings) {
+        Map<String, Object> lSettings = new HashMap<String, Object>();
+        for (int lIdx = 0; lIdx < aSettings.length; lIdx += 2) {
+            lSettings.put(aSettings[lIdx], aSettings[lIdx + 1]);
+        }
+        return new AdmissionController(PerMessageDeflateTest.config(lSettings));
+    }
+
+    private static InetAddress address(int aLastByte) throws Exception {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) aLastByte});
+    }
+
+    @Test
+    public void testBucketBurst() {
+        // practically no refill during the test
+        TokenBucket lBucket = new TokenBucket(0.001, 3);
+        assertTrue(lBucket.isFull());
+        assertTrue(lBucket.tryAcquire());
+        assertFalse(lBucket.isFull());
+        assertTrue(lBucket.tryAcquire());
+        assertTrue(lBucket.tryAcquire());
+        assertFalse(lBucket.tryAcquire());
+    }
+
+    @Test
+    public void testBucketRefill() throws InterruptedException {
+        TokenBucket lBucket = new TokenBucket(1000, 2);
+        assertTrue(lBucket.tryAcquire());
+        assertTrue(lBucket.tryAcquire());
+        Thread.sleep(50);
+        // refilled up to the capacity only
+        assertTrue(lBucket.isFull());
+        assertTrue(lBucket.tryAcquire());
+        assertTrue(lBucket.tryAcquire());
+    }
+
+    @Test
+    public void testBucketCapacityIsAtLeastOne() {
+        TokenBucket lBucket = new TokenBucket(0.001, 0);
+        assertTrue(lBucket.tryAcquire());
+        assertFalse(lBucket.tryAcquire());
+    }
+
+    @Test
+    public void testNoLimitsByDefault() throws Exception {
+        AdmissionController lController = controller();
+        for (int lIdx = 0; lIdx < 100; lIdx++) {
+            assertNull(lController.admit(address(1), lIdx, 0));
+        }
+        assertEquals(100, lController.getAdmittedCount());
+        assertEquals(100, lController.getPendingHandshakes());
+    }
+
+    @Test
+    public void testMaxConnections() throws Exception {
+        AdmissionController lController = controller();
+        assertNull(lController.admit(address(1), 9, 10));
+        assertEquals(Reason.MAX_CONNECTIONS, lController.admit(address(1), 10, 10));
+        assertEquals(1, lController.getRejectedCount(Reason.MAX_CONNECTIONS));
+        // checked by the caller
+        assertNull(lController.admit(address(1), 10, 0));
+    }
+
+    @Test
+    public void testPendingHandshakes() throws Exception {
+        AdmissionController lController = controller("max_pending_handshakes", "2");
+        assertNull(lController.admit(address(1), 0, 0));
+        assertNull(lController.admit(address(2), 0, 0));
+        assertEquals(Reason.PENDING_HANDSHAKES, lController.admit(address(3), 0, 0));
+        lController.handshakeFinished();
+        assertEquals(1, lController.getPendingHandshakes());
+        assertNull(lController.admit(address(3), 0, 0));
+        assertEquals(1, lController.getRejectedCount(Reason.PENDING_HANDSHAKES));
+    }
+
+    @Test
+    public void testGlobalRate() throws Exception {
+        AdmissionController lController = controller(
+                "accept_rate", "1", "accept_burst", "3");
+        for (int lIdx = 0; lIdx < 3; lIdx++) {
+            assertNull(lController.admit(address(lIdx), 0, 0));
+        }
+        assertEquals(Reason.RATE, lController.admit(address(9), 0, 0));
+        assertEquals(1, lController.getRejectedCount(Reason.RATE));
+        assertEquals(3, lController.getAdmittedCount());
+    }
+
+    @Test
+    public void testRatePerAddress() throws Exception {
+        AdmissionController lController = controller(
+                "accept_rate_per_ip", "1", "accept_burst_per_ip", "2",
+                "accept_rate", "1", "accept_burst", "3");
+        assertNull(lController.admit(address(1), 0, 0));
+        assertNull(lController.admit(address(1), 0, 0));
+        // rejected before taking a global token
+        assertEquals(Reason.RATE_PER_IP, lController.admit(address(1), 0, 0));
+        assertNull(lController.admit(address(2), 0, 0));
+        assertEquals(Reason.RATE, lController.admit(address(3), 0, 0));
+        assertEquals(1, lController.getRejectedCount(Reason.RATE_PER_IP));
+        assertEquals(1, lController.getRejectedCount(Reason.RATE));
+    }
+
+    @Test
+    public void testRejectedConnectionsAreNotPending() throws Exception {
+        AdmissionController lController = controller(
+                "accept_rate_per_ip", "1", "accept_burst_per_ip", "1");
+        assertNull(lController.admit(address(1), 0, 0));
+        assertEquals(Reason.RATE_PER_IP, lController.admit(address(1), 0, 0));
+        assertEquals(1, lController.getPendingHandshakes());
+        assertEquals(0, lController.getRejectedCount(Reason.MAX_CONNECTIONS));
+    }
+}
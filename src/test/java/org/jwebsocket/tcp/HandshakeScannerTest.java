@@ -0,0 +1,148 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Handshake scanner tests
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.jwebsocket.kit.WebSocketException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the collection of handshake requests arriving in several reads.
+ */
+public class HandshakeScannerTest {
+
+    private static final String HYBI_REQUEST = "GET /jWebSocket HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Version: 13\r\n"
+            + "\r\n";
+    private static final String HIXIE76_HEADERS = "GET /jWebSocket HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Upgrade: WebSocket\r\n"
+            + "Sec-WebSocket-Key1: 4 @1  46546xW%0l 1 5\r\n"
+            + "Sec-WebSocket-Key2: 12998 5 Y3 1  .P00\r\n"
+            + "\r\n";
+
+    private static byte[] concat(byte[] aFirst, byte[] aSecond) {
+        byte[] lResult = Arrays.copyOf(aFirst, aFirst.length + aSecond.length);
+        System.arraycopy(aSecond, 0, lResult, aFirst.length, aSecond.length);
+        return lResult;
+    }
+
+    @Test
+    public void testCompleteRequest() throws WebSocketException {
+        HandshakeScanner lScanner = new HandshakeScanner(4096);
+        assertTrue(lScanner.append(ByteBuffer.wrap(HYBI_REQUEST.getBytes())));
+        assertTrue(lScanner.isComplete());
+        assertArrayEquals(HYBI_REQUEST.getBytes(), lScanner.getRequest());
+        assertNull(lScanner.getRemainder());
+    }
+
+    @Test
+    public void testRequestSplitByteByByte() throws WebSocketException {
+        byte[] lRequest = HYBI_REQUEST.getBytes();
+        HandshakeScanner lScanner = new HandshakeScanner(4096);
+        for (int lIdx = 0; lIdx < lRequest.length - 1; lIdx++) {
+            assertFalse(lScanner.append(lRequest, lIdx, 1));
+        }
+        assertTrue(lScanner.append(lRequest, lRequest.length - 1, 1));
+        assertArrayEquals(lRequest, lScanner.getRequest());
+    }
+
+    @Test
+    public void testSplitWithinTheTerminator() throws WebSocketException {
+        byte[] lRequest = HYBI_REQUEST.getBytes();
+        HandshakeScanner lScanner = new HandshakeScanner(4096);
+        assertFalse(lScanner.append(lRequest, 0, lRequest.length - 3));
+        assertFalse(lScanner.append(lRequest, lRequest.length - 3, 2));
+        assertTrue(lScanner.append(lRequest, lRequest.length - 1, 1));
+    }
+
+    @Test
+    public void testRepeatedCarriageReturn() throws WebSocketException {
+        HandshakeScanner lScanner = new HandshakeScanner(4096);
+        byte[] lRequest = "GET / HTTP/1.1\r\r\n\r\n".getBytes();
+        assertTrue(lScanner.append(lRequest, 0, lRequest.length));
+        assertEquals(lRequest.length, lScanner.getRequest().length);
+    }
+
+    @Test
+    public void testRemainder() throws WebSocketException {
+        byte[] lFrame = new byte[]{(byte) 0x81, 0x01, 'x'};
+        byte[] lData = concat(HYBI_REQUEST.getBytes(), lFrame);
+        HandshakeScanner lScanner = new HandshakeScanner(4096);
+        assertTrue(lScanner.append(ByteBuffer.wrap(lData)));
+        assertArrayEquals(HYBI_REQUEST.getBytes(), lScanner.getRequest());
+        assertArrayEquals(lFrame, lScanner.getRemainder());
+    }
+
+    @Test
+    public void testHixie76WaitsForTheKeyBytes() throws WebSocketException {
+        byte[] lKey3 = "^n:ds[4U".getBytes();
+        byte[] lRequest = concat(HIXIE76_HEADERS.getBytes(), lKey3);
+        HandshakeScanner lScanner = new HandshakeScanner(4096);
+        assertFalse(lScanner.append(HIXIE76_HEADERS.getBytes(), 0, HIXIE76_HEADERS.length()));
+        assertFalse(lScanner.append(lKey3, 0, 5));
+        assertTrue(lScanner.append(lKey3, 5, 3));
+        assertArrayEquals(lRequest, lScanner.getRequest());
+        assertNull(lScanner.getRemainder());
+    }
+
+    @Test
+    public void testFlashPolicyRequest() throws WebSocketException {
+        byte[] lRequest = "<policy-file-request/>\0".getBytes();
+        HandshakeScanner lScanner = new HandshakeScanner(4096);
+        assertFalse(lScanner.append(lRequest, 0, 10));
+        assertTrue(lScanner.append(lRequest, 10, lRequest.length - 10));
+        assertArrayEquals(lRequest, lScanner.getRequest());
+    }
+
+    @Test
+    public void testBufferGrows() throws WebSocketException {
+        StringBuilder lRequest = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (lRequest.length() < 2000) {
+            lRequest.append("X-Header: value\r\n");
+        }
+        lRequest.append("\r\n");
+        HandshakeScanner lScanner = new HandshakeScanner(4096);
+        byte[] lData = lRequest.toString().getBytes();
+        assertTrue(lScanner.append(lData, 0, lData.length));
+        assertArrayEquals(lData, lScanner.getRequest());
+    }
+
+    @Test(expected = WebSocketException.class)
+    public void testOversizedIncompleteRequest() throws WebSocketException {
+        HandshakeScanner lScanner = new HandshakeScanner(64);
+        byte[] lData = HYBI_REQUEST.getBytes();
+        lScanner.append(lData, 0, 40);
+        lScanner.append(lData, 40, 40);
+    }
+
+    @Test(expected = WebSocketException.class)
+    public void testOversizedCompleteRequest() throws WebSocketException {
+        HandshakeScanner lScanner = new HandshakeScanner(HYBI_REQUEST.length() - 1);
+        lScanner.append(ByteBuffer.wrap(HYBI_REQUEST.getBytes()));
+    }
+
+    @Test(expected = WebSocketException.class)
+    public void testHixie76KeyBytesCountTowardsTheLimit() throws WebSocketException {
+        HandshakeScanner lScanner = new HandshakeScanner(HIXIE76_HEADERS.length() + 4);
+        lScanner.append(ByteBuffer.wrap(HIXIE76_HEADERS.getBytes()));
+    }
+}
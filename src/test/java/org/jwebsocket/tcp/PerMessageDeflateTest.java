@@ -0,0 +1,209 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - permessage-deflate tests
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import org.jwebsocket.api.EngineConfiguration;
+import org.jwebsocket.config.xml.EngineConfig;
+import org.jwebsocket.kit.RawPacket;
+import org.jwebsocket.kit.WebSocketException;
+import org.jwebsocket.kit.WebSocketFrameType;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the negotiation of permessage-deflate and the compression of
+ * messages with and without context takeover.
+ */
+public class PerMessageDeflateTest {
+
+    private static final int MAX_MESSAGE_SIZE = 65536;
+
+    static EngineConfiguration config(Map<String, Object> aSettings) {
+        return new EngineConfig(
+                "tcp0", // id
+                "org.jwebsocket.tcp.TCPEngine", // name
+                "-", // jar
+                8787, // port
+                9797, // ssl port
+                "-", // keystore
+                "-", // keystore password
+                "/jWebSocket", // context
+                "/jWebSocket", // servlet
+                0, // session timeout
+                16384, // max framesize
+                new ArrayList<String>(), // domains
+                100, // max connections
+                "close", // on max connections reached strategy
+                aSettings);
+    }
+
+    private static EngineConfiguration deflateConfig(boolean aContextTakeover) {
+        Map<String, Object> lSettings = new HashMap<String, Object>();
+        lSettings.put("permessage_deflate", "true");
+        lSettings.put("deflate_context_takeover", String.valueOf(aContextTakeover));
+        lSettings.put("deflate_threshold", "16");
+        return config(lSettings);
+    }
+
+    private static byte[] request(String aExtensions) {
+        return ("GET /jWebSocket HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Sec-WebSocket-Version: 13\r\n"
+                + (null != aExtensions ? "Sec-WebSocket-Extensions: " + aExtensions + "\r\n" : "")
+                + "\r\n").getBytes();
+    }
+
+    private static byte[] text(int aRepeat) {
+        StringBuilder lText = new StringBuilder();
+        for (int lIdx = 0; lIdx < aRepeat; lIdx++) {
+            lText.append("jWebSocket message ").append(lIdx % 10).append(' ');
+        }
+        return lText.toString().getBytes();
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        assertNull(PerMessageDeflate.negotiate(config(new HashMap<String, Object>()),
+                request("permessage-deflate"), 13, MAX_MESSAGE_SIZE));
+    }
+
+    @Test
+    public void testNotOffered() {
+        assertNull(PerMessageDeflate.negotiate(deflateConfig(false),
+                request(null), 13, MAX_MESSAGE_SIZE));
+        assertNull(PerMessageDeflate.negotiate(deflateConfig(false),
+                request("x-webkit-deflate-frame"), 13, MAX_MESSAGE_SIZE));
+        // hybi drafts before RFC 6455 don't support extensions
+        assertNull(PerMessageDeflate.negotiate(deflateConfig(false),
+                request("permessage-deflate"), 8, MAX_MESSAGE_SIZE));
+    }
+
+    @Test
+    public void testNegotiation() {
+        PerMessageDeflate lDeflate = PerMessageDeflate.negotiate(deflateConfig(false),
+                request("permessage-deflate; client_max_window_bits"), 13, MAX_MESSAGE_SIZE);
+        assertNotNull(lDeflate);
+        assertTrue(lDeflate.isServerNoContextTakeover());
+        assertEquals("Sec-WebSocket-Extensions: permessage-deflate"
+                + "; server_no_context_takeover; client_no_context_takeover",
+                lDeflate.getResponseHeader());
+    }
+
+    @Test
+    public void testFirstAcceptableOfferWins() {
+        PerMessageDeflate lDeflate = PerMessageDeflate.negotiate(deflateConfig(true),
+                request("permessage-deflate; server_max_window_bits=10, "
+                + "permessage-deflate; server_max_window_bits=15"), 13, MAX_MESSAGE_SIZE);
+        assertNotNull(lDeflate);
+        assertFalse(lDeflate.isServerNoContextTakeover());
+        assertEquals("Sec-WebSocket-Extensions: permessage-deflate; server_max_window_bits=15",
+                lDeflate.getResponseHeader());
+        assertNull(PerMessageDeflate.negotiate(deflateConfig(true),
+                request("permessage-deflate; unknown_param"), 13, MAX_MESSAGE_SIZE));
+    }
+
+    @Test
+    public void testAddResponseHeader() {
+        PerMessageDeflate lDeflate = PerMessageDeflate.negotiate(deflateConfig(true),
+                request("permessage-deflate"), 13, MAX_MESSAGE_SIZE);
+        String lResponse = new String(lDeflate.addResponseHeader(
+                "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n\r\n".getBytes()));
+        assertEquals("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n"
+                + "Sec-WebSocket-Extensions: permessage-deflate\r\n\r\n", lResponse);
+    }
+
+    @Test
+    public void testThreshold() {
+        PerMessageDeflate lDeflate = PerMessageDeflate.negotiate(deflateConfig(false),
+                request("permessage-deflate"), 13, MAX_MESSAGE_SIZE);
+        assertFalse(lDeflate.isCompressible(new RawPacket(WebSocketFrameType.TEXT, "short")));
+        assertTrue(lDeflate.isCompressible(new RawPacket(WebSocketFrameType.TEXT, text(2))));
+        assertFalse(lDeflate.isCompressible(new RawPacket(WebSocketFrameType.PING, text(2))));
+    }
+
+    @Test
+    public void testRoundTripWithoutContextTakeover() throws WebSocketException {
+        PerMessageDeflate lDeflate = PerMessageDeflate.negotiate(deflateConfig(false),
+                request("permessage-deflate"), 13, MAX_MESSAGE_SIZE);
+        byte[] lPayload = text(200);
+        byte[] lCompressed = lDeflate.compress(lPayload);
+        assertTrue(lCompressed.length < lPayload.length);
+        // without context takeover every message is compressed alike
+        assertArrayEquals(lCompressed, lDeflate.compress(lPayload));
+        assertArrayEquals(lPayload, lDeflate.decompress(lCompressed));
+        assertArrayEquals(lPayload, lDeflate.decompress(lCompressed));
+    }
+
+    @Test
+    public void testRoundTripWithContextTakeover() throws WebSocketException {
+        PerMessageDeflate lSender = PerMessageDeflate.negotiate(deflateConfig(true),
+                request("permessage-deflate"), 13, MAX_MESSAGE_SIZE);
+        PerMessageDeflate lReceiver = PerMessageDeflate.negotiate(deflateConfig(true),
+                request("permessage-deflate"), 13, MAX_MESSAGE_SIZE);
+        byte[] lPayload = text(200);
+        byte[] lFirst = lSender.compress(lPayload);
+        byte[] lSecond = lSender.compress(lPayload);
+        // the second message refers to the window of the first one
+        assertTrue(lSecond.length < lFirst.length);
+        assertArrayEquals(lPayload, lReceiver.decompress(lFirst));
+        assertArrayEquals(lPayload, lReceiver.decompress(lSecond));
+        lSender.release();
+        lReceiver.release();
+    }
+
+    @Test
+    public void testDecompressedSizeLimit() {
+        PerMessageDeflate lDeflate = PerMessageDeflate.negotiate(deflateConfig(false),
+                request("permessage-deflate"), 13, 1024);
+        byte[] lCompressed = lDeflate.compress(new byte[4096]);
+        try {
+            lDeflate.decompress(lCompressed);
+            fail("Message exceeding the maximum size decompressed");
+        } catch (WebSocketException lEx) {
+            // expected
+        }
+    }
+
+    @Test(expected = WebSocketException.class)
+    public void testInvalidData() throws WebSocketException {
+        PerMessageDeflate lDeflate = PerMessageDeflate.negotiate(deflateConfig(false),
+                request("permessage-deflate"), 13, MAX_MESSAGE_SIZE);
+        lDeflate.decompress(new byte[]{(byte) 0xFF, (byte) 0xFF, 0x01, 0x02});
+    }
+
+    @Test
+    public void testRefusedAfterRelease() {
+        PerMessageDeflate lDeflate = PerMessageDeflate.negotiate(deflateConfig(true),
+                request("permessage-deflate"), 13, MAX_MESSAGE_SIZE);
+        byte[] lCompressed = lDeflate.compress(text(10));
+        lDeflate.release();
+        try {
+            lDeflate.compress(text(10));
+            fail("Compression after release");
+        } catch (IllegalStateException lEx) {
+            // expected
+        }
+        try {
+            lDeflate.decompress(lCompressed);
+            fail("Decompression after release");
+        } catch (WebSocketException lEx) {
+            // expected
+        }
+    }
+}
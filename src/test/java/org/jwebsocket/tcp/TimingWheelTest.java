@@ -0,0 +1,195 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Timing wheel tests
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the timing wheel with simulated time. The ticks are long enough that
+ * the real time elapsed by the test itself does not matter.
+ */
+public class TimingWheelTest {
+
+    private static final long TICK = 1000;
+    private static final int SLOTS = 8;
+    private TimingWheel mWheel;
+    private long mStart;
+    private List<String> mFired;
+
+    private class Task implements Runnable {
+
+        private final String mName;
+
+        Task(String aName) {
+            mName = aName;
+        }
+
+        @Override
+        public void run() {
+            mFired.add(mName);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mWheel = new TimingWheel(TICK, SLOTS);
+        mStart = TimingWheel.now();
+        mFired = new ArrayList<String>();
+    }
+
+    /**
+     * Advances the wheel to the middle of the given tick.
+     */
+    private int advanceTo(long aTick) {
+        return mWheel.advance(mStart + aTick * TICK + TICK / 2);
+    }
+
+    @Test
+    public void testExpiresAfterItsDelay() {
+        mWheel.schedule(new Task("a"), 3 * TICK);
+        assertEquals(1, mWheel.size());
+        assertEquals(0, advanceTo(2));
+        assertTrue(mFired.isEmpty());
+        assertEquals(1, advanceTo(3));
+        assertEquals(1, mFired.size());
+        assertEquals(0, mWheel.size());
+    }
+
+    @Test
+    public void testZeroDelayExpiresWithNextTick() {
+        mWheel.schedule(new Task("a"), 0);
+        assertEquals(0, advanceTo(0));
+        assertEquals(1, advanceTo(1));
+    }
+
+    @Test
+    public void testDelayIsRoundedUpToTicks() {
+        mWheel.schedule(new Task("a"), TICK + 1);
+        assertEquals(0, advanceTo(1));
+        assertEquals(1, advanceTo(2));
+    }
+
+    @Test
+    public void testRollover() {
+        // hashed into the same slot as tick 2, one and two revolutions later
+        mWheel.schedule(new Task("a"), (2 + SLOTS) * TICK);
+        mWheel.schedule(new Task("b"), (2 + 2 * SLOTS) * TICK);
+        mWheel.schedule(new Task("c"), 2 * TICK);
+        advanceTo(2);
+        assertEquals("[c]", mFired.toString());
+        advanceTo(2 + SLOTS);
+        assertEquals("[c, a]", mFired.toString());
+        advanceTo(2 + 2 * SLOTS);
+        assertEquals("[c, a, b]", mFired.toString());
+        assertEquals(0, mWheel.size());
+    }
+
+    @Test
+    public void testSeveralTicksAtOnce() {
+        for (int lIdx = 1; lIdx <= 20; lIdx++) {
+            mWheel.schedule(new Task(String.valueOf(lIdx)), lIdx * TICK);
+        }
+        assertEquals(20, advanceTo(20));
+        assertEquals("1", mFired.get(0));
+        assertEquals("20", mFired.get(19));
+    }
+
+    @Test
+    public void testCancel() {
+        TimingWheel.Timeout lTimeout = mWheel.schedule(new Task("a"), TICK);
+        mWheel.schedule(new Task("b"), TICK);
+        assertTrue(lTimeout.isPending());
+        lTimeout.cancel();
+        assertFalse(lTimeout.isPending());
+        assertEquals(1, mWheel.size());
+        // cancelling again has no effect
+        lTimeout.cancel();
+        assertEquals(1, mWheel.size());
+        advanceTo(1);
+        assertEquals("[b]", mFired.toString());
+    }
+
+    @Test
+    public void testCancelAfterExpiry() {
+        TimingWheel.Timeout lTimeout = mWheel.schedule(new Task("a"), TICK);
+        advanceTo(1);
+        assertFalse(lTimeout.isPending());
+        lTimeout.cancel();
+        assertEquals(0, mWheel.size());
+    }
+
+    @Test
+    public void testTaskCancelsItsSuccessor() {
+        final TimingWheel.Timeout[] lOther = new TimingWheel.Timeout[2];
+        Runnable lCanceller = new Runnable() {
+
+            @Override
+            public void run() {
+                mFired.add("canceller");
+                for (TimingWheel.Timeout lTimeout : lOther) {
+                    lTimeout.cancel();
+                }
+            }
+        };
+        // the slot list is in reverse scheduling order
+        lOther[0] = mWheel.schedule(new Task("a"), TICK);
+        lOther[1] = mWheel.schedule(new Task("b"), TICK);
+        mWheel.schedule(lCanceller, TICK);
+        mWheel.schedule(new Task("c"), TICK);
+        advanceTo(1);
+        assertEquals("[c, canceller]", mFired.toString());
+        assertEquals(0, mWheel.size());
+    }
+
+    @Test
+    public void testTaskReschedules() {
+        mWheel.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                mFired.add("first");
+                mWheel.schedule(new Task("second"), TICK);
+            }
+        }, TICK);
+        advanceTo(1);
+        assertEquals("[first]", mFired.toString());
+        advanceTo(2);
+        assertEquals("[first, second]", mFired.toString());
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopTheWheel() {
+        mWheel.schedule(new Task("a"), TICK);
+        mWheel.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                throw new IllegalStateException("failing task");
+            }
+        }, TICK);
+        assertEquals(2, advanceTo(1));
+        assertEquals("[a]", mFired.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTickDuration() {
+        new TimingWheel(0, SLOTS);
+    }
+}
@@ -0,0 +1,110 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Buffer pool tests
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp.nio;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the size classes, the slab limits and the reference counting of the
+ * buffer pool.
+ */
+public class BufferPoolTest {
+
+    private static final int SLAB_SIZE = 1024 * 1024;
+    private static final int CHUNKS_PER_SLAB = SLAB_SIZE / BufferPool.MAX_CHUNK_SIZE;
+
+    @Test
+    public void testSizeClasses() {
+        BufferPool lPool = new BufferPool(4 * SLAB_SIZE);
+        assertEquals(BufferPool.MIN_CHUNK_SIZE, lPool.acquire(1).getBuffer().capacity());
+        assertEquals(512, lPool.acquire(257).getBuffer().capacity());
+        assertTrue(lPool.acquire(BufferPool.MAX_CHUNK_SIZE).getBuffer().isDirect());
+        // too big for the pool
+        PooledBuffer lBig = lPool.acquire(BufferPool.MAX_CHUNK_SIZE + 1);
+        assertFalse(lBig.getBuffer().isDirect());
+        assertEquals(1, lPool.getMissesCount());
+        assertEquals(4, lPool.getAcquiredCount());
+    }
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        BufferPool lPool = new BufferPool(SLAB_SIZE);
+        PooledBuffer lBuffer = lPool.acquire(BufferPool.MAX_CHUNK_SIZE);
+        for (int lIdx = 1; lIdx < CHUNKS_PER_SLAB; lIdx++) {
+            lPool.acquire(BufferPool.MAX_CHUNK_SIZE);
+        }
+        lBuffer.getBuffer().put((byte) 1);
+        lBuffer.retain();
+        lBuffer.release();
+        // still referenced, the slab is exhausted
+        assertFalse(lPool.acquire(BufferPool.MAX_CHUNK_SIZE).getBuffer().isDirect());
+        lBuffer.release();
+        PooledBuffer lReused = lPool.acquire(BufferPool.MAX_CHUNK_SIZE);
+        assertSame(lBuffer, lReused);
+        assertEquals(0, lReused.getBuffer().position());
+    }
+
+    @Test
+    public void testSlabsPerClassAreLimited() {
+        BufferPool lPool = new BufferPool(4 * SLAB_SIZE);
+        // a single class gets half of the slabs
+        for (int lIdx = 0; lIdx < 2 * CHUNKS_PER_SLAB; lIdx++) {
+            assertTrue(lPool.acquire(BufferPool.MAX_CHUNK_SIZE).getBuffer().isDirect());
+        }
+        assertFalse(lPool.acquire(BufferPool.MAX_CHUNK_SIZE).getBuffer().isDirect());
+        assertEquals(2L * SLAB_SIZE, lPool.getAllocatedSize());
+        // the other classes are still served from the pool
+        assertTrue(lPool.acquire(BufferPool.MIN_CHUNK_SIZE).getBuffer().isDirect());
+        assertTrue(lPool.acquire(1024).getBuffer().isDirect());
+        assertEquals(4L * SLAB_SIZE, lPool.getAllocatedSize());
+        assertFalse(lPool.acquire(4096).getBuffer().isDirect());
+    }
+
+    @Test
+    public void testSmallPoolHasOneSlabPerClass() {
+        BufferPool lPool = new BufferPool(SLAB_SIZE);
+        for (int lIdx = 0; lIdx < CHUNKS_PER_SLAB; lIdx++) {
+            assertTrue(lPool.acquire(BufferPool.MAX_CHUNK_SIZE).getBuffer().isDirect());
+        }
+        assertFalse(lPool.acquire(BufferPool.MAX_CHUNK_SIZE).getBuffer().isDirect());
+        assertFalse(lPool.acquire(BufferPool.MIN_CHUNK_SIZE).getBuffer().isDirect());
+    }
+
+    @Test
+    public void testDoubleReleaseDoesNotRecycleTwice() {
+        BufferPool lPool = new BufferPool(SLAB_SIZE);
+        PooledBuffer lBuffer = lPool.acquire(BufferPool.MAX_CHUNK_SIZE);
+        lBuffer.release();
+        lBuffer.release();
+        Map<PooledBuffer, Boolean> lAcquired = new IdentityHashMap<PooledBuffer, Boolean>();
+        for (int lIdx = 0; lIdx < CHUNKS_PER_SLAB; lIdx++) {
+            PooledBuffer lChunk = lPool.acquire(BufferPool.MAX_CHUNK_SIZE);
+            assertTrue(lChunk.getBuffer().isDirect());
+            assertNull("Chunk handed out twice", lAcquired.put(lChunk, Boolean.TRUE));
+        }
+    }
+
+    @Test
+    public void testWrappedBuffer() {
+        PooledBuffer lBuffer = PooledBuffer.wrap(new byte[]{1, 2, 3});
+        assertEquals(3, lBuffer.getBuffer().remaining());
+        lBuffer.release();
+        assertEquals(3, lBuffer.getBuffer().remaining());
+    }
+}
@@ -0,0 +1,260 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Data future tests
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jwebsocket.async.IOFuture;
+import org.jwebsocket.async.IOFutureListener;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the state changes of the send futures, including concurrent
+ * completions.
+ */
+public class DataFutureTest {
+
+    private static final int RACE_ROUNDS = 2000;
+
+    private static DataFuture future() {
+        return new DataFuture(null, ByteBuffer.allocate(16));
+    }
+
+    private static class CountingListener implements IOFutureListener {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public void operationComplete(IOFuture aFuture) {
+            mCount.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testSuccess() throws Exception {
+        DataFuture lFuture = future();
+        assertFalse(lFuture.isDone());
+        assertTrue(lFuture.setProgress(4, 4, 16));
+        assertEquals(4, lFuture.getProgress());
+        assertTrue(lFuture.setSuccess());
+        assertTrue(lFuture.isDone());
+        assertTrue(lFuture.isSuccess());
+        assertNull(lFuture.getCause());
+        assertNull(lFuture.get());
+        // completed only once
+        assertFalse(lFuture.setSuccess());
+        assertFalse(lFuture.setFailure(new IOException("late")));
+        assertFalse(lFuture.cancel());
+        assertFalse(lFuture.setProgress(16, 16, 16));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        DataFuture lFuture = future();
+        IOException lCause = new IOException("broken pipe");
+        assertTrue(lFuture.startWrite());
+        assertTrue(lFuture.setFailure(lCause));
+        assertTrue(lFuture.isDone());
+        assertFalse(lFuture.isSuccess());
+        assertSame(lCause, lFuture.getCause());
+        try {
+            lFuture.get();
+            fail("Failed future returned");
+        } catch (ExecutionException lEx) {
+            assertSame(lCause, lEx.getCause());
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        DataFuture lFuture = future();
+        assertTrue(lFuture.cancel());
+        assertTrue(lFuture.isDone());
+        assertTrue(lFuture.isCancelled());
+        assertTrue(lFuture.getCause() instanceof CancellationException);
+        assertFalse(lFuture.startWrite());
+        assertFalse(lFuture.setSuccess());
+        try {
+            lFuture.get();
+            fail("Cancelled future returned");
+        } catch (CancellationException lEx) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNoCancelOnceWritingStarted() {
+        DataFuture lFuture = future();
+        assertTrue(lFuture.startWrite());
+        assertTrue(lFuture.isWriteStarted());
+        assertFalse(lFuture.cancel());
+        assertFalse(lFuture.isDone());
+        assertTrue(lFuture.setSuccess());
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testGetTimeout() throws Exception {
+        future().get(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testGetWaitsForCompletion() throws Exception {
+        final DataFuture lFuture = future();
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException lEx) {
+                }
+                lFuture.setSuccess();
+            }
+        }).start();
+        assertNull(lFuture.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testListeners() {
+        DataFuture lFuture = future();
+        CountingListener lBefore = new CountingListener();
+        CountingListener lRemoved = new CountingListener();
+        lFuture.addListener(new IOFutureListener() {
+
+            @Override
+            public void operationComplete(IOFuture aFuture) throws Exception {
+                throw new IllegalStateException("failing listener");
+            }
+        });
+        lFuture.addListener(lBefore);
+        lFuture.addListener(lRemoved);
+        lFuture.removeListener(lRemoved);
+        lFuture.setSuccess();
+        assertEquals(1, lBefore.mCount.get());
+        assertEquals(0, lRemoved.mCount.get());
+
+        // notified immediately once the future is done
+        CountingListener lAfter = new CountingListener();
+        lFuture.addListener(lAfter);
+        assertEquals(1, lAfter.mCount.get());
+        assertEquals(1, lBefore.mCount.get());
+    }
+
+    @Test
+    public void testListenerExecutor() {
+        final AtomicInteger lExecuted = new AtomicInteger();
+        Executor lExecutor = new Executor() {
+
+            @Override
+            public void execute(Runnable aCommand) {
+                lExecuted.incrementAndGet();
+                aCommand.run();
+            }
+        };
+        DataFuture lFuture = future();
+        CountingListener lListener = new CountingListener();
+        lFuture.addListener(lListener, lExecutor);
+        lFuture.setFailure(new IOException("closed"));
+        assertEquals(1, lExecuted.get());
+        assertEquals(1, lListener.mCount.get());
+    }
+
+    @Test
+    public void testCauseVisibleOnceDone() throws Exception {
+        for (int lRound = 0; lRound < RACE_ROUNDS; lRound++) {
+            final DataFuture lFuture = future();
+            final boolean lCancel = (lRound & 1) == 0;
+            final CountDownLatch lStart = new CountDownLatch(1);
+            Thread lCompleter = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        lStart.await();
+                    } catch (InterruptedException lEx) {
+                        return;
+                    }
+                    if (lCancel) {
+                        lFuture.cancel();
+                    } else {
+                        lFuture.setFailure(new IOException("closed"));
+                    }
+                }
+            });
+            lCompleter.start();
+            lStart.countDown();
+            while (!lFuture.isDone()) {
+                Thread.yield();
+            }
+            assertNotNull("Done without a cause in round " + lRound, lFuture.getCause());
+            lCompleter.join();
+        }
+    }
+
+    @Test
+    public void testConcurrentCompletion() throws Exception {
+        for (int lRound = 0; lRound < RACE_ROUNDS; lRound++) {
+            final DataFuture lFuture = future();
+            final CountingListener lListener = new CountingListener();
+            final AtomicInteger lWinners = new AtomicInteger();
+            final CountDownLatch lStart = new CountDownLatch(1);
+            lFuture.addListener(lListener);
+            Thread[] lThreads = new Thread[3];
+            for (int lIdx = 0; lIdx < lThreads.length; lIdx++) {
+                final int lKind = lIdx;
+                lThreads[lIdx] = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            lStart.await();
+                        } catch (InterruptedException lEx) {
+                            return;
+                        }
+                        boolean lWon;
+                        if (0 == lKind) {
+                            lWon = lFuture.setSuccess();
+                        } else if (1 == lKind) {
+                            lWon = lFuture.setFailure(new IOException("closed"));
+                        } else {
+                            lWon = lFuture.cancel();
+                        }
+                        if (lWon) {
+                            lWinners.incrementAndGet();
+                        }
+                    }
+                });
+                lThreads[lIdx].start();
+            }
+            lStart.countDown();
+            for (Thread lThread : lThreads) {
+                lThread.join();
+            }
+            assertEquals(1, lWinners.get());
+            assertEquals(1, lListener.mCount.get());
+            assertTrue(lFuture.isDone());
+            assertEquals(lFuture.isSuccess(), null == lFuture.getCause());
+        }
+    }
+}
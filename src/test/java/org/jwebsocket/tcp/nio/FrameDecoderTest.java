@@ -0,0 +1,176 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Frame decoder tests
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp.nio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import org.jwebsocket.api.WebSocketPacket;
+import org.jwebsocket.kit.WebSocketException;
+import org.jwebsocket.kit.WebSocketFrameType;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the incremental decoding of hybi frames split across reads.
+ */
+public class FrameDecoderTest {
+
+    private static final int VERSION = 13;
+    private static final int MAX_FRAMESIZE = 1024;
+
+    /**
+     * Builds a single frame, masked if a mask is given.
+     */
+    static byte[] frame(boolean aFin, int aOpcode, byte[] aPayload, byte[] aMask) {
+        ByteArrayOutputStream lOut = new ByteArrayOutputStream();
+        lOut.write((aFin ? 0x80 : 0) | aOpcode);
+        int lMaskBit = (null != aMask) ? 0x80 : 0;
+        if (aPayload.length < 126) {
+            lOut.write(lMaskBit | aPayload.length);
+        } else if (aPayload.length < 65536) {
+            lOut.write(lMaskBit | 126);
+            lOut.write(aPayload.length >> 8);
+            lOut.write(aPayload.length);
+        } else {
+            lOut.write(lMaskBit | 127);
+            for (int lIdx = 7; lIdx >= 0; lIdx--) {
+                lOut.write((int) ((long) aPayload.length >> (8 * lIdx)));
+            }
+        }
+        if (null != aMask) {
+            lOut.write(aMask, 0, 4);
+            for (int lIdx = 0; lIdx < aPayload.length; lIdx++) {
+                lOut.write(aPayload[lIdx] ^ aMask[lIdx & 3]);
+            }
+        } else {
+            lOut.write(aPayload, 0, aPayload.length);
+        }
+        return lOut.toByteArray();
+    }
+
+    private static byte[] payload(int aLength) {
+        byte[] lPayload = new byte[aLength];
+        for (int lIdx = 0; lIdx < aLength; lIdx++) {
+            lPayload[lIdx] = (byte) lIdx;
+        }
+        return lPayload;
+    }
+
+    @Test
+    public void testSingleFrame() throws WebSocketException {
+        FrameDecoder lDecoder = new FrameDecoder(VERSION, MAX_FRAMESIZE);
+        lDecoder.append(ByteBuffer.wrap(frame(true, 1, "hello".getBytes(), null)));
+        WebSocketPacket lPacket = lDecoder.nextPacket();
+        assertNotNull(lPacket);
+        assertEquals(WebSocketFrameType.TEXT, lPacket.getFrameType());
+        assertArrayEquals("hello".getBytes(), lPacket.getByteArray());
+        assertTrue(lDecoder.isFinalFragment());
+        assertNull(lDecoder.nextPacket());
+        assertEquals(0, lDecoder.getBufferedBytes());
+    }
+
+    @Test
+    public void testMaskedFrameSplitByteByByte() throws WebSocketException {
+        byte[] lPayload = payload(300);
+        byte[] lFrame = frame(true, 2, lPayload, new byte[]{1, 2, 3, 4});
+        FrameDecoder lDecoder = new FrameDecoder(VERSION, MAX_FRAMESIZE);
+        for (int lIdx = 0; lIdx < lFrame.length - 1; lIdx++) {
+            lDecoder.append(lFrame, lIdx, 1);
+            assertNull(lDecoder.nextPacket());
+        }
+        lDecoder.append(lFrame, lFrame.length - 1, 1);
+        WebSocketPacket lPacket = lDecoder.nextPacket();
+        assertNotNull(lPacket);
+        assertEquals(WebSocketFrameType.BINARY, lPacket.getFrameType());
+        assertArrayEquals(lPayload, lPacket.getByteArray());
+    }
+
+    @Test
+    public void testSeveralFramesInOneRead() throws Exception {
+        ByteArrayOutputStream lOut = new ByteArrayOutputStream();
+        lOut.write(frame(false, 1, "ab".getBytes(), new byte[]{9, 8, 7, 6}));
+        lOut.write(frame(true, 9, new byte[0], null));
+        lOut.write(frame(true, 0, "cd".getBytes(), null));
+        FrameDecoder lDecoder = new FrameDecoder(VERSION, MAX_FRAMESIZE);
+        assertEquals(lOut.size(), lDecoder.read(
+                new ByteArrayInputStream(lOut.toByteArray()), 4096));
+
+        WebSocketPacket lPacket = lDecoder.nextPacket();
+        assertEquals(WebSocketFrameType.TEXT, lPacket.getFrameType());
+        assertFalse(lDecoder.isFinalFragment());
+        assertArrayEquals("ab".getBytes(), lPacket.getByteArray());
+        lPacket = lDecoder.nextPacket();
+        assertEquals(WebSocketFrameType.PING, lPacket.getFrameType());
+        assertEquals(0, lPacket.getByteArray().length);
+        lPacket = lDecoder.nextPacket();
+        assertEquals(WebSocketFrameType.FRAGMENT, lPacket.getFrameType());
+        assertTrue(lDecoder.isFinalFragment());
+        assertArrayEquals("cd".getBytes(), lPacket.getByteArray());
+        assertNull(lDecoder.nextPacket());
+    }
+
+    @Test
+    public void testBufferGrowsForPartialFrames() throws WebSocketException {
+        byte[] lPayload = payload(MAX_FRAMESIZE);
+        byte[] lFrame = frame(true, 2, lPayload, null);
+        FrameDecoder lDecoder = new FrameDecoder(VERSION, MAX_FRAMESIZE);
+        // a partial frame followed by the rest plus the header of the next one
+        lDecoder.append(lFrame, 0, 100);
+        assertNull(lDecoder.nextPacket());
+        lDecoder.append(lFrame, 100, lFrame.length - 100);
+        lDecoder.append(lFrame, 0, 2);
+        assertArrayEquals(lPayload, lDecoder.nextPacket().getByteArray());
+        assertNull(lDecoder.nextPacket());
+        assertEquals(2, lDecoder.getBufferedBytes());
+    }
+
+    @Test
+    public void testRsv1() throws WebSocketException {
+        byte[] lFrame = frame(true, 1, "x".getBytes(), null);
+        lFrame[0] |= 0x40;
+        FrameDecoder lDecoder = new FrameDecoder(VERSION, MAX_FRAMESIZE);
+        lDecoder.append(ByteBuffer.wrap(lFrame));
+        assertNotNull(lDecoder.nextPacket());
+        assertTrue(lDecoder.isRsv1());
+    }
+
+    @Test(expected = WebSocketException.class)
+    public void testOversizedFrame() throws WebSocketException {
+        FrameDecoder lDecoder = new FrameDecoder(VERSION, MAX_FRAMESIZE);
+        byte[] lFrame = frame(true, 2, payload(MAX_FRAMESIZE + 1), null);
+        // the header is rejected before the payload is buffered
+        lDecoder.append(lFrame, 0, 4);
+        lDecoder.nextPacket();
+    }
+
+    @Test(expected = WebSocketException.class)
+    public void testNegativeLength() throws WebSocketException {
+        FrameDecoder lDecoder = new FrameDecoder(VERSION, MAX_FRAMESIZE);
+        byte[] lHeader = new byte[10];
+        lHeader[0] = (byte) 0x82;
+        lHeader[1] = 127;
+        lHeader[2] = (byte) 0x80;
+        lDecoder.append(lHeader, 0, lHeader.length);
+        lDecoder.nextPacket();
+    }
+
+    @Test(expected = WebSocketException.class)
+    public void testBufferLimit() throws WebSocketException {
+        FrameDecoder lDecoder = new FrameDecoder(VERSION, MAX_FRAMESIZE);
+        lDecoder.append(new byte[3 * MAX_FRAMESIZE], 0, 3 * MAX_FRAMESIZE);
+    }
+}
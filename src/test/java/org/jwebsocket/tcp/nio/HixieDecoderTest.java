@@ -0,0 +1,141 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Hixie decoder tests
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp.nio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import org.jwebsocket.api.WebSocketPacket;
+import org.jwebsocket.kit.WebSocketException;
+import org.jwebsocket.kit.WebSocketFrameType;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the incremental decoding of hixie frames split across reads.
+ */
+public class HixieDecoderTest {
+
+    private static final int MAX_FRAMESIZE = 1024;
+    private static final byte[] CLOSE_FRAME = new byte[]{(byte) 0xFF, 0x00};
+
+    private static byte[] text(String aText) {
+        byte[] lText = aText.getBytes();
+        byte[] lFrame = new byte[lText.length + 2];
+        System.arraycopy(lText, 0, lFrame, 1, lText.length);
+        lFrame[lFrame.length - 1] = (byte) 0xFF;
+        return lFrame;
+    }
+
+    @Test
+    public void testTextFrame() throws WebSocketException {
+        HixieDecoder lDecoder = new HixieDecoder(MAX_FRAMESIZE);
+        lDecoder.append(ByteBuffer.wrap(text("hello")));
+        assertArrayEquals("hello".getBytes(), lDecoder.nextPacket().getByteArray());
+        assertNull(lDecoder.nextPacket());
+        assertEquals(0, lDecoder.getBufferedBytes());
+    }
+
+    @Test
+    public void testEmptyTextFrame() throws WebSocketException {
+        HixieDecoder lDecoder = new HixieDecoder(MAX_FRAMESIZE);
+        lDecoder.append(ByteBuffer.wrap(text("")));
+        assertEquals(0, lDecoder.nextPacket().getByteArray().length);
+    }
+
+    @Test
+    public void testFrameSplitByteByByte() throws WebSocketException {
+        byte[] lFrame = text("split across many reads");
+        HixieDecoder lDecoder = new HixieDecoder(MAX_FRAMESIZE);
+        for (int lIdx = 0; lIdx < lFrame.length - 1; lIdx++) {
+            lDecoder.append(lFrame, lIdx, 1);
+            assertNull(lDecoder.nextPacket());
+        }
+        lDecoder.append(lFrame, lFrame.length - 1, 1);
+        assertArrayEquals("split across many reads".getBytes(),
+                lDecoder.nextPacket().getByteArray());
+    }
+
+    @Test
+    public void testSeveralFramesInOneRead() throws Exception {
+        ByteArrayOutputStream lOut = new ByteArrayOutputStream();
+        lOut.write(text("a"));
+        lOut.write(text("bc"));
+        lOut.write(CLOSE_FRAME);
+        HixieDecoder lDecoder = new HixieDecoder(MAX_FRAMESIZE);
+        assertEquals(lOut.size(), lDecoder.read(
+                new ByteArrayInputStream(lOut.toByteArray()), 4096));
+        assertArrayEquals("a".getBytes(), lDecoder.nextPacket().getByteArray());
+        assertArrayEquals("bc".getBytes(), lDecoder.nextPacket().getByteArray());
+        WebSocketPacket lClose = lDecoder.nextPacket();
+        assertEquals(WebSocketFrameType.CLOSE, lClose.getFrameType());
+        assertNull(lDecoder.nextPacket());
+    }
+
+    @Test
+    public void testSplitCloseFrame() throws WebSocketException {
+        HixieDecoder lDecoder = new HixieDecoder(MAX_FRAMESIZE);
+        lDecoder.append(CLOSE_FRAME, 0, 1);
+        assertNull(lDecoder.nextPacket());
+        lDecoder.append(CLOSE_FRAME, 1, 1);
+        assertEquals(WebSocketFrameType.CLOSE, lDecoder.nextPacket().getFrameType());
+    }
+
+    @Test
+    public void testOtherFramesAreSkipped() throws Exception {
+        ByteArrayOutputStream lOut = new ByteArrayOutputStream();
+        // text frame of an unknown type
+        lOut.write(0x01);
+        lOut.write("skipped".getBytes());
+        lOut.write(0xFF);
+        // length prefixed frame of 130 bytes, the length split in two groups
+        lOut.write(0x80);
+        lOut.write(0x81);
+        lOut.write(0x02);
+        lOut.write(new byte[130]);
+        lOut.write(text("kept"));
+        byte[] lData = lOut.toByteArray();
+        HixieDecoder lDecoder = new HixieDecoder(MAX_FRAMESIZE);
+        lDecoder.append(lData, 0, 12);
+        assertNull(lDecoder.nextPacket());
+        lDecoder.append(lData, 12, lData.length - 12);
+        assertArrayEquals("kept".getBytes(), lDecoder.nextPacket().getByteArray());
+        assertNull(lDecoder.nextPacket());
+    }
+
+    @Test(expected = WebSocketException.class)
+    public void testOversizedTextFrame() throws WebSocketException {
+        HixieDecoder lDecoder = new HixieDecoder(MAX_FRAMESIZE);
+        byte[] lData = new byte[MAX_FRAMESIZE + 2];
+        // starts a text frame without an end delimiter
+        lDecoder.append(lData, 0, lData.length);
+        lDecoder.nextPacket();
+    }
+
+    @Test(expected = WebSocketException.class)
+    public void testOversizedLengthPrefixedFrame() throws WebSocketException {
+        HixieDecoder lDecoder = new HixieDecoder(MAX_FRAMESIZE);
+        // 0x80 frame of 2^14 bytes
+        lDecoder.append(new byte[]{(byte) 0x80, (byte) 0x81, (byte) 0x80, 0x00}, 0, 4);
+        lDecoder.nextPacket();
+    }
+
+    @Test(expected = WebSocketException.class)
+    public void testBufferLimit() throws WebSocketException {
+        HixieDecoder lDecoder = new HixieDecoder(MAX_FRAMESIZE);
+        lDecoder.append(new byte[3 * MAX_FRAMESIZE], 0, 3 * MAX_FRAMESIZE);
+    }
+}
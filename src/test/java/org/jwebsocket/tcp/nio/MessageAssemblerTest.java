@@ -0,0 +1,128 @@
+//    ---------------------------------------------------------------------------
+//    jWebSocket - Message assembler tests
+//    Copyright (c) 2012 Innotrade GmbH, jWebSocket.org
+//    ---------------------------------------------------------------------------
+//    This program is free software; you can redistribute it and/or modify it
+//    under the terms of the GNU Lesser General Public License as published by the
+//    Free Software Foundation; either version 3 of the License, or (at your
+//    option) any later version.
+//    This program is distributed in the hope that it will be useful, but WITHOUT
+//    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+//    FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+//    more details.
+//    You should have received a copy of the GNU Lesser General Public License along
+//    with this program; if not, see <http://www.gnu.org/licenses/lgpl.html>.
+//    ---------------------------------------------------------------------------
+package org.jwebsocket.tcp.nio;
+
+import org.jwebsocket.api.WebSocketPacket;
+import org.jwebsocket.kit.RawPacket;
+import org.jwebsocket.kit.WebSocketException;
+import org.jwebsocket.kit.WebSocketFrameType;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the reassembly of fragmented messages and its protocol checks.
+ */
+public class MessageAssemblerTest {
+
+    private static WebSocketPacket packet(WebSocketFrameType aType, String aPayload) {
+        return new RawPacket(aType, aPayload.getBytes());
+    }
+
+    @Test
+    public void testUnfragmentedMessageIsPassedThrough() throws WebSocketException {
+        MessageAssembler lAssembler = new MessageAssembler(1024);
+        WebSocketPacket lFrame = packet(WebSocketFrameType.TEXT, "hello");
+        assertSame(lFrame, lAssembler.assemble(lFrame, true, false));
+        assertFalse(lAssembler.isInProgress());
+        assertFalse(lAssembler.isCompressed());
+    }
+
+    @Test
+    public void testFragmentedMessage() throws WebSocketException {
+        MessageAssembler lAssembler = new MessageAssembler(1024);
+        assertNull(lAssembler.assemble(packet(WebSocketFrameType.BINARY, "ab"), false, false));
+        assertTrue(lAssembler.isInProgress());
+        assertNull(lAssembler.assemble(packet(WebSocketFrameType.FRAGMENT, "cd"), false, false));
+        WebSocketPacket lMessage = lAssembler.assemble(
+                packet(WebSocketFrameType.FRAGMENT, "ef"), true, false);
+        assertNotNull(lMessage);
+        assertEquals(WebSocketFrameType.BINARY, lMessage.getFrameType());
+        assertArrayEquals("abcdef".getBytes(), lMessage.getByteArray());
+        assertFalse(lAssembler.isInProgress());
+    }
+
+    @Test
+    public void testMessageLargerThanInitialBuffer() throws WebSocketException {
+        MessageAssembler lAssembler = new MessageAssembler(100000);
+        byte[] lChunk = new byte[3000];
+        lAssembler.assemble(new RawPacket(WebSocketFrameType.BINARY, lChunk), false, false);
+        lAssembler.assemble(new RawPacket(WebSocketFrameType.FRAGMENT, lChunk), false, false);
+        WebSocketPacket lMessage = lAssembler.assemble(
+                new RawPacket(WebSocketFrameType.FRAGMENT, lChunk), true, false);
+        assertEquals(9000, lMessage.getByteArray().length);
+    }
+
+    @Test
+    public void testCompressedFlagOfFirstFragment() throws WebSocketException {
+        MessageAssembler lAssembler = new MessageAssembler(1024);
+        assertNull(lAssembler.assemble(packet(WebSocketFrameType.TEXT, "a"), false, true));
+        assertNotNull(lAssembler.assemble(packet(WebSocketFrameType.FRAGMENT, "b"), true, false));
+        assertTrue(lAssembler.isCompressed());
+        assertNotNull(lAssembler.assemble(packet(WebSocketFrameType.TEXT, "c"), true, false));
+        assertFalse(lAssembler.isCompressed());
+    }
+
+    @Test
+    public void testContinuationWithoutStart() {
+        MessageAssembler lAssembler = new MessageAssembler(1024);
+        try {
+            lAssembler.assemble(packet(WebSocketFrameType.FRAGMENT, "a"), true, false);
+            fail("Continuation frame accepted");
+        } catch (WebSocketException lEx) {
+            assertEquals(MessageAssembler.CLOSE_PROTOCOL_ERROR, lAssembler.getCloseCode());
+        }
+    }
+
+    @Test
+    public void testRsv1OnContinuation() throws WebSocketException {
+        MessageAssembler lAssembler = new MessageAssembler(1024);
+        lAssembler.assemble(packet(WebSocketFrameType.TEXT, "a"), false, true);
+        try {
+            lAssembler.assemble(packet(WebSocketFrameType.FRAGMENT, "b"), true, true);
+            fail("RSV1 accepted on a continuation frame");
+        } catch (WebSocketException lEx) {
+            assertEquals(MessageAssembler.CLOSE_PROTOCOL_ERROR, lAssembler.getCloseCode());
+            assertFalse(lAssembler.isInProgress());
+        }
+    }
+
+    @Test
+    public void testNewMessageWhileFragmentInProgress() throws WebSocketException {
+        MessageAssembler lAssembler = new MessageAssembler(1024);
+        lAssembler.assemble(packet(WebSocketFrameType.TEXT, "a"), false, false);
+        try {
+            lAssembler.assemble(packet(WebSocketFrameType.BINARY, "b"), true, false);
+            fail("Interleaved data message accepted");
+        } catch (WebSocketException lEx) {
+            assertEquals(MessageAssembler.CLOSE_PROTOCOL_ERROR, lAssembler.getCloseCode());
+        }
+        // the assembler accepts a new message after the error
+        assertNotNull(lAssembler.assemble(packet(WebSocketFrameType.TEXT, "c"), true, false));
+    }
+
+    @Test
+    public void testMessageTooBig() throws WebSocketException {
+        MessageAssembler lAssembler = new MessageAssembler(5);
+        lAssembler.assemble(packet(WebSocketFrameType.TEXT, "abc"), false, false);
+        try {
+            lAssembler.assemble(packet(WebSocketFrameType.FRAGMENT, "def"), true, false);
+            fail("Oversized message accepted");
+        } catch (WebSocketException lEx) {
+            assertEquals(MessageAssembler.CLOSE_MESSAGE_TOO_BIG, lAssembler.getCloseCode());
+            assertFalse(lAssembler.isInProgress());
+        }
+    }
+}